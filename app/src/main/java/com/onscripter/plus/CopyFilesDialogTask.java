@@ -2,11 +2,6 @@ package com.onscripter.plus;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 
 import android.app.AlertDialog;
@@ -17,6 +12,7 @@ import android.content.DialogInterface.OnShowListener;
 import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.StatFs;
+import android.os.SystemClock;
 import android.text.Html;
 import android.text.Spanned;
 import android.text.format.Formatter;
@@ -31,6 +27,8 @@ import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import com.onscripter.plus.CopyPipeline.PipelineListener;
+
 public final class CopyFilesDialogTask {
 
     public static class CopyFileInfo {
@@ -58,6 +56,9 @@ public final class CopyFilesDialogTask {
     private final FileFilter mFileFilter;
     private final FileFilter mDirectoryFilter;
     private final FileFilter mOverwriteFilter;
+    private int mCopyThreads = CopyPipeline.DEFAULT_THREADS;
+    private int mWritersPerVolume = CopyPipeline.DEFAULT_WRITERS_PER_VOLUME;
+    private boolean mIncremental;
 
     public CopyFilesDialogTask(Context ctx, CopyFilesDialogListener listener) {
         this(ctx, listener, null, null, null);
@@ -79,6 +80,28 @@ public final class CopyFilesDialogTask {
         mIsRunning = false;
     }
 
+    /**
+     * Sets how many files are copied at the same time and how many of them
+     * can be written to the same storage volume at once
+     * @param threads
+     * @param writersPerVolume
+     */
+    public void setCopyConcurrency(int threads, int writersPerVolume) {
+        mCopyThreads = threads;
+        mWritersPerVolume = writersPerVolume;
+    }
+
+    /**
+     * Incremental copies skip files that are already at the destination with
+     * the same size and modified time. Files are written to a temporary file
+     * first and recorded in a journal so that a cancelled copy can continue
+     * the next time it is run.
+     * @param incremental
+     */
+    public void setIncremental(boolean incremental) {
+        mIncremental = incremental;
+    }
+
     public void executeCopy(CopyFileInfo[] info) {
         if (info.length > 0) {
             String internalStorage = Environment2.getInternalStorageDirectory().getAbsolutePath();
@@ -109,8 +132,8 @@ public final class CopyFilesDialogTask {
         }
     }
 
-    private void scanFinished(long totalBytes) {
-        new InternalCopyDialogTask(totalBytes).execute();
+    private void scanFinished(ArrayList<CopyManifest> manifests) {
+        new InternalCopyDialogTask(manifests).execute();
     }
 
     private void copyFinished(Result result) {
@@ -126,52 +149,20 @@ public final class CopyFilesDialogTask {
     private class InternalFileSpaceDialogTask extends ProgressDialogAsyncTask<Void, Void, Long> {
 
         private final ArrayList<Pair<Spanned, Long>> mListing;
+        private final ArrayList<CopyManifest> mManifests;
         private long mRemainingInternalBytes;
         private ListView mFileListView;
         private TextView mRemainingText;
         private long mCurrentSumBytes;
-        private boolean mCurrentSetHasOverwrite;
         private AlertDialog mChooseDialog;
 
         public InternalFileSpaceDialogTask() {
             super(mCtx, mCtx.getString(R.string.dialog_scan_files_title), true);
             mListing = new ArrayList<Pair<Spanned, Long>>(mInfo.length);
+            mManifests = new ArrayList<CopyManifest>(mInfo.length);
             mCurrentSumBytes = 0;
         }
 
-        /**
-         * Recursively scans each file in given folder (or file) and returns the
-         * total sum of their file size. Maybe slow with many files
-         * @param source
-         * @return
-         */
-        private long scanTotalBytes(File source, File destination) {
-            long totalBytes = 0;
-            if (source.isFile()) {
-                if (mFileFilter != null && !mFileFilter.accept(source)) {
-                    return 0;
-                }
-                // Because we overwrite the destination, if exists, then we dont need extra space for it
-                if (destination.exists()) {
-                    totalBytes -= destination.length();
-                    mCurrentSetHasOverwrite = true;
-                }
-                totalBytes += source.length();
-            } else {
-                if (mDirectoryFilter != null && !mDirectoryFilter.accept(source)) {
-                    return 0;
-                }
-                File[] children = source.listFiles();
-                if (children != null) {
-                    for (int i = 0; i < children.length; i++) {
-                        File dstFile = new File(destination + "/" + children[i].getName());
-                        totalBytes += scanTotalBytes(children[i], dstFile);
-                    }
-                }
-            }
-            return totalBytes;
-        }
-
         private void updateAndRecalculateList() {
             mRemainingText.setText(Formatter.formatFileSize(mCtx, mRemainingInternalBytes - mCurrentSumBytes));
             boolean atLeastOneSelected = false;
@@ -201,14 +192,18 @@ public final class CopyFilesDialogTask {
                 if (isCancelled()) {
                     return 0L;
                 }
-                mCurrentSetHasOverwrite = false;
-                long b = scanTotalBytes(new File(mInfo[i].source), new File(mInfo[i].destination));
+                // Keep what was scanned so the copy does not need to list the files again
+                CopyManifest manifest = CopyManifest.scan(new File(mInfo[i].source),
+                        new File(mInfo[i].destination), mFileFilter, mDirectoryFilter, mOverwriteFilter,
+                        mIncremental);
+                mManifests.add(manifest);
+                long b = manifest.getRequiredBytes();
                 bytes += b;
                 if (b < 0) {
                     b = 0;
                 }
                 String formattedSize = Formatter.formatFileSize(mCtx, b);
-                if (mCurrentSetHasOverwrite) {
+                if (manifest.hasOverwrite()) {
                     formattedSize += " <font color='red'>" + mCtx.getString(R.string.dialog_override_files) + "</font>";
                 }
                 Spanned listing = Html.fromHtml("<b>" + mInfo[i].source.substring(mStoragePathLength) + "</b><br><small>+" + formattedSize + "</small>");
@@ -275,15 +270,16 @@ public final class CopyFilesDialogTask {
                     .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
                         @Override
                         public void onClick(DialogInterface dialog, int which) {
-                            int j = 0;
                             ArrayList<CopyFileInfo> info = new ArrayList<CopyFileInfo>(mFileListView.getChildCount());
+                            ArrayList<CopyManifest> manifests = new ArrayList<CopyManifest>(mFileListView.getChildCount());
                             for (int i = 0; i < mFileListView.getChildCount(); i++) {
                                 if (((CheckedTextView)mFileListView.getChildAt(i)).isChecked()) {
                                     info.add(mInfo[i]);
+                                    manifests.add(mManifests.get(i));
                                 }
                             }
                             mInfo = info.toArray(new CopyFileInfo[info.size()]);
-                            scanFinished(mCurrentSumBytes);
+                            scanFinished(manifests);
                         }
                     })
                     .setNeutralButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
@@ -303,7 +299,7 @@ public final class CopyFilesDialogTask {
                 });
                 mChooseDialog.show();
             } else {
-                scanFinished(totalBytes);
+                scanFinished(mManifests);
             }
         }
     }
@@ -314,7 +310,7 @@ public final class CopyFilesDialogTask {
      * @author CHaSEdBYmAnYcrAZy
      *
      */
-    private class InternalCopyDialogTask extends AsyncTask<Void, Void, Result> {
+    private class InternalCopyDialogTask extends AsyncTask<Void, Void, Result> implements PipelineListener {
 
         private Dialog mDialog;
         private boolean mShowDialogTimeout;
@@ -325,15 +321,23 @@ public final class CopyFilesDialogTask {
         private final TextView mOverallPercentText;
         private final ProgressBar mCurrentPercentProgress;
         private final ProgressBar mOverallPercentProgress;
+        private CopyPipeline mPipeline;
+        private final ArrayList<CopyManifest> mManifests;
 
         // Progress data
         private final long mTotalBytesCopying;
-        private String mCurrentFile;
-        private long mCurrentFileSize;
-        private long mCurrentFileTotalSize;
-        private int mCurrentFilePercentage;
-
-        public InternalCopyDialogTask(long totalBytes) {
+        private volatile String mCurrentFile;
+        private volatile long mCurrentFileSize;
+        private volatile long mCurrentFileTotalSize;
+        private volatile int mCurrentFilePercentage;
+        private volatile long mLastProgressTime;
+
+        public InternalCopyDialogTask(ArrayList<CopyManifest> manifests) {
+            mManifests = manifests;
+            long totalBytes = 0;
+            for (CopyManifest manifest : manifests) {
+                totalBytes += manifest.getCopyBytes();
+            }
             mTotalBytesCopying = totalBytes;
 
             // Inflate the dialog
@@ -375,100 +379,61 @@ public final class CopyFilesDialogTask {
         }
 
         /**
-         * Copies a file or folder recursively. Please make sure the source and destination
-         * are both either folders or files.
-         * @param source
-         * @param destination
+         * Creates the destination folders of the manifest and submits each
+         * file that needs to be copied to the pipeline
+         * @param manifest
          * @return true if success
          */
-        private boolean copy(File source, File destination) {
-            return source.isFile() ? copyFile(source, destination) : copyFolder(source, destination);
-        }
-
-        private boolean copyFolder(File source, File destination) {
-            // Skip folder if not accepted
-            if (mDirectoryFilter != null && !mDirectoryFilter.accept(source)) {
-                return true;
-            }
-            File[] children = source.listFiles();
-            if (!destination.exists() && !destination.mkdir()) {
-                // Failed to make a new directory
-                Log.e("CopyFilesDialogTask", "Failed to make directory '" + destination.getAbsolutePath() + "'");
-                return false;
+        private boolean copy(CopyManifest manifest) {
+            for (String dir : manifest.getDirectories()) {
+                File destination = manifest.getDestinationDirectory(dir);
+                if (!destination.exists() && !destination.mkdir()) {
+                    // Failed to make a new directory
+                    Log.e("CopyFilesDialogTask", "Failed to make directory '" + destination.getAbsolutePath() + "'");
+                    return false;
+                }
             }
-            if (children != null) {
-                for (int i = 0; i < children.length; i++) {
-                    if (isCancelled()) {
-                        return false;
-                    }
-                    File dstFile = new File(destination + "/" + children[i].getName());
+            for (CopyManifest.Entry entry : manifest.getFiles()) {
+                if (!mPipeline.isRunning()) {
+                    return false;
+                }
+                File destination = manifest.getDestination(entry);
 
-                    // Failed to copy, kill the copying routine
-                    if (!copy(children[i], dstFile)) {
-                        return false;
-                    }
+                // Partial copies left by a copy that was killed, kept until the user agreed to copy
+                if (manifest.getJournal() != null) {
+                    manifest.getJournal().discardPartialCopy(destination);
+                }
+                if (!entry.shouldCopy()) {
+                    continue;
+                }
+                if (entry.destinationExists() && manifest.getJournal() == null) {
+                    destination.delete();       // Save space, delete before copying
+                }
+                if (!mPipeline.submit(manifest.getSource(entry), destination, manifest.getJournal())) {
+                    return false;
                 }
             }
             return true;
         }
 
-        private boolean copyFile(File source, File destination) {
-            // Skip file if not accepted
-            if (mFileFilter != null && !mFileFilter.accept(source)) {
-                return true;
-            }
-
-            // If destination file exists and is same size and not allowed to overwrite, then we skip copying it
-            if (destination.exists()) {
-                if (destination.length() == source.length()) {
-                    if (mOverwriteFilter == null || (mOverwriteFilter != null && !mOverwriteFilter.accept(source))) {
-                        return true;
-                    }
-                }
-                destination.delete();       // Save space, delete before copying
-            }
-            InputStream in = null;
-            OutputStream out = null;
-            int copiedLen = 0;
-            mCurrentFileTotalSize = source.length();
+        @Override
+        public void onFileProgress(File source, long copiedBytes, long totalBytes, long totalCopiedBytes) {
+            mCurrentFileTotalSize = totalBytes;
             mCurrentFile = source.getPath().substring(mStoragePathLength);
-            mCurrentFilePercentage = 0;
-            try {
-                in = new FileInputStream(source);
-                out = new FileOutputStream(destination);
-
-                // Transfer bytes from in to out
-                byte[] buf = new byte[1024];
-                int len;
-                while ((len = in.read(buf)) > 0) {
-                    if (isCancelled()) {
-                        break;
-                    }
-
-                    out.write(buf, 0, len);
-                    copiedLen += len;
-                    mCurrentFileSize += len;
-
-                    int percent = (int) Math.round(copiedLen * 100.0 / mCurrentFileTotalSize);
-                    if (percent != mCurrentFilePercentage) {
-                        mCurrentFilePercentage = percent;
-                        publishProgress();
-                    }
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-                return false;
-            } finally {
-                try {
-                    if (in != null) {
-                        in.close();
-                    }
-                    if (out != null) {
-                        out.close();
-                    }
-                } catch(IOException e) {}
+            mCurrentFilePercentage = totalBytes > 0 ? (int) Math.round(copiedBytes * 100.0 / totalBytes) : 100;
+            mCurrentFileSize = totalCopiedBytes;
+
+            // Many small files finish at once, only update the dialog once per interval
+            long now = SystemClock.uptimeMillis();
+            if (now - mLastProgressTime >= FileCopier.DEFAULT_PROGRESS_INTERVAL_MS) {
+                mLastProgressTime = now;
+                publishProgress();
             }
-            return true;
+        }
+
+        @Override
+        public boolean isPipelineCancelled() {
+            return isCancelled();
         }
 
         @Override
@@ -500,17 +465,38 @@ public final class CopyFilesDialogTask {
 
         @Override
         protected Result doInBackground(Void... params) {
-            // Copy files
+            // Submit the scanned files here while the pipeline's workers copy them
             mCurrentFileSize = 0;
-            for (int i = 0; i < mInfo.length; i++) {
-                if (isCancelled()) {
-                    return Result.CANCELLED;
-                }
-                if (!copy(new File(mInfo[i].source), new File(mInfo[i].destination))) {
-                    return isCancelled() ? Result.CANCELLED : Result.COPY_ERROR;
+            mPipeline = new CopyPipeline(mCopyThreads, mWritersPerVolume, this);
+            boolean success = true;
+            for (int i = 0; i < mManifests.size() && success; i++) {
+                success = copy(mManifests.get(i));
+            }
+            if (!success) {
+                mPipeline.abort();
+            }
+            try {
+                success = mPipeline.finish() && success;
+            } catch (InterruptedException e) {
+                // Cancelled, the workers have already stopped so the journals can be closed
+                success = false;
+            }
+
+            // Keep the journals of an unfinished copy so it can continue next time
+            for (CopyManifest manifest : mManifests) {
+                CopyJournal journal = manifest.getJournal();
+                if (journal != null) {
+                    if (success && !isCancelled()) {
+                        journal.delete();
+                    } else {
+                        journal.close();
+                    }
                 }
             }
-            return Result.SUCCESS;
+            if (isCancelled()) {
+                return Result.CANCELLED;
+            }
+            return success ? Result.SUCCESS : Result.COPY_ERROR;
         }
 
         @Override
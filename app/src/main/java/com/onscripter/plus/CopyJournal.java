@@ -0,0 +1,173 @@
+package com.onscripter.plus;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.HashMap;
+
+import android.util.Log;
+
+/**
+ * Records the files that were completely copied into a destination folder so
+ * that a cancelled or interrupted copy can continue where it stopped. Each
+ * line holds the size, modified time and relative path of the source file.
+ *
+ * The journal is kept inside the destination folder and is removed once
+ * everything was copied.
+ * @author Matthew Ng
+ *
+ */
+public final class CopyJournal {
+    private static final String TAG = "CopyJournal";
+    public static final String JOURNAL_FILE_NAME = ".copy_journal";
+    public static final String TEMP_SUFFIX = ".part";
+    private static final String UTF8_ENCODING = "UTF-8";
+
+    private final File mFile;
+    private final String mRootPath;
+    private final HashMap<String, long[]> mCompleted;
+    private BufferedWriter mWriter;
+
+    private CopyJournal(File root) {
+        mFile = new File(root, JOURNAL_FILE_NAME);
+        mRootPath = root.getPath();
+        mCompleted = new HashMap<String, long[]>();
+    }
+
+    /**
+     * Opens the journal of the destination folder, reading the files that
+     * were copied by a previous copy if it exists
+     * @param destinationRoot
+     * @return
+     */
+    public static CopyJournal open(File destinationRoot) {
+        CopyJournal journal = new CopyJournal(destinationRoot);
+        journal.load();
+        return journal;
+    }
+
+    /**
+     * Checks if two modified times are the same within the precision of the
+     * file systems
+     * @param a
+     * @param b
+     * @return
+     */
+    public static boolean isSameModifiedTime(long a, long b) {
+        return Math.abs(a - b) < GameFolder.MODIFIED_TIME_RESOLUTION_MS;
+    }
+
+    /**
+     * Checks if the file was copied by a previous copy and the source has not
+     * changed since then
+     * @param relativePath
+     * @param size of the source
+     * @param lastModified of the source
+     * @return
+     */
+    public synchronized boolean isCompleted(String relativePath, long size, long lastModified) {
+        long[] data = mCompleted.get(relativePath);
+        return data != null && data[0] == size && data[1] == lastModified;
+    }
+
+    /**
+     * Records that the source was completely copied to the destination
+     * @param source
+     * @param destination
+     * @throws IOException
+     */
+    public synchronized void markCompleted(File source, File destination) throws IOException {
+        String path = destination.getPath();
+        if (!path.startsWith(mRootPath)) {
+            return;
+        }
+        String relativePath = path.substring(mRootPath.length());
+        if (relativePath.startsWith("/")) {
+            relativePath = relativePath.substring(1);
+        }
+        long size = source.length();
+        long lastModified = source.lastModified();
+        mCompleted.put(relativePath, new long[] { size, lastModified });
+
+        if (mWriter == null) {
+            mWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(mFile, true), UTF8_ENCODING));
+        }
+        mWriter.write(size + "\t" + lastModified + "\t" + relativePath + "\n");
+
+        // Flush every line so that it is not lost if the app is killed
+        mWriter.flush();
+    }
+
+    /**
+     * Removes the partial copy of the destination left behind if the app was
+     * killed while copying it, it is copied again from the start
+     * @param destination
+     */
+    public void discardPartialCopy(File destination) {
+        File temp = new File(destination.getPath() + TEMP_SUFFIX);
+        if (temp.exists() && !temp.delete()) {
+            Log.w(TAG, "Cannot remove partial copy: " + temp.getPath());
+        }
+    }
+
+    /**
+     * Closes the journal and keeps it so the copy can be continued later
+     */
+    public synchronized void close() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {}
+            mWriter = null;
+        }
+    }
+
+    /**
+     * Closes and removes the journal after everything was copied
+     */
+    public synchronized void delete() {
+        close();
+        mCompleted.clear();
+        mFile.delete();
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        BufferedReader br = null;
+        try {
+            String line;
+            br = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), UTF8_ENCODING));
+            while ((line = br.readLine()) != null) {
+                // The last line may be cut off if the app was killed while writing it
+                int first = line.indexOf('\t');
+                int second = first >= 0 ? line.indexOf('\t', first + 1) : -1;
+                if (second < 0) {
+                    continue;
+                }
+                try {
+                    long size = Long.parseLong(line.substring(0, first));
+                    long lastModified = Long.parseLong(line.substring(first + 1, second));
+                    mCompleted.put(line.substring(second + 1), new long[] { size, lastModified });
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Skipping bad journal line: " + line);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.onscripter.plus;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * List of everything that needs to be copied from a source file or folder to
+ * its destination. The source tree is walked and stat'ed once while scanning
+ * for the space needed and the copy uses this list instead of listing every
+ * folder again.
+ * @author Matthew Ng
+ *
+ */
+public final class CopyManifest {
+
+    public static class Entry {
+        private final String mRelativePath;
+        private final long mSize;
+        private final long mLastModified;
+        private final boolean mDestinationExists;
+        private final boolean mCopy;
+
+        Entry(String relativePath, long size, long lastModified, boolean destinationExists, boolean copy) {
+            mRelativePath = relativePath;
+            mSize = size;
+            mLastModified = lastModified;
+            mDestinationExists = destinationExists;
+            mCopy = copy;
+        }
+
+        /**
+         * Path from the root of the manifest, empty if the root is this file
+         * @return
+         */
+        public String getRelativePath() {
+            return mRelativePath;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public long getLastModified() {
+            return mLastModified;
+        }
+
+        public boolean destinationExists() {
+            return mDestinationExists;
+        }
+
+        /**
+         * If false, the destination is the same size and is not allowed to
+         * be overwritten or is already up to date so it is skipped
+         * @return
+         */
+        public boolean shouldCopy() {
+            return mCopy;
+        }
+    }
+
+    private final File mSourceRoot;
+    private final File mDestinationRoot;
+    private final FileFilter mFileFilter;
+    private final FileFilter mDirectoryFilter;
+    private final FileFilter mOverwriteFilter;
+    private final CopyJournal mJournal;
+    private final ArrayList<String> mDirectories;
+    private final ArrayList<Entry> mFiles;
+    private long mRequiredBytes;
+    private long mCopyBytes;
+    private boolean mHasOverwrite;
+
+    private CopyManifest(File source, File destination, FileFilter fileFilter,
+            FileFilter directoryFilter, FileFilter overwriteFilter, CopyJournal journal) {
+        mSourceRoot = source;
+        mDestinationRoot = destination;
+        mFileFilter = fileFilter;
+        mDirectoryFilter = directoryFilter;
+        mOverwriteFilter = overwriteFilter;
+        mJournal = journal;
+        mDirectories = new ArrayList<String>();
+        mFiles = new ArrayList<Entry>();
+    }
+
+    /**
+     * Recursively scans the given folder (or file) and builds the manifest of
+     * files to copy to the destination. Maybe slow with many files
+     * @param source
+     * @param destination
+     * @param fileFilter files not accepted are skipped, can be null
+     * @param directoryFilter folders not accepted are skipped, can be null
+     * @param overwriteFilter existing files with the same size are only
+     *          overwritten if accepted, can be null
+     * @return
+     */
+    public static CopyManifest scan(File source, File destination, FileFilter fileFilter,
+            FileFilter directoryFilter, FileFilter overwriteFilter) {
+        return scan(source, destination, fileFilter, directoryFilter, overwriteFilter, false);
+    }
+
+    /**
+     * Same as scan() but if incremental, files at the destination with the
+     * same size and modified time as the source, or recorded in the journal
+     * of a previous copy to this folder, are skipped as well. Nothing at the
+     * destination is changed until the copy starts.
+     * @param source
+     * @param destination
+     * @param fileFilter
+     * @param directoryFilter
+     * @param overwriteFilter
+     * @param incremental
+     * @return
+     */
+    public static CopyManifest scan(File source, File destination, FileFilter fileFilter,
+            FileFilter directoryFilter, FileFilter overwriteFilter, boolean incremental) {
+        CopyJournal journal = null;
+        if (incremental) {
+            journal = CopyJournal.open(source.isFile() ? destination.getParentFile() : destination);
+        }
+        CopyManifest manifest = new CopyManifest(source, destination, fileFilter,
+                directoryFilter, overwriteFilter, journal);
+        manifest.scan(source, destination, "");
+        return manifest;
+    }
+
+    private void scan(File source, File destination, String relativePath) {
+        if (source.isFile()) {
+            if (mFileFilter != null && !mFileFilter.accept(source)) {
+                return;
+            }
+            long size = source.length();
+            long lastModified = source.lastModified();
+            boolean exists = destination.exists();
+            boolean copy = true;
+            if (exists) {
+                // Because we overwrite the destination, if exists, then we dont need extra space for it
+                long destinationSize = destination.length();
+                mRequiredBytes -= destinationSize;
+                mHasOverwrite = true;
+
+                // Same size and not allowed to overwrite, then we skip copying it
+                if (destinationSize == size && (mOverwriteFilter == null || !mOverwriteFilter.accept(source))) {
+                    copy = false;
+                } else if (mJournal != null && destinationSize == size && isAlreadyCopied(destination,
+                        relativePath.length() == 0 ? destination.getName() : relativePath, size, lastModified)) {
+                    copy = false;
+                }
+            }
+            mRequiredBytes += size;
+            if (copy) {
+                mCopyBytes += size;
+            }
+            mFiles.add(new Entry(relativePath, size, lastModified, exists, copy));
+        } else {
+            if (mDirectoryFilter != null && !mDirectoryFilter.accept(source)) {
+                return;
+            }
+            mDirectories.add(relativePath);
+            File[] children = source.listFiles();
+            if (children != null) {
+                for (int i = 0; i < children.length; i++) {
+                    String name = children[i].getName();
+                    File dstFile = new File(destination + "/" + name);
+                    scan(children[i], dstFile, relativePath.length() == 0 ? name : relativePath + "/" + name);
+                }
+            }
+        }
+    }
+
+    private boolean isAlreadyCopied(File destination, String journalPath, long size, long lastModified) {
+        return CopyJournal.isSameModifiedTime(destination.lastModified(), lastModified)
+                || mJournal.isCompleted(journalPath, size, lastModified);
+    }
+
+    public File getSource(Entry entry) {
+        return resolve(mSourceRoot, entry.mRelativePath);
+    }
+
+    public File getDestination(Entry entry) {
+        return resolve(mDestinationRoot, entry.mRelativePath);
+    }
+
+    public File getSourceRoot() {
+        return mSourceRoot;
+    }
+
+    public File getDestinationRoot() {
+        return mDestinationRoot;
+    }
+
+    /**
+     * Destination folders to create relative to the root, parents are always
+     * listed before their children
+     * @return
+     */
+    public List<String> getDirectories() {
+        return Collections.unmodifiableList(mDirectories);
+    }
+
+    public File getDestinationDirectory(String relativePath) {
+        return resolve(mDestinationRoot, relativePath);
+    }
+
+    public List<Entry> getFiles() {
+        return Collections.unmodifiableList(mFiles);
+    }
+
+    /**
+     * Extra space needed in the destination, existing files that are
+     * overwritten are subtracted so this can be negative
+     * @return
+     */
+    public long getRequiredBytes() {
+        return mRequiredBytes;
+    }
+
+    /**
+     * Bytes that will be written, skipped files are not included
+     * @return
+     */
+    public long getCopyBytes() {
+        return mCopyBytes;
+    }
+
+    public boolean hasOverwrite() {
+        return mHasOverwrite;
+    }
+
+    /**
+     * Journal of the destination if scanned as incremental, otherwise null
+     * @return
+     */
+    public CopyJournal getJournal() {
+        return mJournal;
+    }
+
+    private static File resolve(File root, String relativePath) {
+        return relativePath.length() == 0 ? root : new File(root + "/" + relativePath);
+    }
+}
@@ -0,0 +1,253 @@
+package com.onscripter.plus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+import com.onscripter.plus.FileCopier.CopyListener;
+
+/**
+ * Copies files on a small pool of worker threads. Whoever walks the folders
+ * submits each file as a work item and the workers copy them as they come in.
+ *
+ * Writes to the same destination volume are limited to a number of files at
+ * the same time so that slow sd cards are not flooded with writes. Progress
+ * of all workers is added together and reported through the listener.
+ * @author Matthew Ng
+ *
+ */
+public class CopyPipeline {
+    private static final String TAG = "CopyPipeline";
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_WRITERS_PER_VOLUME = 2;
+    private static final long WAIT_INTERVAL_MS = 100;
+
+    public interface PipelineListener {
+        /**
+         * Called from the worker threads while a file is copied
+         * @param source file being copied
+         * @param copiedBytes of this file
+         * @param totalBytes of this file
+         * @param totalCopiedBytes of all files copied so far
+         */
+        public void onFileProgress(File source, long copiedBytes, long totalBytes, long totalCopiedBytes);
+
+        public boolean isPipelineCancelled();
+    }
+
+    private final PipelineListener mListener;
+    private final ThreadPoolExecutor mExecutor;
+    private final int mWritersPerVolume;
+    private final ArrayList<String> mVolumeRoots;
+    private final HashMap<String, Semaphore> mVolumeWriters;
+    private final AtomicLong mCopiedBytes;
+    private final ThreadLocal<FileCopier> mCopier;
+    private volatile boolean mFailed;
+
+    public CopyPipeline(PipelineListener listener) {
+        this(DEFAULT_THREADS, DEFAULT_WRITERS_PER_VOLUME, listener);
+    }
+
+    public CopyPipeline(int threads, int writersPerVolume, PipelineListener listener) {
+        threads = Math.max(1, threads);
+        mListener = listener;
+        mWritersPerVolume = Math.max(1, writersPerVolume);
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mVolumeRoots = new ArrayList<String>();
+        mVolumeWriters = new HashMap<String, Semaphore>();
+        mCopiedBytes = new AtomicLong();
+        mCopier = new ThreadLocal<FileCopier>() {
+            @Override
+            protected FileCopier initialValue() {
+                return new FileCopier();
+            }
+        };
+        addVolumeRoot(Environment2.getInternalStorageDirectory());
+        addVolumeRoot(Environment2.getExternalSDCardDirectory());
+    }
+
+    /**
+     * Adds the root of a storage volume. Destinations under the same root
+     * share the limit of files written at the same time.
+     * @param root
+     */
+    public synchronized void addVolumeRoot(File root) {
+        if (root != null) {
+            String path = root.getAbsolutePath();
+            if (!mVolumeRoots.contains(path)) {
+                mVolumeRoots.add(path);
+            }
+        }
+    }
+
+    /**
+     * Adds a file to be copied by the workers
+     * @param source
+     * @param destination
+     * @return false if the pipeline failed or was cancelled and will not copy it
+     */
+    public boolean submit(File source, File destination) {
+        return submit(source, destination, null);
+    }
+
+    /**
+     * Adds a file to be copied by the workers. If a journal is given, the
+     * file is copied to a temporary file that replaces the destination only
+     * when completed, then it is recorded in the journal.
+     * @param source
+     * @param destination
+     * @param journal can be null
+     * @return false if the pipeline failed or was cancelled and will not copy it
+     */
+    public boolean submit(File source, File destination, CopyJournal journal) {
+        if (!isRunning()) {
+            return false;
+        }
+        mExecutor.execute(new CopyJob(source, destination, journal, getVolumeWriters(destination)));
+        return true;
+    }
+
+    /**
+     * Waits for every submitted file to be copied. No files can be submitted after.
+     * If interrupted, the copy is stopped and the workers have exited before
+     * this throws.
+     * @return true if all the files were copied
+     * @throws InterruptedException
+     */
+    public boolean finish() throws InterruptedException {
+        mExecutor.shutdown();
+        try {
+            while (!mExecutor.awaitTermination(WAIT_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                if (!isRunning()) {
+                    mExecutor.getQueue().clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            abort();
+            mExecutor.shutdownNow();
+            awaitWorkers();
+            throw e;
+        }
+        return isRunning();
+    }
+
+    // Waits for the workers to exit even if interrupted again
+    private void awaitWorkers() {
+        boolean interrupted = false;
+        while (!mExecutor.isTerminated()) {
+            try {
+                mExecutor.awaitTermination(WAIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops copying, files submitted and not copied yet are dropped
+     */
+    public void abort() {
+        mFailed = true;
+    }
+
+    public boolean isRunning() {
+        return !mFailed && !mListener.isPipelineCancelled();
+    }
+
+    public long getCopiedBytes() {
+        return mCopiedBytes.get();
+    }
+
+    private synchronized Semaphore getVolumeWriters(File destination) {
+        String path = destination.getAbsolutePath();
+        String volume = "";
+        for (String root : mVolumeRoots) {
+            if (path.startsWith(root) && root.length() > volume.length()) {
+                volume = root;
+            }
+        }
+        Semaphore writers = mVolumeWriters.get(volume);
+        if (writers == null) {
+            writers = new Semaphore(mWritersPerVolume);
+            mVolumeWriters.put(volume, writers);
+        }
+        return writers;
+    }
+
+    private class CopyJob implements Runnable, CopyListener {
+        private final File mSource;
+        private final File mDestination;
+        private final CopyJournal mJournal;
+        private final Semaphore mWriters;
+        private long mLastCopied;
+
+        public CopyJob(File source, File destination, CopyJournal journal, Semaphore writers) {
+            mSource = source;
+            mDestination = destination;
+            mJournal = journal;
+            mWriters = writers;
+        }
+
+        @Override
+        public void run() {
+            if (!isRunning()) {
+                return;
+            }
+            try {
+                mWriters.acquire();
+            } catch (InterruptedException e) {
+                mFailed = true;
+                return;
+            }
+            // With a journal the destination is only replaced once the copy is complete
+            File target = mJournal != null ? new File(mDestination.getPath() + CopyJournal.TEMP_SUFFIX)
+                    : mDestination;
+            try {
+                if (!mCopier.get().copy(mSource, target, mJournal != null, this)) {
+                    // Cancelled, do not leave a partial file behind
+                    target.delete();
+                } else if (mJournal != null) {
+                    if (!target.renameTo(mDestination)) {
+                        // Some file systems cannot rename over an existing file
+                        mDestination.delete();
+                        if (!target.renameTo(mDestination)) {
+                            throw new IOException("Cannot rename to '" + mDestination.getAbsolutePath() + "'");
+                        }
+                    }
+                    mDestination.setLastModified(mSource.lastModified());
+                    mJournal.markCompleted(mSource, mDestination);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to copy '" + mSource.getAbsolutePath() + "'", e);
+                target.delete();
+                mFailed = true;
+            } finally {
+                mWriters.release();
+            }
+        }
+
+        @Override
+        public void onCopyProgress(long copiedBytes, long totalBytes) {
+            long total = mCopiedBytes.addAndGet(copiedBytes - mLastCopied);
+            mLastCopied = copiedBytes;
+            mListener.onFileProgress(mSource, copiedBytes, totalBytes, total);
+        }
+
+        @Override
+        public boolean isCopyCancelled() {
+            return !isRunning();
+        }
+    }
+}
@@ -3,9 +3,11 @@ package com.onscripter.plus;
 import android.os.Bundle;
 import android.os.Message;
 import android.os.Handler;
+import android.os.SystemClock;
 
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.params.HttpConnectionParams;
@@ -15,19 +17,73 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.Iterator;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipException;
 import java.util.zip.CRC32;
 
 public class DataDownloader extends Thread
 {
+	// Progress is only sent to the handler this often, errors and completion are always sent
+	private static final long PROGRESS_INTERVAL_MS = 100;
+	private static final int EXTRACT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	// Large archives are downloaded as several ranges at the same time
+	private static final int DOWNLOAD_SEGMENTS = 4;
+	private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+	private static final int MAX_SEGMENT_RETRIES = 10;
+	private static final long SEGMENT_RETRY_DELAY_MS = 250;
+	private static final long MAX_SEGMENT_RETRY_DELAY_MS = 4000;
+	private static final long STATE_SAVE_INTERVAL_MS = 5000;
+	private static final String SEGMENT_STATE_SUFFIX = ".segments";
+
+	// Returned by downloadSegment() when the server ignores or refuses the range
+	private static final int RANGES_NOT_SUPPORTED = 1;
+
+	private class Segment
+	{
+		final long start;
+		final long end;		// Inclusive
+		volatile long done;
+
+		Segment(long start, long end, long done)
+		{
+			this.start = start;
+			this.end = end;
+			this.done = done;
+		}
+
+		long length()
+		{
+			return end - start + 1;
+		}
+	}
+
 	private byte[] buf = null;
+	private long last_progress_time = 0;
 
 	public DataDownloader( String zip_dir, String zip_filename, String extract_dir, String version_filename, String url, long file_size, Handler h )
 	{
@@ -57,11 +113,12 @@ public class DataDownloader extends Thread
 
 		String zip_path = zip_dir + "/" + zip_filename;
 
+		// The archive is preallocated while downloading so also check for unfinished segments
 		file = new File(zip_path);
-		if (file.exists() == false || file.length() != file_size)
+		if (file.exists() == false || file.length() != file_size || new File(zip_path + SEGMENT_STATE_SUFFIX).exists())
 			if (downloadZip(zip_path) != 0) return;
 
-		if (extractZip(zip_path) != 0) return;
+		if (extractZipParallel(zip_path) != 0) return;
 
 		if (file_size == -1){
 			file = new File(zip_path);
@@ -86,6 +143,314 @@ public class DataDownloader extends Thread
 	}
 
 	private int downloadZip(String zip_path)
+	{
+		// Ask once if the server supports ranges before splitting the file
+		long range_total = requestContentLength();
+		long total = file_size > 0 ? file_size : range_total;
+		File state_file = new File(zip_path + SEGMENT_STATE_SUFFIX);
+		if (range_total < 0 || total < MIN_SEGMENT_SIZE * 2) return downloadZipWhole(zip_path, state_file);
+
+		ArrayList<Segment> segments = loadSegmentState(state_file, zip_path, total);
+		if (segments == null){
+			// Nothing to resume from, split the file into ranges and reserve the space
+			segments = new ArrayList<Segment>(DOWNLOAD_SEGMENTS);
+			int count = (int)Math.min(DOWNLOAD_SEGMENTS, total / MIN_SEGMENT_SIZE);
+			long size = total / count;
+			for (int i = 0; i < count; i++){
+				long start = i * size;
+				long end = i == count - 1 ? total - 1 : start + size - 1;
+				segments.add(new Segment(start, end, 0));
+			}
+		}
+
+		RandomAccessFile out = null;
+		int ret = 0;
+		try {
+			out = new RandomAccessFile(zip_path, "rw");
+
+			// Write the state before the file gets its full size, run() relies on it to know the file is not done
+			saveSegmentState(out.getChannel(), state_file, segments, total);
+			if (out.length() != total) out.setLength(total);
+			ret = downloadSegments(out.getChannel(), segments, state_file, total);
+		} catch( IOException e ) {
+			sendMessage(-2, 0, "Failed to create temporary file: " + e.toString());
+			ret = -1;
+		} finally {
+			closeQuietly(out);
+		}
+		if (ret == RANGES_NOT_SUPPORTED) return downloadZipWhole(zip_path, state_file);
+		if (ret != 0) return ret;
+
+		// Verify the whole file arrived before throwing away the state
+		for (Segment segment : segments){
+			if (segment.done != segment.length()){
+				sendMessage(-2, 0, "Failed to download: incomplete file");
+				return -1;
+			}
+		}
+		if (new File(zip_path).length() != total){
+			sendMessage(-2, 0, "Failed to download: size mismatch");
+			return -1;
+		}
+		try {
+			closeZip(new ZipFile(zip_path));
+		} catch( IOException e ) {
+			// Corrupted, start again from nothing next time
+			state_file.delete();
+			(new File( zip_path )).delete();
+			sendMessage(-2, 0, "Downloaded zip file is corrupted: " + e.toString());
+			return -1;
+		}
+		state_file.delete();
+		return 0;
+	}
+
+	/*
+	 * Without ranges the segments cannot be used, throw them away and download
+	 * the file from the start in one connection
+	 */
+	private int downloadZipWhole(String zip_path, File state_file)
+	{
+		state_file.delete();
+		return downloadZipSingle(zip_path);
+	}
+
+	private int downloadSegments(final FileChannel out, final ArrayList<Segment> segments, final File state_file, final long total)
+	{
+		final AtomicLong downloaded = new AtomicLong();
+		final AtomicBoolean failed = new AtomicBoolean();
+		final AtomicLong last_save_time = new AtomicLong(SystemClock.uptimeMillis());
+		for (Segment segment : segments) downloaded.addAndGet(segment.done);
+
+		ExecutorService executor = Executors.newFixedThreadPool(segments.size());
+		ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>(segments.size());
+		for (final Segment segment : segments){
+			results.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					int ret = downloadSegment(out, segment, segments, state_file, downloaded, total, failed, last_save_time);
+					if (ret != 0) failed.set(true);
+					return ret;
+				}
+			}));
+		}
+		executor.shutdown();
+
+		int ret = 0;
+		for (Future<Integer> result : results){
+			try {
+				int result_ret = result.get();
+				if (result_ret == RANGES_NOT_SUPPORTED) ret = RANGES_NOT_SUPPORTED;
+				else if (result_ret != 0 && ret == 0) ret = -1;
+			} catch( InterruptedException e ) {
+				failed.set(true);
+				ret = -1;
+			} catch( ExecutionException e ) {
+				sendMessage(-2, 0, "Failed to download: " + e.getCause());
+				failed.set(true);
+				ret = -1;
+			}
+		}
+
+		// Save where each segment stopped so a failed download can continue later
+		saveSegmentState(out, state_file, segments, total);
+		return ret;
+	}
+
+	private int downloadSegment(FileChannel out, Segment segment, ArrayList<Segment> segments, File state_file,
+			AtomicLong downloaded, long total, AtomicBoolean failed, AtomicLong last_save_time)
+	{
+		byte[] buffer = new byte[8192*2];
+		int retry = 0;
+		while (segment.done < segment.length()){
+			if (failed.get()) return -1;
+			if (retry > MAX_SEGMENT_RETRIES){
+				sendMessage(-2, 0, "Failed to download: too many retries");
+				return -1;
+			}
+
+			DefaultHttpClient client = newHttpClient();
+			HttpGet request = new HttpGet(url);
+			request.addHeader("Accept", "*/*");
+			request.addHeader("Range", "bytes=" + (segment.start + segment.done) + "-" + segment.end);
+			HttpResponse response = null;
+			try {
+				response = client.execute(request);
+			} catch( IOException e ) {
+				client.getConnectionManager().shutdown();
+				if (!waitToRetry(++retry, failed)) return -1;
+				continue;
+			}
+			int status = response == null ? -1 : response.getStatusLine().getStatusCode();
+			if (status == HttpStatus.SC_OK || status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE){
+				// Stop the other segments, the file is downloaded again in one go
+				client.getConnectionManager().shutdown();
+				failed.set(true);
+				return RANGES_NOT_SUPPORTED;
+			}
+			if (status != HttpStatus.SC_PARTIAL_CONTENT){
+				// Busy or failing server, ask again later and keep what was downloaded
+				client.getConnectionManager().shutdown();
+				if (!waitToRetry(++retry, failed)) return -1;
+				continue;
+			}
+
+			long done_before = segment.done;
+			InputStream stream = null;
+			try {
+				stream = response.getEntity().getContent();
+				int len = stream.read(buffer);
+				while (len >= 0 && segment.done < segment.length()){
+					if (failed.get()) return -1;
+					len = (int)Math.min(len, segment.length() - segment.done);
+					if (len > 0){
+						ByteBuffer data = ByteBuffer.wrap(buffer, 0, len);
+						while (data.hasRemaining()){
+							out.write(data, segment.start + segment.done + data.position());
+						}
+						segment.done += len;
+						sendProgress((int)downloaded.addAndGet(len), (int)total,
+								"Downloading archives from Internet: " + segments.size() + " connections");
+					}
+					// Saving forces the file to storage so only one segment saves for all of them
+					long now = SystemClock.uptimeMillis();
+					long last = last_save_time.get();
+					if (now - last >= STATE_SAVE_INTERVAL_MS && last_save_time.compareAndSet(last, now)){
+						saveSegmentState(out, state_file, segments, total);
+					}
+					len = stream.read(buffer);
+				}
+			} catch( IOException e ) {
+				// Dropped connection, retried below
+			} catch( IllegalStateException e ) {
+				// Dropped connection, retried below
+			} finally {
+				closeQuietly(stream);
+				client.getConnectionManager().shutdown();
+			}
+
+			// Continue from where this segment stopped, the waits start over after progress
+			if (segment.done < segment.length()){
+				if (segment.done > done_before) retry = 0;
+				if (!waitToRetry(++retry, failed)) return -1;
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * Waits longer after each failed try of a segment, returns false if the
+	 * download failed or was interrupted meanwhile
+	 */
+	private boolean waitToRetry(int retry, AtomicBoolean failed)
+	{
+		if (retry > MAX_SEGMENT_RETRIES) return true;
+		try {
+			Thread.sleep(getRetryDelay(retry));
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return !failed.get();
+	}
+
+	// Delay before the given try of a segment again, starting at 1
+	long getRetryDelay(int retry)
+	{
+		return Math.min(MAX_SEGMENT_RETRY_DELAY_MS, SEGMENT_RETRY_DELAY_MS << Math.min(retry - 1, 8));
+	}
+
+	/*
+	 * Gets the size of the file by asking for its first byte, returns -1 if the
+	 * server does not support ranges
+	 */
+	private long requestContentLength()
+	{
+		DefaultHttpClient client = newHttpClient();
+		HttpGet request = new HttpGet(url);
+		request.addHeader("Accept", "*/*");
+		request.addHeader("Range", "bytes=0-0");
+		try {
+			HttpResponse response = client.execute(request);
+			if (response == null || response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT) return -1;
+			Header range = response.getFirstHeader("Content-Range");
+			if (range == null) return -1;
+			String value = range.getValue();
+			return Long.parseLong(value.substring(value.lastIndexOf('/') + 1).trim());
+		} catch( IOException e ) {
+			return -1;
+		} catch( NumberFormatException e ) {
+			return -1;
+		} finally {
+			client.getConnectionManager().shutdown();
+		}
+	}
+
+	private DefaultHttpClient newHttpClient()
+	{
+		DefaultHttpClient client = new DefaultHttpClient();
+		client.getParams().setBooleanParameter("http.protocol.handle-redirects", true);
+		HttpConnectionParams.setConnectionTimeout(client.getParams(), 5000);
+		HttpConnectionParams.setSoTimeout(client.getParams(), 3000);
+		return client;
+	}
+
+	/*
+	 * The state file has the total size on the first line and then the start, end
+	 * and downloaded bytes of each segment. Returns null if there is nothing to
+	 * resume or the file is not for this download.
+	 */
+	private ArrayList<Segment> loadSegmentState(File state_file, String zip_path, long total)
+	{
+		if (!state_file.exists() || new File(zip_path).length() != total) return null;
+		ArrayList<Segment> segments = new ArrayList<Segment>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(state_file), "UTF-8"));
+			String line = reader.readLine();
+			if (line == null || Long.parseLong(line.trim()) != total) return null;
+			while ((line = reader.readLine()) != null){
+				String[] values = line.trim().split(" ");
+				if (values.length != 3) return null;
+				Segment segment = new Segment(Long.parseLong(values[0]), Long.parseLong(values[1]), Long.parseLong(values[2]));
+				if (segment.done < 0 || segment.done > segment.length()) return null;
+				segments.add(segment);
+			}
+		} catch( IOException e ) {
+			return null;
+		} catch( NumberFormatException e ) {
+			return null;
+		} finally {
+			closeQuietly(reader);
+		}
+		return segments.isEmpty() ? null : segments;
+	}
+
+	private synchronized void saveSegmentState(FileChannel out, File state_file, ArrayList<Segment> segments, long total)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(total).append('\n');
+		for (Segment segment : segments){
+			sb.append(segment.start).append(' ').append(segment.end).append(' ').append(segment.done).append('\n');
+		}
+		File tmp = new File(state_file.getPath() + ".tmp");
+		FileOutputStream fos = null;
+		try {
+			// The data must be on storage before the state says it was downloaded
+			out.force(false);
+			fos = new FileOutputStream(tmp);
+			fos.write(sb.toString().getBytes("UTF-8"));
+			fos.getFD().sync();
+		} catch( IOException e ) {
+			closeQuietly(fos);
+			tmp.delete();
+			return;
+		}
+		closeQuietly(fos);
+		tmp.renameTo(state_file);
+	}
+
+	private int downloadZipSingle(String zip_path)
 	{
 		HttpResponse response = null;
 		HttpGet request;
@@ -164,12 +529,8 @@ public class DataDownloader extends Thread
 				while (len >= 0){
 					if (len > 0) tmp_out.write(buf, 0, len);
 					downloaded += len;
-					sendMessage((int)downloaded, (int)totalLen, "Downloading archives from Internet: retry " + retry);
+					sendProgress((int)downloaded, (int)totalLen, "Downloading archives from Internet: retry " + retry);
 					len = stream.read(buf);
-					try{
-						Thread.sleep(1);
-					} catch (InterruptedException e){
-					}
 				}
 			} catch (java.net.SocketException e) {
 			} catch( java.net.SocketTimeoutException e ) {
@@ -200,6 +561,142 @@ public class DataDownloader extends Thread
 		return 0;
 	}
 
+	/*
+	 * Once the archive is fully downloaded its central directory can be used to
+	 * extract the entries on several threads. If the archive is incomplete or has
+	 * no central directory, extract it sequentially with extractZip() instead.
+	 */
+	private int extractZipParallel(String zip_path)
+	{
+		if (file_size > 0 && (new File( zip_path )).length() < file_size) return extractZip(zip_path);
+
+		ZipFile zip = null;
+		try {
+			zip = new ZipFile(zip_path);
+		} catch( ZipException e ) {
+			return extractZip(zip_path);
+		} catch( IOException e ) {
+			sendMessage(-2, 0, "Failed to read from zip file: " + e.toString());
+			return -1;
+		}
+
+		// Create the folders first so the workers only write files
+		final ArrayList<ZipEntry> entries = new ArrayList<ZipEntry>();
+		long total_size = 0;
+		for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();){
+			ZipEntry entry = e.nextElement();
+			String path = extract_dir + "/" + entry.getName();
+			try {
+				if (entry.isDirectory()){
+					(new File( path )).mkdirs();
+					continue;
+				}
+				(new File( path.substring(0, path.lastIndexOf("/") ))).mkdirs();
+			} catch( SecurityException ex ) {
+				sendMessage(-2, 0, "Failed to create directory: " + ex.toString());
+				closeZip(zip);
+				return -1;
+			}
+			entries.add(entry);
+			if (entry.getSize() > 0) total_size += entry.getSize();
+		}
+
+		final ZipFile zip_file = zip;
+		final long total = total_size;
+		final AtomicLong extracted = new AtomicLong();
+		final AtomicBoolean failed = new AtomicBoolean();
+		ExecutorService executor = Executors.newFixedThreadPool(EXTRACT_THREADS);
+		ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>(entries.size());
+		for (int i = 0; i < entries.size(); i++){
+			final ZipEntry entry = entries.get(i);
+			final String mes = "Extracting archives: " + (i + 1);
+			results.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					if (failed.get()) return -1;
+					int ret = extractZipFileEntry(zip_file, entry, extracted, total, mes);
+					if (ret != 0) failed.set(true);
+					return ret;
+				}
+			}));
+		}
+		executor.shutdown();
+
+		int ret = 0;
+		for (Future<Integer> result : results){
+			try {
+				if (result.get() != 0) ret = -1;
+			} catch( InterruptedException e ) {
+				failed.set(true);
+				ret = -1;
+			} catch( ExecutionException e ) {
+				sendMessage(-2, 0, "Failed to extract: " + e.getCause());
+				failed.set(true);
+				ret = -1;
+			}
+		}
+		closeZip(zip);
+		return ret;
+	}
+
+	private int extractZipFileEntry(ZipFile zip, ZipEntry entry, AtomicLong extracted, long total, String mes)
+	{
+		String out_path = extract_dir + "/" + entry.getName();
+		byte[] buffer = new byte[8192*2];
+		InputStream in = null;
+		RandomAccessFile out = null;
+		CRC32 crc = new CRC32();
+		try {
+			in = zip.getInputStream(entry);
+			out = new RandomAccessFile(out_path, "rw");
+
+			// Size is known from the central directory, reserve it up front
+			if (entry.getSize() >= 0) out.setLength(entry.getSize());
+
+			int len = in.read(buffer);
+			while (len >= 0){
+				if (len > 0){
+					out.write(buffer, 0, len);
+					crc.update(buffer, 0, len);
+					long current = extracted.addAndGet(len);
+					sendProgress((int)current, (int)total, mes);
+				}
+				len = in.read(buffer);
+			}
+			out.setLength(out.getFilePointer());
+		} catch( IOException e ) {
+			sendMessage(-2, 0, "Failed to write: " + e.toString());
+			return -1;
+		} finally {
+			closeQuietly(in);
+			closeQuietly(out);
+		}
+
+		if (entry.getCrc() != -1 && crc.getValue() != entry.getCrc()){
+			(new File( out_path )).delete();
+			sendMessage(-2, 0, "CRC check failed");
+			return -1;
+		}
+		return 0;
+	}
+
+	private static void closeQuietly(Closeable c)
+	{
+		if (c == null) return;
+		try {
+			c.close();
+		} catch( IOException e ) {
+		}
+	}
+
+	private static void closeZip(ZipFile zip)
+	{
+		try {
+			zip.close();
+		} catch( IOException e ) {
+		}
+	}
+
 	private int extractZip(String zip_path)
 	{
 		ZipInputStream zip = null;
@@ -240,28 +737,15 @@ public class DataDownloader extends Thread
 				return -1;
 			};
 
-			if (extractZipEntry(path, zip, (int)entry.getSize(), "Extracting archives: " + num_file) != 0) return -1;
-
-			try {
-				CheckedInputStream check = new CheckedInputStream( new FileInputStream(path), new CRC32() );
-				while( check.read(buf) > 0 ) {};
-				check.close();
-				if (check.getChecksum().getValue() != entry.getCrc()){
-					File ff = new File(path);
-					ff.delete();
-					throw new Exception();
-				}
-			} catch( Exception e ){
-				sendMessage(-2, 0, "CRC check failed");
-				return -1;
-			}
+			if (extractZipEntry(path, zip, entry, "Extracting archives: " + num_file) != 0) return -1;
 		}
 
 		return 0;
 	}
 
-	private int extractZipEntry(String out_path, ZipInputStream zip, int total_size, String mes)
+	private int extractZipEntry(String out_path, ZipInputStream zip, ZipEntry entry, String mes)
 	{
+		int total_size = (int)entry.getSize();
 		BufferedOutputStream out = null;
 		try {
 			out = new BufferedOutputStream(new FileOutputStream( out_path ));
@@ -270,18 +754,19 @@ public class DataDownloader extends Thread
 			return -1;
 		};
 
+		// Checksum the data while it is written instead of reading the file again after
+		CRC32 crc = new CRC32();
 		int total_read = 0;
 		try {
 			int len = zip.read(buf);
 			while (len >= 0){
-				if (len > 0) out.write(buf, 0, len);
+				if (len > 0){
+					out.write(buf, 0, len);
+					crc.update(buf, 0, len);
+				}
 				total_read += len;
-				sendMessage(total_read, total_size, mes);
+				sendProgress(total_read, total_size, mes);
 				len = zip.read(buf);
-				try{
-					Thread.sleep(1);
-				} catch (InterruptedException e){
-				}
 			}
 			out.flush();
 			out.close();
@@ -290,8 +775,22 @@ public class DataDownloader extends Thread
 			return -1;
 		}
 
+		// The crc is known after the entry is read when the archive was streamed
+		if (entry.getCrc() != -1 && crc.getValue() != entry.getCrc()){
+			(new File( out_path )).delete();
+			sendMessage(-2, 0, "CRC check failed");
+			return -1;
+		}
+
 		return 0;
 	}
+
+	private synchronized void sendProgress(int current, int total, String str){
+		long now = SystemClock.uptimeMillis();
+		if (now - last_progress_time < PROGRESS_INTERVAL_MS && current != total) return;
+		last_progress_time = now;
+		sendMessage(current, total, str);
+	}
         
 	public void sendMessage(int current, int total, String str){
 		Message msg = handler.obtainMessage();
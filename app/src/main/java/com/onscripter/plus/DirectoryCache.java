@@ -0,0 +1,252 @@
+package com.onscripter.plus;
+
+import java.io.File;
+import java.text.CollationKey;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.onscripter.plus.FileSystemAdapter.FileListItem;
+import com.onscripter.plus.FileSystemAdapter.LIST_ITEM_TYPE;
+
+/**
+ * Keeps the sorted items of the last folders listed so going back to them
+ * does not list the folder again. Shared by all the file lists in the app,
+ * a folder is kept once for each way it is listed (only folders, hidden
+ * files) so the launcher and the folder browser do not replace each other.
+ *
+ * A folder is only used from the cache if its last modified time has not
+ * changed. Sd cards only store the time to 2 seconds, so a folder listed
+ * within 2 seconds of being changed is not cached. The least recently used
+ * folders are removed when there are too many or their items take too much
+ * memory, counted in bytes from the names, paths and sort keys they hold.
+ * @author Matthew Ng
+ *
+ */
+final class DirectoryCache {
+    private static final int MAX_DIRECTORIES = 32;
+
+    /* A sixteenth of the heap, at most 8MB */
+    static final long MAX_BYTES = Math.min(Runtime.getRuntime().maxMemory() / 16, 8 * 1024 * 1024);
+
+    /* Rough sizes of what an item holds on the heap */
+    private static final int OBJECT_BYTES = 16;
+    private static final int ARRAY_BYTES = 16;
+    private static final int ITEM_BYTES = OBJECT_BYTES + 40;
+    private static final int FILE_BYTES = OBJECT_BYTES + 8;
+    private static final int STRING_BYTES = OBJECT_BYTES + 8 + ARRAY_BYTES;
+    private static final int COLLATION_KEY_BYTES = OBJECT_BYTES + 8 + ARRAY_BYTES;
+
+    private static final int ONLY_FOLDERS = 1;
+    private static final int SHOW_HIDDEN = 1 << 1;
+
+    /* Keyed by the flags then the path */
+    private static final LinkedHashMap<String, Snapshot> sCache =
+            new LinkedHashMap<String, Snapshot>(MAX_DIRECTORIES, 0.75f, true);
+    private static long sBytes;
+
+    /**
+     * The items of a folder with their sort keys, folders first and sorted by name. These are
+     * never changed so make a copy of each item to use it in a list
+     */
+    static final class Snapshot {
+        private final long mLastModified;
+        private final boolean mOnlyFolders;
+        private final boolean mShowHidden;
+        private final FileListItem[] mItems;
+        private final long mBytes;
+
+        // Types last parsed for the items by each kind of parser
+        private final HashMap<Class<?>, LIST_ITEM_TYPE[]> mParsedTypes;
+
+        private Snapshot(long lastModified, boolean onlyFolders,
+                boolean showHidden, FileListItem[] items, long bytes) {
+            mLastModified = lastModified;
+            mOnlyFolders = onlyFolders;
+            mShowHidden = showHidden;
+            mItems = items;
+            mBytes = bytes;
+            mParsedTypes = new HashMap<Class<?>, LIST_ITEM_TYPE[]>();
+        }
+
+        public int size() {
+            return mItems.length;
+        }
+
+        public boolean isOnlyFolders() {
+            return mOnlyFolders;
+        }
+
+        public boolean isShowingHidden() {
+            return mShowHidden;
+        }
+
+        /**
+         * Makes a new item for the list, with the type last parsed if there is one
+         * @param index
+         * @param parser
+         * @return
+         */
+        public FileListItem newItem(int index, FileSystemAdapter.CustomFileTypeParser parser) {
+            LIST_ITEM_TYPE type = mItems[index].getType();
+            if (parser != null) {
+                synchronized (this) {
+                    LIST_ITEM_TYPE[] types = mParsedTypes.get(parser.getClass());
+                    if (types != null) {
+                        type = types[index];
+                    }
+                }
+            }
+            return new FileListItem(type, mItems[index]);
+        }
+
+        /**
+         * Keeps the types the parser found for each item
+         * @param parser
+         * @param types in the same order as the items
+         */
+        public synchronized void setParsedTypes(FileSystemAdapter.CustomFileTypeParser parser,
+                LIST_ITEM_TYPE[] types) {
+            if (parser != null && types.length == mItems.length) {
+                mParsedTypes.put(parser.getClass(), types);
+            }
+        }
+    }
+
+    private DirectoryCache() {}
+
+    /**
+     * Gets the folder's items if the folder has not changed since it was listed
+     * @param directory
+     * @param onlyFolders
+     * @param showHidden
+     * @return null if not cached or out of date
+     */
+    public static Snapshot get(File directory, boolean onlyFolders, boolean showHidden) {
+        String key = key(directory, onlyFolders, showHidden);
+        synchronized (sCache) {
+            Snapshot snapshot = sCache.get(key);
+            if (snapshot == null) {
+                return null;
+            }
+            if (snapshot.mLastModified != directory.lastModified()) {
+                remove(key);
+                return null;
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Caches the items of the folder
+     * @param directory
+     * @param lastModified of the folder from before it was listed
+     * @param onlyFolders
+     * @param showHidden
+     * @param items folders and then files, each sorted by name as FileSort
+     *      does in SORT_MODE.NAME, they are copied
+     * @return the snapshot or null if it was not cached
+     */
+    public static Snapshot put(File directory, long lastModified, boolean onlyFolders,
+            boolean showHidden, List<FileListItem> items) {
+        if (lastModified == 0 || System.currentTimeMillis() - lastModified < GameFolder.MODIFIED_TIME_RESOLUTION_MS) {
+            return null;
+        }
+        FileListItem[] copy = new FileListItem[items.size()];
+        long bytes = ARRAY_BYTES + STRING_BYTES + 2L * directory.getPath().length();
+        int i = 0;
+        for (FileListItem item : items) {
+            copy[i++] = new FileListItem(item.getType(), item);
+            bytes += 4 + getItemBytes(item);
+            if (bytes > MAX_BYTES) {
+                return null;
+            }
+        }
+        String key = key(directory, onlyFolders, showHidden);
+        Snapshot snapshot = new Snapshot(lastModified, onlyFolders, showHidden, copy, bytes);
+        synchronized (sCache) {
+            remove(key);
+            sCache.put(key, snapshot);
+            sBytes += bytes;
+
+            // Remove the least recently used till under both limits
+            Iterator<Map.Entry<String, Snapshot>> it = sCache.entrySet().iterator();
+            while (it.hasNext() && (sCache.size() > MAX_DIRECTORIES || sBytes > MAX_BYTES)) {
+                Snapshot oldest = it.next().getValue();
+                if (oldest == snapshot) {
+                    break;
+                }
+                sBytes -= oldest.mBytes;
+                it.remove();
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Removes the folder so it is listed again next time
+     * @param directory
+     */
+    public static void invalidate(File directory) {
+        synchronized (sCache) {
+            for (int flags = 0; flags <= (ONLY_FOLDERS | SHOW_HIDDEN); flags++) {
+                remove(key(directory, flags));
+            }
+        }
+    }
+
+    public static void clear() {
+        synchronized (sCache) {
+            sCache.clear();
+            sBytes = 0;
+        }
+    }
+
+    /**
+     * Bytes held by all the cached folders
+     * @return
+     */
+    static long getCachedBytes() {
+        synchronized (sCache) {
+            return sBytes;
+        }
+    }
+
+    /**
+     * About how many bytes the item and the strings, file and sort key it
+     * holds take on the heap
+     * @param item
+     * @return
+     */
+    static long getItemBytes(FileListItem item) {
+        long bytes = ITEM_BYTES + STRING_BYTES + 2L * item.getName().length();
+        File file = item.getFile();
+        if (file != null) {
+            bytes += FILE_BYTES + STRING_BYTES + 2L * file.getPath().length();
+        }
+        CollationKey key = item.getNameKey();
+        if (key != null) {
+            // The key keeps the name it was made from as well as its bytes
+            bytes += COLLATION_KEY_BYTES + key.toByteArray().length
+                    + STRING_BYTES + 2L * key.getSourceString().length();
+        }
+        return bytes;
+    }
+
+    private static String key(File directory, boolean onlyFolders, boolean showHidden) {
+        return key(directory, (onlyFolders ? ONLY_FOLDERS : 0) | (showHidden ? SHOW_HIDDEN : 0));
+    }
+
+    private static String key(File directory, int flags) {
+        return flags + directory.getPath();
+    }
+
+    private static void remove(String key) {
+        Snapshot old = sCache.remove(key);
+        if (old != null) {
+            sBytes -= old.mBytes;
+        }
+    }
+}
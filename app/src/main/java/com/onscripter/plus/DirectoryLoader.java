@@ -0,0 +1,340 @@
+package com.onscripter.plus;
+
+import java.io.File;
+import java.text.CollationKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.onscripter.plus.FileSystemAdapter.CustomFileTypeParser;
+import com.onscripter.plus.FileSystemAdapter.FileListItem;
+import com.onscripter.plus.FileSystemAdapter.FileSort;
+import com.onscripter.plus.FileSystemAdapter.LIST_ITEM_TYPE;
+
+/**
+ * Lists a folder on a background thread and hands the items back on the UI
+ * thread in batches, so a large folder on a slow sd card does not freeze the
+ * list. Names are listed and sorted by collation key first so batches
+ * arrive in about the order they are shown, each item starts as a file or
+ * folder and the custom type of every item is parsed after all of them are
+ * shown.
+ *
+ * Folders are listed one at a time on one thread and types are parsed on
+ * another, so opening a folder does not wait behind the games of the last
+ * one being parsed. A load that is cancelled stops on the next item and
+ * nothing more of it is delivered.
+ * @author Matthew Ng
+ *
+ */
+final class DirectoryLoader {
+    private static final int BATCH_SIZE = 64;
+    private static final long BATCH_INTERVAL_MS = 100;
+
+    private static final ExecutorService sListExecutor = newExecutor("DirectoryLoader-list");
+    private static final ExecutorService sParseExecutor = newExecutor("DirectoryLoader-parse");
+    private static Handler sHandler;
+
+    /**
+     * All called on the UI thread
+     */
+    interface Callback {
+        /**
+         * The folder could be listed, items will follow
+         * @param load
+         */
+        public void onLoadStarted(Load load);
+
+        /**
+         * The next items in the folder in sorted order
+         * @param load
+         * @param items
+         */
+        public void onItemsLoaded(Load load, List<FileListItem> items);
+
+        /**
+         * The custom type of these items was parsed
+         * @param load
+         * @param items
+         * @param types new type of each item
+         */
+        public void onTypesParsed(Load load, List<FileListItem> items, List<LIST_ITEM_TYPE> types);
+
+        /**
+         * All items and their types are loaded
+         * @param load
+         */
+        public void onLoadFinished(Load load);
+
+        /**
+         * The folder could not be listed (permissions)
+         * @param load
+         */
+        public void onLoadFailed(Load load);
+    }
+
+    private DirectoryLoader() {}
+
+    private static ExecutorService newExecutor(final String name) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts listing the folder in the background
+     * @param directory
+     * @param onlyFolders
+     * @param showHidden
+     * @param parser parses the custom type of each item on the background
+     *          thread, can be null
+     * @param callback
+     * @return the load, cancel it when the folder is no longer needed
+     */
+    public static Load load(File directory, boolean onlyFolders, boolean showHidden,
+            CustomFileTypeParser parser, Callback callback) {
+        synchronized (DirectoryLoader.class) {
+            if (sHandler == null) {
+                sHandler = new Handler(Looper.getMainLooper());
+            }
+        }
+        Load load = new Load(directory, onlyFolders, showHidden, parser, callback, null);
+        sListExecutor.execute(load);
+        return load;
+    }
+
+    /**
+     * Only parses the custom types of items already shown, from the cache or
+     * added after the folder was listed, the folder is not listed again
+     * @param directory
+     * @param items in the snapshot's order if there is one
+     * @param snapshot the items came from, keeps the parsed types, can be null
+     * @param parser
+     * @param callback
+     * @return the load, cancel it when the folder is no longer needed
+     */
+    public static Load parse(File directory, List<FileListItem> items, DirectoryCache.Snapshot snapshot,
+            CustomFileTypeParser parser, Callback callback) {
+        synchronized (DirectoryLoader.class) {
+            if (sHandler == null) {
+                sHandler = new Handler(Looper.getMainLooper());
+            }
+        }
+        Load load = new Load(directory, snapshot != null && snapshot.isOnlyFolders(),
+                snapshot != null && snapshot.isShowingHidden(), parser, callback, snapshot);
+        load.parseLater(items);
+        return load;
+    }
+
+    public static final class Load implements Runnable {
+        private final File mDirectory;
+        private final boolean mOnlyFolders;
+        private final boolean mShowHidden;
+        private final CustomFileTypeParser mParser;
+        private final Callback mCallback;
+        private DirectoryCache.Snapshot mSnapshot;
+        private volatile boolean mCancelled;
+
+        private Load(File directory, boolean onlyFolders, boolean showHidden,
+                CustomFileTypeParser parser, Callback callback, DirectoryCache.Snapshot snapshot) {
+            mDirectory = directory;
+            mOnlyFolders = onlyFolders;
+            mShowHidden = showHidden;
+            mParser = parser;
+            mCallback = callback;
+            mSnapshot = snapshot;
+        }
+
+        public File getDirectory() {
+            return mDirectory;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Stops the load, call on the UI thread. Nothing is delivered after.
+         */
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            List<FileListItem> all = list();
+            if (all != null) {
+                parseLater(all);
+            }
+        }
+
+        // Parses the types on the other thread, so the next folder can be listed
+        private void parseLater(final List<FileListItem> all) {
+            if (mParser == null) {
+                postFinished();
+                return;
+            }
+            sParseExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        parseTypes(all);
+                    }
+                }
+            });
+        }
+
+        private void parseTypes(List<FileListItem> all) {
+            LIST_ITEM_TYPE[] parsed = new LIST_ITEM_TYPE[all.size()];
+            ArrayList<FileListItem> items = new ArrayList<FileListItem>();
+            ArrayList<LIST_ITEM_TYPE> types = new ArrayList<LIST_ITEM_TYPE>();
+            long lastPost = SystemClock.uptimeMillis();
+            for (int i = 0; i < parsed.length; i++) {
+                if (mCancelled) {
+                    return;
+                }
+                FileListItem item = all.get(i);
+                LIST_ITEM_TYPE type = mParser.onFileTypeParse(item.getFile());
+                if (type == null) {
+                    type = item.getType();
+                }
+                parsed[i] = type;
+                if (type != item.getType()) {
+                    items.add(item);
+                    types.add(type);
+                }
+                if (!items.isEmpty() && (items.size() >= BATCH_SIZE
+                        || SystemClock.uptimeMillis() - lastPost >= BATCH_INTERVAL_MS)) {
+                    postTypes(items, types);
+                    items = new ArrayList<FileListItem>();
+                    types = new ArrayList<LIST_ITEM_TYPE>();
+                    lastPost = SystemClock.uptimeMillis();
+                }
+            }
+            if (!items.isEmpty()) {
+                postTypes(items, types);
+            }
+            if (mSnapshot != null) {
+                mSnapshot.setParsedTypes(mParser, parsed);
+            }
+            postFinished();
+        }
+
+        private void postFinished() {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onLoadFinished(Load.this);
+                }
+            });
+        }
+
+        /**
+         * Lists the folder and sends its items to the list in batches
+         * @return the items or null if failed or cancelled
+         */
+        private List<FileListItem> list() {
+            long lastModified = mDirectory.lastModified();
+            String[] names = mDirectory.list();
+            if (names == null) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onLoadFailed(Load.this);
+                    }
+                });
+                return null;
+            }
+            CollationKey[] keys = FileSort.getSortedCollationKeys(names);
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onLoadStarted(Load.this);
+                }
+            });
+
+            // Show the files and folders first
+            ArrayList<FileListItem> all = new ArrayList<FileListItem>(names.length);
+            ArrayList<FileListItem> files = new ArrayList<FileListItem>();
+            ArrayList<FileListItem> batch = new ArrayList<FileListItem>();
+            long lastPost = SystemClock.uptimeMillis();
+            for (CollationKey key : keys) {
+                if (mCancelled) {
+                    return null;
+                }
+                File file = new File(mDirectory, key.getSourceString());
+                boolean isDirectory = file.isDirectory();
+                if (!isDirectory && (mOnlyFolders || file.isHidden() && !mShowHidden)) {
+                    continue;
+                }
+                FileListItem item = new FileListItem(isDirectory ? LIST_ITEM_TYPE.FOLDER
+                        : LIST_ITEM_TYPE.FILE, file, key);
+                batch.add(item);
+                (isDirectory ? all : files).add(item);
+                if (batch.size() >= BATCH_SIZE || SystemClock.uptimeMillis() - lastPost >= BATCH_INTERVAL_MS) {
+                    postItems(batch);
+                    batch = new ArrayList<FileListItem>();
+                    lastPost = SystemClock.uptimeMillis();
+                }
+            }
+            if (!batch.isEmpty()) {
+                postItems(batch);
+            }
+
+            // Folders and then files, as the list sorts them by name
+            all.addAll(files);
+            mSnapshot = DirectoryCache.put(mDirectory, lastModified, mOnlyFolders, mShowHidden, all);
+            return all;
+        }
+
+        private void postItems(final List<FileListItem> items) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onItemsLoaded(Load.this, items);
+                }
+            });
+        }
+
+        private void postTypes(final List<FileListItem> items, final List<LIST_ITEM_TYPE> types) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onTypesParsed(Load.this, items, types);
+                }
+            });
+        }
+
+        // Drops anything posted before the load was cancelled
+        private void post(final Runnable r) {
+            sHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        r.run();
+                    }
+                }
+            });
+        }
+    }
+}
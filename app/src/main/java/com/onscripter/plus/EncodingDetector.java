@@ -0,0 +1,332 @@
+package com.onscripter.plus;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Guesses if text is Shift-JIS, EUC-KR, UTF-8 or GBK. Every byte is looked
+ * up once in a table and moves all four decoders at the same time, so the
+ * text is only read once for all the encodings. Text can be given in chunks
+ * as it is read from a file.
+ *
+ * An encoding is dropped once it sees a byte sequence it cannot have. The
+ * ones left are scored by how many of their characters are in the common
+ * ranges of the language (kana and level 1/2 kanji, hangul, GB2312), on a
+ * tie the order of ENCODINGS wins.
+ * @author Matthew Ng
+ *
+ */
+public final class EncodingDetector {
+    public static final String SHIFT_JIS = "SHIFT_JIS";
+    public static final String EUC_KR = "EUC-KR";
+    public static final String UTF_8 = "UTF-8";
+    public static final String GBK = "GBK";
+
+    /* In order of preference when they score the same */
+    private static final String[] ENCODINGS = { SHIFT_JIS, EUC_KR, UTF_8, GBK };
+    private static final int SJIS = 0;
+    private static final int KR = 1;
+    private static final int UTF8 = 2;
+    private static final int GB = 3;
+
+    /* Flags of what each byte can be */
+    private static final int SJIS_LEAD = 1;
+    private static final int SJIS_TRAIL = 1 << 1;
+    private static final int SJIS_KANA = 1 << 2;        // Half width katakana, 1 byte
+    private static final int SJIS_COMMON_LEAD = 1 << 3;
+    private static final int KR_BYTE = 1 << 4;
+    private static final int KR_HANGUL_LEAD = 1 << 5;
+    private static final int GB_LEAD = 1 << 6;
+    private static final int GB_TRAIL = 1 << 7;
+    private static final int GB2312_LEAD = 1 << 8;
+    private static final int UTF8_TRAIL = 1 << 9;
+
+    private static final int[] sFlags = new int[256];
+
+    /* Number of bytes of the UTF-8 character started by each byte, 0 if it cannot start one */
+    private static final byte[] sUTF8Length = new byte[256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int flags = 0;
+            if (b >= 0x81 && b <= 0x9F || b >= 0xE0 && b <= 0xFC) {
+                flags |= SJIS_LEAD;
+            }
+            if (b >= 0x40 && b <= 0x7E || b >= 0x80 && b <= 0xFC) {
+                flags |= SJIS_TRAIL;
+            }
+            if (b >= 0xA1 && b <= 0xDF) {
+                flags |= SJIS_KANA;
+            }
+            // Symbols, kana, then level 1 and 2 kanji
+            if (b >= 0x81 && b <= 0x84 || b >= 0x88 && b <= 0x9F || b >= 0xE0 && b <= 0xEA) {
+                flags |= SJIS_COMMON_LEAD;
+            }
+            if (b >= 0xA1 && b <= 0xFE) {
+                flags |= KR_BYTE;
+            }
+            if (b >= 0xB0 && b <= 0xC8) {
+                flags |= KR_HANGUL_LEAD;
+            }
+            if (b >= 0x81 && b <= 0xFE) {
+                flags |= GB_LEAD;
+            }
+            if (b >= 0x40 && b <= 0x7E || b >= 0x80 && b <= 0xFE) {
+                flags |= GB_TRAIL;
+            }
+            if (b >= 0xA1 && b <= 0xF7) {
+                flags |= GB2312_LEAD;
+            }
+            if (b >= 0x80 && b <= 0xBF) {
+                flags |= UTF8_TRAIL;
+            }
+            sFlags[b] = flags;
+
+            if (b < 0x80) {
+                sUTF8Length[b] = 1;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                sUTF8Length[b] = 2;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                sUTF8Length[b] = 3;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                sUTF8Length[b] = 4;
+            }
+        }
+    }
+
+    public static final class Result {
+        private final String mCharset;
+        private final float mConfidence;
+
+        Result(String charset, float confidence) {
+            mCharset = charset;
+            mConfidence = confidence;
+        }
+
+        /**
+         * Name of the encoding, null if none of them can decode the text
+         * @return
+         */
+        public String getCharset() {
+            return mCharset;
+        }
+
+        /**
+         * From 0 to 1, lower when other encodings scored close to it
+         * @return
+         */
+        public float getConfidence() {
+            return mConfidence;
+        }
+
+        /**
+         * Decodes the text with this encoding
+         * @param data
+         * @param offset
+         * @param length
+         * @return null if there is no encoding
+         */
+        public String decode(byte[] data, int offset, int length) {
+            if (mCharset == null) {
+                return null;
+            }
+            try {
+                return new String(data, offset, length, mCharset);
+            } catch (UnsupportedEncodingException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    }
+
+    private final boolean[] mValid = new boolean[ENCODINGS.length];
+    private final int[] mChars = new int[ENCODINGS.length];
+    private final int[] mCommon = new int[ENCODINGS.length];
+
+    // Lead byte waiting for its trail byte, -1 if none
+    private int mSjisLead;
+    private int mKrLead;
+    private int mGbLead;
+
+    // Bytes left of the current UTF-8 character
+    private int mUtf8Remaining;
+
+    public EncodingDetector() {
+        reset();
+    }
+
+    public void reset() {
+        for (int i = 0; i < ENCODINGS.length; i++) {
+            mValid[i] = true;
+            mChars[i] = 0;
+            mCommon[i] = 0;
+        }
+        mSjisLead = -1;
+        mKrLead = -1;
+        mGbLead = -1;
+        mUtf8Remaining = 0;
+    }
+
+    /**
+     * Detects the encoding of the whole text at once
+     * @param data
+     * @param offset
+     * @param length
+     * @return
+     */
+    public static Result detect(byte[] data, int offset, int length) {
+        EncodingDetector detector = new EncodingDetector();
+        detector.update(data, offset, length);
+        return detector.getResult();
+    }
+
+    /**
+     * Adds the next chunk of text, characters may be split between chunks
+     * @param data
+     * @param offset
+     * @param length
+     */
+    public void update(byte[] data, int offset, int length) {
+        final int[] table = sFlags;
+        final boolean[] valid = mValid;
+        final int[] chars = mChars;
+        final int[] common = mCommon;
+        int sjisLead = mSjisLead;
+        int krLead = mKrLead;
+        int gbLead = mGbLead;
+        int utf8Remaining = mUtf8Remaining;
+        final int end = offset + length;
+
+        for (int i = offset; i < end; i++) {
+            final int b = data[i] & 0xFF;
+            if (b < 0x80 && sjisLead < 0 && krLead < 0 && gbLead < 0 && utf8Remaining == 0) {
+                continue;
+            }
+            final int flags = table[b];
+
+            // Shift-JIS
+            if (sjisLead >= 0) {
+                if ((flags & SJIS_TRAIL) == 0) {
+                    valid[SJIS] = false;
+                } else if ((table[sjisLead] & SJIS_COMMON_LEAD) != 0) {
+                    common[SJIS]++;
+                }
+                sjisLead = -1;
+            } else if ((flags & SJIS_LEAD) != 0) {
+                sjisLead = b;
+                chars[SJIS]++;
+            } else if ((flags & SJIS_KANA) != 0) {
+                chars[SJIS]++;
+            } else if (b >= 0x80) {
+                valid[SJIS] = false;
+            }
+
+            // EUC-KR
+            if (krLead >= 0) {
+                if ((flags & KR_BYTE) == 0) {
+                    valid[KR] = false;
+                } else if ((table[krLead] & KR_HANGUL_LEAD) != 0) {
+                    common[KR]++;
+                }
+                krLead = -1;
+            } else if ((flags & KR_BYTE) != 0) {
+                krLead = b;
+                chars[KR]++;
+            } else if (b >= 0x80) {
+                valid[KR] = false;
+            }
+
+            // GBK
+            if (gbLead >= 0) {
+                if ((flags & GB_TRAIL) == 0) {
+                    valid[GB] = false;
+                } else if ((table[gbLead] & GB2312_LEAD) != 0 && (flags & KR_BYTE) != 0) {
+                    // GB2312 has the same trail bytes as EUC-KR
+                    common[GB]++;
+                }
+                gbLead = -1;
+            } else if ((flags & GB_LEAD) != 0) {
+                gbLead = b;
+                chars[GB]++;
+            } else if (b >= 0x80) {
+                valid[GB] = false;
+            }
+
+            // UTF-8, every valid character is counted as common
+            if (utf8Remaining > 0) {
+                if ((flags & UTF8_TRAIL) == 0) {
+                    valid[UTF8] = false;
+                    utf8Remaining = 0;
+                } else if (--utf8Remaining == 0) {
+                    common[UTF8]++;
+                }
+            } else if (b >= 0x80) {
+                int len = sUTF8Length[b];
+                if (len == 0) {
+                    valid[UTF8] = false;
+                } else {
+                    utf8Remaining = len - 1;
+                    chars[UTF8]++;
+                }
+            }
+        }
+        mSjisLead = sjisLead;
+        mKrLead = krLead;
+        mGbLead = gbLead;
+        mUtf8Remaining = utf8Remaining;
+    }
+
+    /**
+     * Picks the encoding from the text given so far. Text that is only ascii
+     * is UTF-8 with full confidence.
+     * @return
+     */
+    public Result getResult() {
+        return getResult(false);
+    }
+
+    /**
+     * Picks the encoding from the text given so far
+     * @param prefix is true if the text continues past what was given, so
+     *        an encoding that is in the middle of its last character is kept
+     * @return
+     */
+    public Result getResult(boolean prefix) {
+        if (mValid[UTF8] && mChars[UTF8] == 0) {
+            return new Result(UTF_8, 1);
+        }
+        float best = -1;
+        float second = -1;
+        int bestIndex = -1;
+        for (int i = 0; i < ENCODINGS.length; i++) {
+            if (!mValid[i] || !prefix && !isComplete(i)) {
+                continue;
+            }
+            float score = mChars[i] == 0 ? 1 : (float) mCommon[i] / mChars[i];
+            if (score > best) {
+                second = best;
+                best = score;
+                bestIndex = i;
+            } else if (score > second) {
+                second = score;
+            }
+        }
+        if (bestIndex < 0) {
+            return new Result(null, 0);
+        }
+        return new Result(ENCODINGS[bestIndex], Math.max(0, best - Math.max(0, second) / 2));
+    }
+
+    // Not cut off in the middle of a character
+    private boolean isComplete(int index) {
+        switch (index) {
+        case SJIS:
+            return mSjisLead < 0;
+        case KR:
+            return mKrLead < 0;
+        case GB:
+            return mGbLead < 0;
+        default:
+            return mUtf8Remaining == 0;
+        }
+    }
+}
@@ -530,7 +530,7 @@ public final class ExtSDCardFix {
         @Override
         public boolean accept(File pathname) {
             final String[] acceptable = {
-                VNPreferences.PREF_FILE_NAME, "envdata", "gloval.sav", "kidoku.dat",
+                VNPreferences.PREF_FILE_NAME, VNPreferences.PREF_BINARY_FILE_NAME, "envdata", "gloval.sav", "kidoku.dat",
                 "stderr.txt", "stdout.txt"
             };
             String name = pathname.getName();
@@ -558,6 +558,7 @@ public final class ExtSDCardFix {
     /* Option 1: Move all games in current folder to another folder to internal storage */
     private void option1CopyGameFiles() {
         final CopyToInternalStorageRoutine routine = new CopyToInternalStorageRoutine(mActivity, null, null, CopyGameFileFF);
+        routine.setIncremental(true);
         routine.setOnCopyRoutineFinished(new OnCopyRoutineFinished() {
             @Override
             public void onSuccess() {
@@ -743,12 +744,18 @@ public final class ExtSDCardFix {
     private void copyGameFiles(CopyFileInfo[] info, final FileFilter fileFilter,
             final FileFilter folderFilter, final FileFilter overwriteFilter,
             final OnCopyRoutineFinished listener) {
-        copyGameFiles(info, fileFilter, folderFilter, overwriteFilter, true, listener);
+        copyGameFiles(info, fileFilter, folderFilter, overwriteFilter, true, false, listener);
     }
     private void copyGameFiles(CopyFileInfo[] info, final FileFilter fileFilter,
             final FileFilter folderFilter, final FileFilter overwriteFilter,
             final boolean allowUserChoice, final OnCopyRoutineFinished listener) {
-        new CopyFilesDialogTask(mActivity, new CopyFilesDialogListener() {
+        copyGameFiles(info, fileFilter, folderFilter, overwriteFilter, allowUserChoice, false, listener);
+    }
+    private void copyGameFiles(CopyFileInfo[] info, final FileFilter fileFilter,
+            final FileFilter folderFilter, final FileFilter overwriteFilter,
+            final boolean allowUserChoice, final boolean incremental,
+            final OnCopyRoutineFinished listener) {
+        CopyFilesDialogTask task = new CopyFilesDialogTask(mActivity, new CopyFilesDialogListener() {
             @Override
             public void onCopyCompleted(Result resultCode) {
                 switch(resultCode) {
@@ -772,7 +779,9 @@ public final class ExtSDCardFix {
                     break;
                 }
             }
-        }, fileFilter, folderFilter, overwriteFilter, allowUserChoice).executeCopy(info);
+        }, fileFilter, folderFilter, overwriteFilter, allowUserChoice);
+        task.setIncremental(incremental);
+        task.executeCopy(info);
     }
 
     private abstract class OnCopyRoutineFinished {
@@ -782,6 +791,7 @@ public final class ExtSDCardFix {
 
     private class CopyToInternalStorageRoutine extends FolderBrowserDialogWrapper {
         private OnCopyRoutineFinished mListener;
+        private boolean mIncremental;
         public CopyToInternalStorageRoutine(Context context) {
             this(context, null, null, null);
         }
@@ -803,7 +813,8 @@ public final class ExtSDCardFix {
                     for (int i = 0; i < info.length; i++) {
                         info[i] = new CopyFileInfo(games[i].getAbsolutePath(), result + "/" + games[i].getName());
                     }
-                    copyGameFiles(info, fileFilter, folderFilter, overwriteFilter, mListener);
+                    copyGameFiles(info, fileFilter, folderFilter, overwriteFilter, true,
+                            mIncremental, mListener);
                 }
             });
             setDialog(builder.create());
@@ -813,6 +824,15 @@ public final class ExtSDCardFix {
             mListener = listener;
         }
 
+        /**
+         * Only copy what is missing or changed and continue a copy that was
+         * cancelled before
+         * @param incremental
+         */
+        public void setIncremental(boolean incremental) {
+            mIncremental = incremental;
+        }
+
         public void execute() {
             show(Environment2.getInternalStorageDirectory().getAbsolutePath());
         }
@@ -0,0 +1,156 @@
+package com.onscripter.plus;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.os.SystemClock;
+
+/**
+ * Copies files with FileChannel.transferTo so the kernel can move the data
+ * without passing it through the Java heap. If the file system does not
+ * support it, the data is copied through a large direct buffer instead.
+ *
+ * Progress is reported at most once per interval rather than per chunk.
+ * An instance reuses its buffer and is not thread safe; use one per thread.
+ * @author Matthew Ng
+ *
+ */
+public class FileCopier {
+    public static final long DEFAULT_PROGRESS_INTERVAL_MS = 100;
+
+    // Copy in slices so that we can cancel and report progress in between
+    private static final long TRANSFER_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    public interface CopyListener {
+        /**
+         * Called on the copying thread with the bytes copied of the current file
+         * @param copiedBytes
+         * @param totalBytes
+         */
+        public void onCopyProgress(long copiedBytes, long totalBytes);
+
+        public boolean isCopyCancelled();
+    }
+
+    private final long mProgressInterval;
+    private ByteBuffer mBuffer;
+
+    public FileCopier() {
+        this(DEFAULT_PROGRESS_INTERVAL_MS);
+    }
+
+    public FileCopier(long progressIntervalMs) {
+        mProgressInterval = progressIntervalMs;
+    }
+
+    /**
+     * Copies the source file to the destination, replacing it if it exists
+     * @param source
+     * @param destination
+     * @param listener can be null
+     * @return false if cancelled by the listener
+     * @throws IOException
+     */
+    public boolean copy(File source, File destination, CopyListener listener) throws IOException {
+        return copy(source, destination, false, listener);
+    }
+
+    /**
+     * Copies the source file to the destination, replacing it if it exists
+     * @param source
+     * @param destination
+     * @param sync waits for the data to be written to storage before returning
+     * @param listener can be null
+     * @return false if cancelled by the listener
+     * @throws IOException
+     */
+    public boolean copy(File source, File destination, boolean sync, CopyListener listener) throws IOException {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(destination);
+            FileChannel inChannel = in.getChannel();
+            if (!transfer(inChannel, out.getChannel(), 0, inChannel.size(), listener)) {
+                return false;
+            }
+            if (sync) {
+                out.getFD().sync();
+            }
+            return true;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {}
+            }
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    private boolean transfer(FileChannel in, FileChannel out, long position, long total,
+            CopyListener listener) throws IOException {
+        long lastReport = SystemClock.uptimeMillis();
+        boolean transferSupported = true;
+        while (position < total) {
+            if (listener != null && listener.isCopyCancelled()) {
+                return false;
+            }
+            long copied = 0;
+            if (transferSupported) {
+                try {
+                    copied = in.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, total - position), out);
+                } catch (IOException e) {
+                    // Some file systems (e.g. fuse on older devices) do not support this
+                    transferSupported = false;
+                }
+                if (copied <= 0) {
+                    transferSupported = false;
+                    out.position(position);
+                }
+            }
+            if (!transferSupported) {
+                copied = copyBuffered(in, out, position);
+                if (copied < 0) {
+                    break;  // File shrunk while copying
+                }
+            }
+            position += copied;
+
+            if (listener != null) {
+                long now = SystemClock.uptimeMillis();
+                if (now - lastReport >= mProgressInterval || position >= total) {
+                    lastReport = now;
+                    listener.onCopyProgress(position, total);
+                }
+            }
+        }
+        if (listener != null && total == 0) {
+            listener.onCopyProgress(0, 0);
+        }
+        return true;
+    }
+
+    private long copyBuffered(FileChannel in, FileChannel out, long position) throws IOException {
+        if (mBuffer == null) {
+            mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        mBuffer.clear();
+        int read = in.read(mBuffer, position);
+        if (read <= 0) {
+            return -1;
+        }
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            out.write(mBuffer);
+        }
+        return read;
+    }
+}
@@ -1,11 +1,19 @@
 package com.onscripter.plus;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileNotFoundException;
+import java.text.CollationKey;
+import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.app.Activity;
 import android.content.Context;
@@ -16,19 +24,28 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.onscripter.plus.DirectoryLoader.Load;
 import com.onscripter.plus.FileSystemAdapter.FileListItem;
 
-public class FileSystemAdapter extends ViewAdapterBase<FileListItem> {
+public class FileSystemAdapter extends ViewAdapterBase<FileListItem> implements DirectoryLoader.Callback {
 
     private File mCurrentDirectory;
     private boolean mShowHidden;
     private boolean mOnlyShowFolders;
     private boolean mShowBackItem;
-    private FileListItem[] mFileList;
+    private final ArrayList<FileListItem> mFileList;
+    private Load mLoad;
+    private File mShownDirectory;
+    // Changes seen while the current folder was loading, applied once it is done
+    private final HashSet<String> mPendingAdded = new HashSet<String>();
+    private final HashSet<String> mPendingRemoved = new HashSet<String>();
+    private final HashSet<String> mPendingChanged = new HashSet<String>();
     private final FileSort mFileSorter = new FileSort();
+    private final HashMap<String, Long> mLastPlayedTimes = new HashMap<String, Long>();
     private TextView mBindedPath;
     private CustomFileTypeParser mTypeParser;
     private final ArrayList<File> mLowerBoundFiles;
+    private OnDirectoryChangeListener mDirectoryChangeListener;
 
     private static String BackString;
     private static FileListItem BackFileListItem;
@@ -45,25 +62,82 @@ public class FileSystemAdapter extends ViewAdapterBase<FileListItem> {
         FILE, FOLDER, BACK
     };
 
+    /**
+     * Order of the items after folders, ties are sorted by name
+     */
+    public static enum SORT_MODE {
+        NAME, CAPTION, LAST_PLAYED
+    };
+
+    /**
+     * Parses the type of each item in the folder, this is called on a
+     * background thread after the items are shown
+     */
     interface CustomFileTypeParser {
         public LIST_ITEM_TYPE onFileTypeParse(File file);
     }
 
+    public interface OnDirectoryChangeListener {
+        /**
+         * A folder is about to be loaded, called before any of its items are
+         * parsed
+         * @param directory
+         */
+        public void onDirectoryChanging(File directory);
+
+        /**
+         * The list now shows the items of this folder
+         * @param directory
+         */
+        public void onDirectoryShown(File directory);
+    }
+
     static class FileListItem {
-        private final LIST_ITEM_TYPE mType;
+        private LIST_ITEM_TYPE mType;
         private final String mName;
         private final File mFile;
+        private final boolean mIsDirectory;
+        private final CollationKey mNameKey;
+        private String mCaption;
+        private CollationKey mCaptionKey;
+        private long mLastPlayed;
 
         public FileListItem(LIST_ITEM_TYPE type, String name) {
             mType = type;
             mName = name;
             mFile = null;
+            mIsDirectory = false;
+            mNameKey = null;
         }
 
         public FileListItem(LIST_ITEM_TYPE type, File file) {
+            this(type, file, FileSort.getCollationKey(file.getName()));
+        }
+
+        /**
+         * @param type FOLDER if the file is a folder
+         * @param file
+         * @param nameKey from FileSort.getCollationKey() of the name
+         */
+        FileListItem(LIST_ITEM_TYPE type, File file, CollationKey nameKey) {
             mType = type;
             mName = file.getName();
             mFile = file;
+            mIsDirectory = type == LIST_ITEM_TYPE.FOLDER;
+            mNameKey = nameKey;
+        }
+
+        /**
+         * Copies the item with its sort key, the caption is not copied
+         * @param type
+         * @param item
+         */
+        FileListItem(LIST_ITEM_TYPE type, FileListItem item) {
+            mType = type;
+            mName = item.mName;
+            mFile = item.mFile;
+            mIsDirectory = item.mIsDirectory;
+            mNameKey = item.mNameKey;
         }
 
         public boolean isFile() {
@@ -78,18 +152,127 @@ public class FileSystemAdapter extends ViewAdapterBase<FileListItem> {
         public LIST_ITEM_TYPE getType() {
             return mType;
         }
+        void setType(LIST_ITEM_TYPE type) {
+            mType = type;
+        }
         public String getName() {
             return mName;
         }
         public File getFile() {
             return mFile;
         }
+        CollationKey getNameKey() {
+            return mNameKey;
+        }
+        public String getCaption() {
+            return mCaption;
+        }
+        public void setCaption(String caption) {
+            if (caption == null || !caption.equals(mCaption)) {
+                mCaptionKey = null;
+            }
+            mCaption = caption;
+        }
+        // Only made when sorting by caption
+        private CollationKey getCaptionKey() {
+            if (mCaption == null) {
+                return mNameKey;
+            }
+            if (mCaptionKey == null) {
+                mCaptionKey = FileSort.getCollationKey(mCaption);
+            }
+            return mCaptionKey;
+        }
+        public long getLastPlayed() {
+            return mLastPlayed;
+        }
+        void setLastPlayed(long lastPlayed) {
+            mLastPlayed = lastPlayed;
+        }
     }
 
+    /**
+     * Sorts folders first and then by the sort mode. Names and captions are
+     * compared with collation keys made once for each item, so names in any
+     * language sort as the user expects without comparing strings each time.
+     */
     static class FileSort implements Comparator<FileListItem>{
+        private static Collator sCollator;
+        private SORT_MODE mMode = SORT_MODE.NAME;
+
+        /**
+         * Makes the key the names are sorted by, can be called on any thread
+         * @param name
+         * @return
+         */
+        static CollationKey getCollationKey(String name) {
+            synchronized (FileSort.class) {
+                return getCollator().getCollationKey(name);
+            }
+        }
+
+        /**
+         * Makes the keys of the names sorted in the order they are shown
+         * @param names
+         * @return
+         */
+        static CollationKey[] getSortedCollationKeys(String[] names) {
+            CollationKey[] keys = new CollationKey[names.length];
+            synchronized (FileSort.class) {
+                Collator collator = getCollator();
+                for (int i = 0; i < names.length; i++) {
+                    keys[i] = collator.getCollationKey(names[i]);
+                }
+            }
+            Arrays.sort(keys, new Comparator<CollationKey>() {
+                @Override
+                public int compare(CollationKey lhs, CollationKey rhs) {
+                    int result = lhs.compareTo(rhs);
+                    return result != 0 ? result : lhs.getSourceString().compareTo(rhs.getSourceString());
+                }
+            });
+            return keys;
+        }
+
+        // Case and width are only compared when the names are otherwise equal
+        private static Collator getCollator() {
+            if (sCollator == null) {
+                sCollator = Collator.getInstance();
+                sCollator.setStrength(Collator.SECONDARY);
+            }
+            return sCollator;
+        }
+
+        public void setMode(SORT_MODE mode) {
+            mMode = mode;
+        }
+
+        public SORT_MODE getMode() {
+            return mMode;
+        }
+
         @Override
         public int compare(FileListItem src, FileListItem target){
-            return src.getName().compareTo(target.getName());
+            if (src.mIsDirectory != target.mIsDirectory) {
+                return src.mIsDirectory ? -1 : 1;
+            }
+            switch (mMode) {
+            case CAPTION:
+                int result = src.getCaptionKey().compareTo(target.getCaptionKey());
+                if (result != 0) {
+                    return result;
+                }
+                break;
+            case LAST_PLAYED:
+                if (src.mLastPlayed != target.mLastPlayed) {
+                    return src.mLastPlayed > target.mLastPlayed ? -1 : 1;
+                }
+                break;
+            default:
+                break;
+            }
+            int result = src.mNameKey.compareTo(target.mNameKey);
+            return result != 0 ? result : src.mName.compareTo(target.mName);
         }
     }
 
@@ -118,6 +301,7 @@ public class FileSystemAdapter extends ViewAdapterBase<FileListItem> {
             throw new FileNotFoundException("Cannot find directory.");
         }
         mLowerBoundFiles = new ArrayList<File>();
+        mFileList = new ArrayList<FileListItem>();
         mShowHidden = showHiddenFolders;
         mOnlyShowFolders = onlyShowFolders;
         mShowBackItem = showBackButton;
@@ -157,10 +341,14 @@ public class FileSystemAdapter extends ViewAdapterBase<FileListItem> {
         return mCurrentDirectory;
     }
 
+    public void setOnDirectoryChangeListener(OnDirectoryChangeListener listener) {
+        mDirectoryChangeListener = listener;
+    }
+
     public void onlyShowFolders(boolean flag) {
         if (mOnlyShowFolders != flag) {
             mOnlyShowFolders = flag;
-            refresh();
+            setCurrentDirectory(mCurrentDirectory);
         }
     }
 
@@ -171,7 +359,7 @@ public class FileSystemAdapter extends ViewAdapterBase<FileListItem> {
     public void showHiddenFiles(boolean flag) {
         if (mShowHidden != flag) {
             mShowHidden = flag;
-            refresh();
+            setCurrentDirectory(mCurrentDirectory);
         }
     }
 
@@ -208,7 +396,7 @@ public class FileSystemAdapter extends ViewAdapterBase<FileListItem> {
             }
             index--;
         }
-        return mFileList[index].getFile();
+        return mFileList.get(index).getFile();
     }
 
     /**
@@ -218,24 +406,82 @@ public class FileSystemAdapter extends ViewAdapterBase<FileListItem> {
      * @return
      */
     public File getFileFromList(int index) {
-        return mFileList[index].getFile();
+        return mFileList.get(index).getFile();
     }
 
     public int getSizeOfFileList() {
         return getCount() - (isBackButtonShown() ? 1 : 0);
     }
 
+    /**
+     * Sets the captions (game names) of the items in the current list
+     * @param captions map of file path to caption
+     */
+    public void setCaptions(Map<String, String> captions) {
+        boolean changed = false;
+        for (FileListItem item : mFileList) {
+            File file = item.getFile();
+            if (file != null) {
+                String caption = captions.get(file.getPath());
+                if (caption != null && !caption.equals(item.getCaption())) {
+                    item.setCaption(caption);
+                    changed = true;
+                }
+            }
+        }
+        if (changed && mFileSorter.getMode() == SORT_MODE.CAPTION) {
+            sort();
+        }
+    }
+
+    /**
+     * Sets when each game was last played for sorting by last played
+     * @param lastPlayed map of file path to time
+     */
+    public void setLastPlayedTimes(Map<String, Long> lastPlayed) {
+        mLastPlayedTimes.clear();
+        mLastPlayedTimes.putAll(lastPlayed);
+        for (FileListItem item : mFileList) {
+            applyLastPlayed(item);
+        }
+        if (mFileSorter.getMode() == SORT_MODE.LAST_PLAYED) {
+            sort();
+        }
+    }
+
+    public void setSortMode(SORT_MODE mode) {
+        if (mFileSorter.getMode() != mode) {
+            mFileSorter.setMode(mode);
+            sort();
+        }
+    }
+
+    public SORT_MODE getSortMode() {
+        return mFileSorter.getMode();
+    }
+
+    private void applyLastPlayed(FileListItem item) {
+        Long time = mLastPlayedTimes.get(item.getFile().getPath());
+        item.setLastPlayed(time != null ? time : 0);
+    }
+
+    private void sort() {
+        Collections.sort(mFileList, mFileSorter);
+        refresh();
+    }
+
+    /**
+     * Shows the items again, the items are always kept sorted
+     */
     public void refresh() {
         clear();
         if (mShowBackItem && !isDirectoryAtLowerBound()) {
             add(BackFileListItem);
         }
 
-        if (mFileList != null) {
-            Arrays.sort(mFileList, mFileSorter);
-            for (FileListItem item : mFileList) {
-                add(item);
-            }
+        setNotifyOnChange(false);
+        for (FileListItem item : mFileList) {
+            add(item);
         }
         notifyDataSetChanged();
     }
@@ -248,52 +494,249 @@ public class FileSystemAdapter extends ViewAdapterBase<FileListItem> {
             }
             index--;
         }
-        if (index < mFileList.length) {
-            setCurrentDirectory(mFileList[index].getFile());
+        if (index < mFileList.size()) {
+            setCurrentDirectory(mFileList.get(index).getFile());
         }
     }
 
+    /**
+     * Lists the folder in the background, the current items stay until the
+     * folder is listed and then the new items are added as they are found.
+     * If the folder cannot be listed it goes back to the last folder.
+     *
+     * If the folder was listed before and has not changed since, its items
+     * are shown right away from the cache and only their types are parsed
+     * again.
+     * @param currentDirectory
+     * @return false if the folder does not exist or cannot be read
+     */
     public boolean setCurrentDirectory(File currentDirectory) {
         if (currentDirectory.exists() && currentDirectory.isDirectory()) {
-            File old = mCurrentDirectory;
-            mCurrentDirectory = currentDirectory;
-
-            // List the files and refresh interface
-            File[] files = mCurrentDirectory.listFiles(new FileFilter() {
-                @Override
-                public boolean accept(File file) {
-                    return (!mOnlyShowFolders && (!file.isHidden() || file.isHidden()
-                            && mShowHidden)) || file.isDirectory();
-                }
-            });
-            if (files == null) {
+            if (!currentDirectory.canRead()) {
                 Toast.makeText(getContext(), "Unable to open folder because of permissions", Toast.LENGTH_SHORT).show();
-                mCurrentDirectory = old;
                 return false;
             }
+            if (mLoad != null) {
+                mLoad.cancel();
+            }
+            clearPendingChanges();
+            mCurrentDirectory = currentDirectory;
+            if (mDirectoryChangeListener != null) {
+                mDirectoryChangeListener.onDirectoryChanging(mCurrentDirectory);
+            }
+            if (mBindedPath != null) {
+                mBindedPath.setText(mCurrentDirectory.getPath());
+            }
+
+            DirectoryCache.Snapshot snapshot = DirectoryCache.get(mCurrentDirectory, mOnlyShowFolders, mShowHidden);
+            if (snapshot != null) {
+                setShownDirectory(mCurrentDirectory);
+                mFileList.clear();
+                mFileList.ensureCapacity(snapshot.size());
+                for (int i = 0; i < snapshot.size(); i++) {
+                    FileListItem item = snapshot.newItem(i, mTypeParser);
+                    applyLastPlayed(item);
+                    mFileList.add(item);
+                }
 
-            // Build file list and set their types
-            FileListItem[] fileList = new FileListItem[files.length];
-            for (int i = 0; i < files.length; i++) {
-                if (mTypeParser != null) {
-                    LIST_ITEM_TYPE type = mTypeParser.onFileTypeParse(files[i]);
-                    fileList[i] = new FileListItem(type, files[i]);
+                // Parsed in the snapshot's order, the types are kept by index
+                mLoad = mTypeParser != null ? DirectoryLoader.parse(mCurrentDirectory,
+                        new ArrayList<FileListItem>(mFileList), snapshot, mTypeParser, this) : null;
+
+                // The snapshot is already in the order of sorting by name
+                if (mFileSorter.getMode() == SORT_MODE.NAME) {
+                    refresh();
                 } else {
-                    if (files[i].isDirectory()) {
-                        fileList[i] = new FileListItem(LIST_ITEM_TYPE.FOLDER, files[i]);
-                    } else {
-                        fileList[i] = new FileListItem(LIST_ITEM_TYPE.FILE, files[i]);
-                    }
+                    sort();
                 }
+            } else {
+                mLoad = DirectoryLoader.load(mCurrentDirectory, mOnlyShowFolders, mShowHidden, mTypeParser, this);
             }
-            mFileList = fileList;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops listing or parsing the current folder, call setCurrentDirectory()
+     * to load it again
+     */
+    public void cancelLoad() {
+        if (mLoad != null) {
+            mLoad.cancel();
+            mLoad = null;
+        }
+        clearPendingChanges();
+    }
+
+    /**
+     * Whether the current folder is still being listed or parsed
+     * @return
+     */
+    public boolean isLoading() {
+        return mLoad != null;
+    }
+
+    @Override
+    public void onLoadStarted(Load load) {
+        setShownDirectory(load.getDirectory());
+        mFileList.clear();
+        refresh();
+    }
+
+    @Override
+    public void onItemsLoaded(Load load, List<FileListItem> items) {
+        // Items come sorted by name, others such as files before folders are put in place
+        boolean inOrder = true;
+        for (FileListItem item : items) {
+            applyLastPlayed(item);
+            int size = mFileList.size();
+            if (size == 0 || mFileSorter.compare(mFileList.get(size - 1), item) <= 0) {
+                mFileList.add(item);
+            } else {
+                int index = Collections.binarySearch(mFileList, item, mFileSorter);
+                mFileList.add(index < 0 ? -index - 1 : index, item);
+                inOrder = false;
+            }
+        }
+        if (!inOrder) {
             refresh();
+            return;
+        }
+        setNotifyOnChange(false);
+        for (FileListItem item : items) {
+            add(item);
+        }
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public void onTypesParsed(Load load, List<FileListItem> items, List<LIST_ITEM_TYPE> types) {
+        for (int i = 0; i < items.size(); i++) {
+            items.get(i).setType(types.get(i));
+        }
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public void onLoadFinished(Load load) {
+        mLoad = null;
+        if (!mPendingAdded.isEmpty() || !mPendingRemoved.isEmpty() || !mPendingChanged.isEmpty()) {
+            Set<String> added = new HashSet<String>(mPendingAdded);
+            Set<String> removed = new HashSet<String>(mPendingRemoved);
+            Set<String> changed = new HashSet<String>(mPendingChanged);
+            clearPendingChanges();
+            applyChanges(mCurrentDirectory, added, removed, changed);
+        }
+    }
+
+    @Override
+    public void onLoadFailed(Load load) {
+        Toast.makeText(getContext(), "Unable to open folder because of permissions", Toast.LENGTH_SHORT).show();
+        mLoad = null;
+        clearPendingChanges();
+        if (mShownDirectory != null) {
+            mCurrentDirectory = mShownDirectory;
             if (mBindedPath != null) {
                 mBindedPath.setText(mCurrentDirectory.getPath());
             }
-            return true;
         }
-        return false;
+    }
+
+    private void setShownDirectory(File directory) {
+        mShownDirectory = directory;
+        if (mDirectoryChangeListener != null) {
+            mDirectoryChangeListener.onDirectoryShown(directory);
+        }
+    }
+
+    /**
+     * Applies the changes seen in the shown folder without listing it again.
+     * Added items are put in sorted order and the types of the added and
+     * changed items are parsed in the background. If the folder is still
+     * being loaded the changes are kept and applied once it is done, as the
+     * listing may have missed them.
+     * @param directory ignored if not the current folder
+     * @param added names of files and folders added
+     * @param removed names of files and folders removed
+     * @param changed names of folders whose contents changed
+     */
+    public void applyChanges(File directory, Set<String> added, Set<String> removed, Set<String> changed) {
+        if (!directory.equals(mCurrentDirectory)) {
+            return;
+        }
+        DirectoryCache.invalidate(directory);
+        if (mLoad != null) {
+            queueChanges(added, removed, changed);
+            return;
+        }
+        if (!directory.equals(mShownDirectory)) {
+            return;
+        }
+
+        // Remove items and find the ones to parse again
+        ArrayList<FileListItem> parseItems = new ArrayList<FileListItem>();
+        HashSet<String> existing = new HashSet<String>();
+        boolean listChanged = false;
+        for (Iterator<FileListItem> it = mFileList.iterator(); it.hasNext();) {
+            FileListItem item = it.next();
+            String name = item.getName();
+            if (removed.contains(name)) {
+                it.remove();
+                listChanged = true;
+            } else if (added.contains(name) || changed.contains(name)) {
+                existing.add(name);
+                parseItems.add(item);
+            }
+        }
+
+        // Insert the new items where they belong
+        for (String name : added) {
+            if (existing.contains(name)) {
+                continue;
+            }
+            File file = new File(directory, name);
+            if (!file.exists()) {
+                continue;
+            }
+            boolean isDirectory = file.isDirectory();
+            if (!isDirectory && (mOnlyShowFolders || file.isHidden() && !mShowHidden)) {
+                continue;
+            }
+            FileListItem item = new FileListItem(isDirectory ? LIST_ITEM_TYPE.FOLDER : LIST_ITEM_TYPE.FILE, file);
+            applyLastPlayed(item);
+            int index = Collections.binarySearch(mFileList, item, mFileSorter);
+            mFileList.add(index < 0 ? -index - 1 : index, item);
+            parseItems.add(item);
+            listChanged = true;
+        }
+
+        if (listChanged) {
+            refresh();
+        }
+        if (mTypeParser != null && !parseItems.isEmpty()) {
+            mLoad = DirectoryLoader.parse(directory, parseItems, null, mTypeParser, this);
+        }
+    }
+
+    // Only the last add or remove of a name matters
+    private void queueChanges(Set<String> added, Set<String> removed, Set<String> changed) {
+        for (String name : removed) {
+            mPendingAdded.remove(name);
+            mPendingChanged.remove(name);
+            mPendingRemoved.add(name);
+        }
+        for (String name : added) {
+            mPendingRemoved.remove(name);
+            mPendingAdded.add(name);
+        }
+        mPendingChanged.addAll(changed);
+    }
+
+    private void clearPendingChanges() {
+        mPendingAdded.clear();
+        mPendingRemoved.clear();
+        mPendingChanged.clear();
     }
 
     public boolean moveUp() {
@@ -311,6 +754,7 @@ public class FileSystemAdapter extends ViewAdapterBase<FileListItem> {
     public boolean makeDirectory(String name) {
         boolean success =  new File(mCurrentDirectory + "/" + name).mkdir();
         if (success) {
+            DirectoryCache.invalidate(mCurrentDirectory);
             setCurrentDirectory(mCurrentDirectory);
         }
         return success;
@@ -334,8 +778,9 @@ public class FileSystemAdapter extends ViewAdapterBase<FileListItem> {
         return false;
     }
 
+    // The list can still show the last folder while the next one is listed
     protected boolean isBackButtonShown() {
-        return mShowBackItem && !isDirectoryAtLowerBound();
+        return getCount() > 0 && getItem(0).isBackItem();
     }
 
     @Override
@@ -354,6 +799,13 @@ public class FileSystemAdapter extends ViewAdapterBase<FileListItem> {
             break;
         }
         ((ImageView)elements[0]).setImageDrawable(drawable);
-        ((TextView)elements[1]).setText(item.getName());
+
+        // Sorted by game name, so show the name it is sorted by
+        String caption = item.getCaption();
+        if (mFileSorter.getMode() == SORT_MODE.CAPTION && caption != null) {
+            ((TextView)elements[1]).setText(caption);
+        } else {
+            ((TextView)elements[1]).setText(item.getName());
+        }
     }
 }
@@ -0,0 +1,400 @@
+package com.onscripter.plus;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Watches folders for files and folders being added, removed or renamed
+ * and reports the changes in batches. On Android this uses FileObserver,
+ * the polling fallback lists the folder every few seconds instead and works
+ * anywhere (some sd cards do not send FileObserver events).
+ *
+ * A rename is reported as the old name removed and the new name added.
+ * Folders that were just added are checked until they stop changing and
+ * are then reported as changed, so a game still being copied is updated
+ * once its script arrives.
+ * @author Matthew Ng
+ *
+ */
+public final class FolderWatcher {
+    private static final long DELIVER_DELAY_MS = 250;
+    private static final long POLL_INTERVAL_MS = 2000;
+    private static final long SETTLE_CHECK_MS = 1000;
+    private static final long SETTLE_TIMEOUT_MS = 60 * 1000;
+
+    private static final int ADDED = 1;
+    private static final int REMOVED = 2;
+    private static final int CHANGED = 3;
+
+    public interface OnFolderChangedListener {
+        /**
+         * Called with the names changed in the folder since the last call
+         * @param folder
+         * @param added
+         * @param removed
+         * @param changed folders that were added before and have changed since
+         */
+        public void onFolderChanged(File folder, Set<String> added, Set<String> removed, Set<String> changed);
+    }
+
+    /**
+     * Tells the watcher when something in one folder changes
+     */
+    private interface Backend {
+        public void start();
+        public void stop();
+    }
+
+    private final OnFolderChangedListener mListener;
+    private final Executor mDeliverExecutor;
+    private final boolean mPolling;
+    private final ScheduledExecutorService mScheduler;
+    private final HashMap<File, Backend> mBackends;
+
+    // Changes not delivered yet by folder, then by name
+    private final HashMap<File, LinkedHashMap<String, Integer>> mPending;
+    private boolean mDeliveryScheduled;
+
+    // Folders just added and their last modified time, by parent folder
+    private final HashMap<File, Map<String, Settling>> mSettling;
+    private ScheduledFuture<?> mSettleTask;
+
+    private static class Settling {
+        long lastModified;
+        long changedAt;
+    }
+
+    /**
+     * Watches with FileObserver and reports on the UI thread
+     * @param listener
+     */
+    public FolderWatcher(OnFolderChangedListener listener) {
+        this(listener, new Executor() {
+            private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public void execute(Runnable command) {
+                mHandler.post(command);
+            }
+        }, false);
+    }
+
+    /**
+     * @param listener
+     * @param deliverExecutor runs the listener
+     * @param polling true to list the folders instead of using FileObserver
+     */
+    public FolderWatcher(OnFolderChangedListener listener, Executor deliverExecutor, boolean polling) {
+        mListener = listener;
+        mDeliverExecutor = deliverExecutor;
+        mPolling = polling;
+        mBackends = new HashMap<File, Backend>();
+        mPending = new HashMap<File, LinkedHashMap<String, Integer>>();
+        mSettling = new HashMap<File, Map<String, Settling>>();
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FolderWatcher");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Starts watching the folder if not already
+     * @param folder
+     */
+    public synchronized void watch(File folder) {
+        if (folder == null || mBackends.containsKey(folder) || !folder.isDirectory()) {
+            return;
+        }
+        Backend backend = mPolling ? new PollingBackend(folder) : new ObserverBackend(folder);
+        mBackends.put(folder, backend);
+        backend.start();
+    }
+
+    /**
+     * Stops watching the folder, changes not delivered yet are dropped
+     * @param folder
+     */
+    public synchronized void unwatch(File folder) {
+        if (folder == null) {
+            return;
+        }
+        Backend backend = mBackends.remove(folder);
+        if (backend != null) {
+            backend.stop();
+        }
+        mPending.remove(folder);
+        mSettling.remove(folder);
+    }
+
+    public synchronized Set<File> getWatchedFolders() {
+        return Collections.unmodifiableSet(new HashSet<File>(mBackends.keySet()));
+    }
+
+    /**
+     * Stops watching all folders
+     */
+    public synchronized void unwatchAll() {
+        for (Backend backend : mBackends.values()) {
+            backend.stop();
+        }
+        mBackends.clear();
+        mPending.clear();
+        mSettling.clear();
+    }
+
+    /**
+     * Stops watching and the thread, this cannot be used after
+     */
+    public void shutdown() {
+        unwatchAll();
+        mScheduler.shutdownNow();
+    }
+
+    /**
+     * Records a change from any thread, it is delivered with the others
+     * after a short wait
+     */
+    private synchronized void onChange(File folder, String name, int change) {
+        if (!mBackends.containsKey(folder) || name == null) {
+            return;
+        }
+        LinkedHashMap<String, Integer> changes = mPending.get(folder);
+        if (changes == null) {
+            changes = new LinkedHashMap<String, Integer>();
+            mPending.put(folder, changes);
+        }
+
+        // Only the last add or remove matters, a change does not replace either
+        Integer last = changes.get(name);
+        if (change != CHANGED || last == null) {
+            changes.put(name, change);
+        }
+
+        if (change == ADDED) {
+            startSettling(folder, name);
+        } else if (change == REMOVED) {
+            Map<String, Settling> settling = mSettling.get(folder);
+            if (settling != null) {
+                settling.remove(name);
+            }
+        }
+        if (!mDeliveryScheduled) {
+            mDeliveryScheduled = true;
+            mScheduler.schedule(mDeliverRunnable, DELIVER_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final Runnable mDeliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final HashMap<File, LinkedHashMap<String, Integer>> pending;
+            synchronized (FolderWatcher.this) {
+                mDeliveryScheduled = false;
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                pending = new HashMap<File, LinkedHashMap<String, Integer>>(mPending);
+                mPending.clear();
+            }
+            mDeliverExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Map.Entry<File, LinkedHashMap<String, Integer>> entry : pending.entrySet()) {
+                        File folder = entry.getKey();
+                        synchronized (FolderWatcher.this) {
+                            if (!mBackends.containsKey(folder)) {
+                                continue;
+                            }
+                        }
+                        Set<String> added = new HashSet<String>();
+                        Set<String> removed = new HashSet<String>();
+                        Set<String> changed = new HashSet<String>();
+                        for (Map.Entry<String, Integer> change : entry.getValue().entrySet()) {
+                            switch (change.getValue()) {
+                            case ADDED:
+                                added.add(change.getKey());
+                                break;
+                            case REMOVED:
+                                removed.add(change.getKey());
+                                break;
+                            default:
+                                changed.add(change.getKey());
+                                break;
+                            }
+                        }
+                        mListener.onFolderChanged(folder, added, removed, changed);
+                    }
+                }
+            });
+        }
+    };
+
+    /* Folders that were just added */
+
+    private void startSettling(File folder, String name) {
+        File child = new File(folder, name);
+        if (!child.isDirectory()) {
+            return;
+        }
+        Map<String, Settling> settling = mSettling.get(folder);
+        if (settling == null) {
+            settling = new HashMap<String, Settling>();
+            mSettling.put(folder, settling);
+        }
+        Settling s = new Settling();
+        s.lastModified = child.lastModified();
+        s.changedAt = System.currentTimeMillis();
+        settling.put(name, s);
+        if (mSettleTask == null) {
+            mSettleTask = mScheduler.scheduleWithFixedDelay(mSettleRunnable, SETTLE_CHECK_MS,
+                    SETTLE_CHECK_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final Runnable mSettleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            synchronized (FolderWatcher.this) {
+                for (Iterator<Map.Entry<File, Map<String, Settling>>> folders = mSettling.entrySet().iterator();
+                        folders.hasNext();) {
+                    Map.Entry<File, Map<String, Settling>> folder = folders.next();
+                    for (Iterator<Map.Entry<String, Settling>> it = folder.getValue().entrySet().iterator();
+                            it.hasNext();) {
+                        Map.Entry<String, Settling> entry = it.next();
+                        Settling s = entry.getValue();
+                        long lastModified = new File(folder.getKey(), entry.getKey()).lastModified();
+                        if (lastModified != s.lastModified) {
+                            s.lastModified = lastModified;
+                            s.changedAt = now;
+                            onChange(folder.getKey(), entry.getKey(), CHANGED);
+                        } else if (now - s.changedAt > SETTLE_TIMEOUT_MS) {
+                            it.remove();
+                        }
+                    }
+                    if (folder.getValue().isEmpty()) {
+                        folders.remove();
+                    }
+                }
+                if (mSettling.isEmpty() && mSettleTask != null) {
+                    mSettleTask.cancel(false);
+                    mSettleTask = null;
+                }
+            }
+        }
+    };
+
+    /* Backends */
+
+    private class ObserverBackend extends FileObserver implements Backend {
+        private static final int EVENTS = CREATE | DELETE | MOVED_FROM | MOVED_TO;
+        private final File mFolder;
+
+        ObserverBackend(File folder) {
+            super(folder.getPath(), EVENTS);
+            mFolder = folder;
+        }
+
+        @Override
+        public void start() {
+            startWatching();
+        }
+
+        @Override
+        public void stop() {
+            stopWatching();
+        }
+
+        // Runs on FileObserver's thread
+        @Override
+        public void onEvent(int event, String path) {
+            switch (event & EVENTS) {
+            case CREATE:
+            case MOVED_TO:
+                onChange(mFolder, path, ADDED);
+                break;
+            case DELETE:
+            case MOVED_FROM:
+                onChange(mFolder, path, REMOVED);
+                break;
+            }
+        }
+    }
+
+    private class PollingBackend implements Backend, Runnable {
+        private final File mFolder;
+        private HashSet<String> mNames;
+        private long mLastModified;
+        private ScheduledFuture<?> mTask;
+
+        PollingBackend(File folder) {
+            mFolder = folder;
+        }
+
+        @Override
+        public void start() {
+            mTask = mScheduler.scheduleWithFixedDelay(this, 0, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void stop() {
+            if (mTask != null) {
+                mTask.cancel(false);
+                mTask = null;
+            }
+        }
+
+        // Runs on the watcher's thread
+        @Override
+        public void run() {
+            long lastModified = mFolder.lastModified();
+            long now = System.currentTimeMillis();
+            if (mNames != null && lastModified == mLastModified
+                    && now - lastModified >= GameFolder.MODIFIED_TIME_RESOLUTION_MS) {
+                return;
+            }
+            String[] list = mFolder.list();
+            if (list == null) {
+                return;
+            }
+            mLastModified = lastModified;
+            HashSet<String> names = new HashSet<String>(Arrays.asList(list));
+            if (mNames != null) {
+                for (String name : names) {
+                    if (!mNames.contains(name)) {
+                        onChange(mFolder, name, ADDED);
+                    }
+                }
+                for (String name : mNames) {
+                    if (!names.contains(name)) {
+                        onChange(mFolder, name, REMOVED);
+                    }
+                }
+            }
+            mNames = names;
+        }
+    }
+}
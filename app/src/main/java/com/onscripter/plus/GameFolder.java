@@ -0,0 +1,272 @@
+package com.onscripter.plus;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * What a folder holds for ONScripter: the script, archives and save files.
+ * The folder is listed once and every name is checked against the known
+ * files, instead of asking if each file exists. Names are compared without
+ * case as sd cards do.
+ *
+ * Probed folders are cached until the folder's last modified time changes,
+ * so the launcher, the game and the caption parser share one listing.
+ * @author Matthew Ng
+ *
+ */
+public final class GameFolder {
+    /* Script files in the order they are used, the first 3 are the ones the captions can be read from */
+    static final String[] SCRIPT_NAMES = {
+        "nscript.dat", "0.txt", "00.txt", "nscr_sec.dat", "nscript.___"
+    };
+    private static final int READABLE_SCRIPT_COUNT = 3;
+    static final String ARCHIVE_NAME = "arc.nsa";
+
+    private static final int CACHE_SIZE = 256;
+
+    /* Sd cards (FAT) only store the modified time to 2 seconds, used by everything that compares them */
+    static final long MODIFIED_TIME_RESOLUTION_MS = 2000;
+
+    /* Least recently probed folders by path */
+    private static final LinkedHashMap<String, GameFolder> sCache =
+            new LinkedHashMap<String, GameFolder>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GameFolder> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static final String[] NO_NAMES = new String[0];
+
+    private final File mFolder;
+    private final long mLastModified;
+    private final boolean mReadable;
+    private final String[] mNames;
+    private final int mScriptIndex;
+    private final String mScriptName;
+    private final String mReadableScriptName;
+    private final String[] mArchives;
+    private final String[] mSaveFiles;
+    private final boolean mHasArchive;
+
+    private GameFolder(File folder) {
+        mFolder = folder;
+        mLastModified = folder.lastModified();
+        String[] names = folder.canRead() ? folder.list() : null;
+        mReadable = names != null;
+        mNames = names != null ? names : NO_NAMES;
+
+        int scriptIndex = SCRIPT_NAMES.length;
+        int readableIndex = READABLE_SCRIPT_COUNT;
+        String scriptName = null;
+        String readableScriptName = null;
+        boolean hasArchive = false;
+        ArrayList<String> archives = new ArrayList<String>();
+        ArrayList<String> saves = new ArrayList<String>();
+        for (String name : mNames) {
+            String lower = name.toLowerCase(Locale.US);
+            if (isArchive(lower)) {
+                archives.add(name);
+                hasArchive |= ARCHIVE_NAME.equals(lower);
+                continue;
+            }
+            if (isSaveFile(lower)) {
+                saves.add(name);
+                continue;
+            }
+            for (int i = 0; i < scriptIndex || i < readableIndex; i++) {
+                if (SCRIPT_NAMES[i].equals(lower)) {
+                    if (!new File(folder, name).isFile()) {
+                        break;
+                    }
+                    if (i < scriptIndex) {
+                        scriptIndex = i;
+                        scriptName = name;
+                    }
+                    if (i < readableIndex) {
+                        readableIndex = i;
+                        readableScriptName = name;
+                    }
+                    break;
+                }
+            }
+        }
+        mScriptIndex = scriptIndex;
+        mScriptName = scriptName;
+        mReadableScriptName = readableScriptName;
+        mHasArchive = hasArchive;
+        Collections.sort(archives);
+        Collections.sort(saves);
+        mArchives = archives.toArray(new String[archives.size()]);
+        mSaveFiles = saves.toArray(new String[saves.size()]);
+    }
+
+    /**
+     * Gets what the folder holds, only lists the folder if it changed since
+     * it was last probed
+     * @param folder
+     * @return never null, empty if the folder cannot be read
+     */
+    public static GameFolder probe(File folder) {
+        String path = folder.getPath();
+        synchronized (sCache) {
+            GameFolder cached = sCache.get(path);
+            if (cached != null && cached.mLastModified == folder.lastModified()) {
+                return cached;
+            }
+        }
+        GameFolder probed = new GameFolder(folder);
+        if (probed.mLastModified != 0
+                && System.currentTimeMillis() - probed.mLastModified >= MODIFIED_TIME_RESOLUTION_MS) {
+            synchronized (sCache) {
+                sCache.put(path, probed);
+            }
+        }
+        return probed;
+    }
+
+    public static GameFolder probe(String path) {
+        return probe(new File(path));
+    }
+
+    /**
+     * Forgets the folder so the next probe lists it again
+     * @param folder
+     */
+    public static void invalidate(File folder) {
+        synchronized (sCache) {
+            sCache.remove(folder.getPath());
+        }
+    }
+
+    public File getFolder() {
+        return mFolder;
+    }
+
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * False if the folder does not exist or cannot be listed
+     * @return
+     */
+    public boolean isReadable() {
+        return mReadable;
+    }
+
+    public boolean isGame() {
+        return mScriptName != null;
+    }
+
+    /**
+     * Name of the script used by the game as in SCRIPT_NAMES, null if not a game
+     * @return
+     */
+    public String getScriptName() {
+        return mScriptName != null ? SCRIPT_NAMES[mScriptIndex] : null;
+    }
+
+    /**
+     * The script used by the game
+     * @return null if not a game
+     */
+    public File getScriptFile() {
+        return mScriptName != null ? new File(mFolder, mScriptName) : null;
+    }
+
+    /**
+     * The first script that is not encrypted (nscript.dat, 0.txt or 00.txt)
+     * so its caption and encoding can be read
+     * @return null if there is none
+     */
+    public File getReadableScriptFile() {
+        return mReadableScriptName != null ? new File(mFolder, mReadableScriptName) : null;
+    }
+
+    /**
+     * Whether arc.nsa is in the folder
+     * @return
+     */
+    public boolean hasArchive() {
+        return mHasArchive;
+    }
+
+    /**
+     * Names of all the archives, arc.nsa, arc1.nsa... and .sar files
+     * @return
+     */
+    public String[] getArchives() {
+        return mArchives.clone();
+    }
+
+    /**
+     * Names of the save files (save1.dat...) in the folder
+     * @return
+     */
+    public String[] getSaveFiles() {
+        return mSaveFiles.clone();
+    }
+
+    /**
+     * Scripts of games in the folders inside this one, as "folder/script".
+     * Not kept with this folder, a script added to a child folder does not
+     * change this folder's modified time. Each child folder is probed, which
+     * only lists it again if it changed.
+     * @return
+     */
+    public List<String> getSubGameScripts() {
+        ArrayList<String> scripts = new ArrayList<String>();
+        String[] names = mNames.clone();
+        Arrays.sort(names);
+        for (String name : names) {
+            File child = new File(mFolder, name);
+            if (!child.isDirectory() || !child.canRead()) {
+                continue;
+            }
+            File script = probe(child).getReadableScriptFile();
+            if (script != null && script.canRead()) {
+                scripts.add(name + "/" + script.getName());
+            }
+        }
+        return Collections.unmodifiableList(scripts);
+    }
+
+    private static boolean isArchive(String lowerName) {
+        if (lowerName.endsWith(".sar")) {
+            return true;
+        }
+        if (!lowerName.startsWith("arc") || !lowerName.endsWith(".nsa")) {
+            return false;
+        }
+        // arc.nsa or arc followed by a number
+        for (int i = 3; i < lowerName.length() - 4; i++) {
+            char c = lowerName.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSaveFile(String lowerName) {
+        if (!lowerName.startsWith("save") || !lowerName.endsWith(".dat") || lowerName.length() <= 8) {
+            return false;
+        }
+        for (int i = 4; i < lowerName.length() - 4; i++) {
+            char c = lowerName.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,278 @@
+package com.onscripter.plus;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Parses the information (name) of games on a small pool of background threads.
+ *
+ * Each game path is only queued once, games that are visible on screen are
+ * parsed before the rest and everything queued can be cancelled when the user
+ * leaves the folder. Results are collected and handed back on the UI thread
+ * in batches instead of one game at a time.
+ * @author Matthew Ng
+ *
+ */
+public class GameInfoParser {
+    public static final int DEFAULT_PARALLELISM = Math.max(2,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long DELIVER_DELAY_MS = 150;
+    private static final long KEEP_ALIVE_SECONDS = 2;
+
+    public interface OnGameInfoParsedListener {
+        /**
+         * Called on the UI thread with the names parsed since the last call
+         * @param names map of game path to its name
+         */
+        public void onGameInfoParsed(Map<String, String> names);
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mHandler;
+    private final HashMap<String, ParseJob> mPending;
+    private HashMap<String, String> mResults;
+    private OnGameInfoParsedListener mListener;
+    private boolean mStarted;
+    private boolean mDeliveryPosted;
+    private int mGeneration;
+    private long mSequence;
+
+    public GameInfoParser() {
+        this(DEFAULT_PARALLELISM);
+    }
+
+    public GameInfoParser(int parallelism) {
+        parallelism = Math.max(1, parallelism);
+        mExecutor = new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "GameInfoParser");
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+        mHandler = new Handler(Looper.getMainLooper());
+        mPending = new HashMap<String, ParseJob>();
+        mResults = new HashMap<String, String>();
+    }
+
+    public void setOnGameInfoParsedListener(OnGameInfoParsedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Changes the number of games parsed at the same time
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        parallelism = Math.max(1, parallelism);
+        if (parallelism > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(parallelism);
+            mExecutor.setCorePoolSize(parallelism);
+        } else {
+            mExecutor.setCorePoolSize(parallelism);
+            mExecutor.setMaximumPoolSize(parallelism);
+        }
+    }
+
+    /**
+     * Queues the game to be parsed. Nothing is parsed until start() is called
+     * and a path that is already waiting is not queued again.
+     * @param gamePath
+     */
+    public synchronized void queue(String gamePath) {
+        if (gamePath == null || mPending.containsKey(gamePath)) {
+            return;
+        }
+        ParseJob job = new ParseJob(gamePath, mGeneration, mSequence++);
+        mPending.put(gamePath, job);
+        if (mStarted) {
+            mExecutor.execute(job);
+        }
+    }
+
+    /**
+     * Starts parsing all queued games and any queued afterwards
+     */
+    public synchronized void start() {
+        if (!mStarted) {
+            mStarted = true;
+            for (ParseJob job : mPending.values()) {
+                mExecutor.execute(job);
+            }
+        }
+    }
+
+    /**
+     * Moves the games that are currently shown to the front of the queue
+     * @param gamePaths
+     */
+    public synchronized void prioritize(Collection<String> gamePaths) {
+        for (String path : gamePaths) {
+            ParseJob job = mPending.get(path);
+            if (job != null && !job.mVisible) {
+                // Priority cannot change while inside the queue, take it out and put it back
+                boolean queued = mStarted && mExecutor.getQueue().remove(job);
+                job.mVisible = true;
+                if (queued) {
+                    mExecutor.execute(job);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every queued game and any results not delivered yet. Games being
+     * parsed right now will finish but will not be delivered.
+     */
+    public synchronized void cancelAll() {
+        mGeneration++;
+        for (ParseJob job : mPending.values()) {
+            mExecutor.remove(job);
+        }
+        mPending.clear();
+        mResults.clear();
+    }
+
+    /**
+     * Cancels everything and stops the threads, this cannot be used after
+     */
+    public void shutdown() {
+        cancelAll();
+        mExecutor.shutdown();
+        mHandler.removeCallbacks(mDeliverRunnable);
+        mListener = null;
+    }
+
+    private synchronized void onJobFinished(ParseJob job, String name) {
+        if (mPending.get(job.mPath) == job) {
+            mPending.remove(job.mPath);
+        }
+        if (job.mGeneration != mGeneration || name == null) {
+            return;
+        }
+        addResult(job.mPath, name);
+    }
+
+    /**
+     * Hands back a name that is already known, such as from the library
+     * index, with the next batch of parsed names
+     * @param gamePath
+     * @param name
+     */
+    public synchronized void deliver(String gamePath, String name) {
+        if (gamePath != null && name != null) {
+            addResult(gamePath, name);
+        }
+    }
+
+    private void addResult(String gamePath, String name) {
+        mResults.put(gamePath, name);
+        if (!mDeliveryPosted) {
+            mDeliveryPosted = true;
+            mHandler.postDelayed(mDeliverRunnable, DELIVER_DELAY_MS);
+        }
+    }
+
+    private final Runnable mDeliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Map<String, String> results;
+            synchronized (GameInfoParser.this) {
+                mDeliveryPosted = false;
+                if (mResults.isEmpty()) {
+                    return;
+                }
+                results = mResults;
+                mResults = new HashMap<String, String>();
+            }
+            if (mListener != null) {
+                mListener.onGameInfoParsed(results);
+            }
+        }
+    };
+
+    /**
+     * Gets the name of the game from its preferences, if it is not there then
+     * parse it from the script and save it back into the preferences
+     * @param gamePath
+     * @return the name of the game
+     */
+    static String parseGameName(String gamePath) {
+        final VNPreferences pref = ExtSDCardFix.getGameVNPreference(gamePath);
+
+        // Get the name of game
+        String name = null;
+        if (pref != null) {
+            name = pref.getString(LauncherActivity.GAME_PREF_NAME_KEY, null);
+        }
+        if (name == null) {
+            name = GameUtils.getGameName(gamePath);
+
+            // If can't find the name, then we will use the file path
+            if (name == null) {
+                name = new File(gamePath).getName();
+            }
+
+            // Save the name into the preferences
+            if (pref != null) {
+                pref.putString(LauncherActivity.GAME_PREF_NAME_KEY, name);
+                pref.commit();
+            }
+        }
+        GameLibraryIndex.getInstance().setCaption(gamePath, name);
+        return name;
+    }
+
+    private class ParseJob implements Runnable, Comparable<ParseJob> {
+        private final String mPath;
+        private final int mGeneration;
+        private final long mSequence;
+        private boolean mVisible;
+
+        public ParseJob(String path, int generation, long sequence) {
+            mPath = path;
+            mGeneration = generation;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            String name = null;
+            synchronized (GameInfoParser.this) {
+                if (mGeneration != GameInfoParser.this.mGeneration) {
+                    return;
+                }
+            }
+            try {
+                name = parseGameName(mPath);
+            } finally {
+                onJobFinished(this, name);
+            }
+        }
+
+        @Override
+        public int compareTo(ParseJob another) {
+            if (mVisible != another.mVisible) {
+                return mVisible ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package com.onscripter.plus;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Persistent index of the folders shown in the launcher. Each folder that has
+ * been probed is stored with its last modified time, the script file found in
+ * it, whether arc.nsa exists and the caption of the game.
+ *
+ * Entries are validated by the last modified time of the folder they are in;
+ * if that has not changed since the index was written then none of the
+ * children are touched and the cached results are returned. When it changes
+ * only the children whose own modified time differ are probed again.
+ * @author Matthew Ng
+ *
+ */
+public final class GameLibraryIndex {
+    private static final String TAG = "GameLibraryIndex";
+    public static final String INDEX_FILE_NAME = "library_index.json";
+    private static final String UTF8_ENCODING = "UTF-8";
+    private static final int INDEX_VERSION = 1;
+
+    // A listing asks for every child of the same folder, only stat the folder once per listing
+    private static final long FOLDER_VALIDATE_INTERVAL_MS = 2000;
+
+    private static final String JSON_VERSION = "version";
+    private static final String JSON_FOLDERS = "folders";
+    private static final String JSON_GAMES = "games";
+    private static final String JSON_MODIFIED = "mtime";
+    private static final String JSON_SCRIPT = "script";
+    private static final String JSON_ARCHIVE = "arc";
+    private static final String JSON_CAPTION = "caption";
+    private static final String JSON_PLAYED = "played";
+
+    private static GameLibraryIndex sInstance;
+
+    private final File mIndexFile;
+    private final Object mWriteLock = new Object();
+    private final HashMap<String, GameEntry> mEntries;
+    private final HashMap<String, Long> mFolders;
+    private final HashMap<String, Long> mValidatedAt;
+    private boolean mDirty;
+
+    public static class GameEntry {
+        private final String mPath;
+        private final String mParent;
+        private long mLastModified;
+        private String mScriptFile;
+        private boolean mHasArchive;
+        private String mCaption;
+        private long mLastPlayed;
+        private boolean mNeedsCheck;
+
+        GameEntry(String path) {
+            mPath = path;
+            mParent = new File(path).getParent();
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        public boolean isGame() {
+            return mScriptFile != null;
+        }
+
+        /**
+         * Name of the script file found in the folder, null if not a game
+         * @return
+         */
+        public String getScriptFile() {
+            return mScriptFile;
+        }
+
+        public boolean hasArchive() {
+            return mHasArchive;
+        }
+
+        public String getCaption() {
+            return mCaption;
+        }
+
+        public long getLastModified() {
+            return mLastModified;
+        }
+
+        /**
+         * When the game was last launched
+         * @return 0 if never
+         */
+        public long getLastPlayed() {
+            return mLastPlayed;
+        }
+    }
+
+    /**
+     * Gets the shared index, the first call reads the index file from the
+     * application's private folder.
+     * @return
+     */
+    public static synchronized GameLibraryIndex getInstance() {
+        if (sInstance == null) {
+            sInstance = new GameLibraryIndex(new File(App.getContext().getFilesDir(), INDEX_FILE_NAME));
+            sInstance.load();
+        }
+        return sInstance;
+    }
+
+    private GameLibraryIndex(File indexFile) {
+        mIndexFile = indexFile;
+        mEntries = new HashMap<String, GameEntry>();
+        mFolders = new HashMap<String, Long>();
+        mValidatedAt = new HashMap<String, Long>();
+        mDirty = false;
+    }
+
+    /**
+     * Gets the index entry of the folder, probing it only if the folder it is
+     * in has changed since it was last indexed
+     * @param folder
+     * @return the entry for this folder, never null
+     */
+    public synchronized GameEntry getEntry(File folder) {
+        File parent = folder.getParentFile();
+        if (parent != null) {
+            validateFolder(parent);
+        }
+        GameEntry entry = mEntries.get(folder.getPath());
+        if (entry != null) {
+            if (!entry.mNeedsCheck) {
+                return entry;
+            }
+            entry.mNeedsCheck = false;
+            if (entry.mLastModified == folder.lastModified()) {
+                return entry;
+            }
+        }
+        return probe(folder);
+    }
+
+    /**
+     * Probes the folder again regardless of the cached entry, only lists it
+     * if the folder itself changed. Use this before acting on the entry such
+     * as launching the game.
+     * @param folder
+     * @return the updated entry
+     */
+    public synchronized GameEntry refresh(File folder) {
+        GameEntry old = mEntries.get(folder.getPath());
+        GameEntry entry = probe(folder);
+        if (old != null && old.mLastModified == entry.mLastModified) {
+            entry.mCaption = old.mCaption;
+        }
+        return entry;
+    }
+
+    public synchronized void setCaption(String path, String caption) {
+        GameEntry entry = mEntries.get(path);
+        if (entry != null && caption != null && !caption.equals(entry.mCaption)) {
+            entry.mCaption = caption;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Records that the game was launched now
+     * @param folder
+     */
+    public synchronized void setLastPlayed(File folder) {
+        GameEntry entry = mEntries.get(folder.getPath());
+        if (entry == null) {
+            entry = probe(folder);
+        }
+        entry.mLastPlayed = System.currentTimeMillis();
+        mDirty = true;
+    }
+
+    /**
+     * Gets when each game was last launched
+     * @return map of game path to time, only games that were launched
+     */
+    public synchronized Map<String, Long> getLastPlayedTimes() {
+        HashMap<String, Long> times = new HashMap<String, Long>();
+        for (GameEntry entry : mEntries.values()) {
+            if (entry.mLastPlayed > 0) {
+                times.put(entry.mPath, entry.mLastPlayed);
+            }
+        }
+        return times;
+    }
+
+    /**
+     * Updates the entries of the children of a folder that were seen to
+     * change, without listing the folder again
+     * @param folder
+     * @param added names of children added, probed on next use
+     * @param removed names of children removed or renamed away
+     * @param changed names of children whose contents changed
+     */
+    public synchronized void applyChanges(File folder, Collection<String> added,
+            Collection<String> removed, Collection<String> changed) {
+        for (String name : removed) {
+            if (mEntries.remove(new File(folder, name).getPath()) != null) {
+                mDirty = true;
+            }
+        }
+        for (String name : added) {
+            flagForCheck(new File(folder, name));
+        }
+        for (String name : changed) {
+            flagForCheck(new File(folder, name));
+        }
+    }
+
+    private void flagForCheck(File child) {
+        GameEntry entry = mEntries.get(child.getPath());
+        if (entry != null) {
+            entry.mNeedsCheck = true;
+        }
+    }
+
+    /**
+     * Writes the index to storage in the background if anything changed.
+     * If the write fails the index stays changed and is written next time.
+     */
+    public void save() {
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+        }
+        new SaveIndexTask().execute();
+    }
+
+    /**
+     * Checks if the folder changed since it was indexed. If so, removes the
+     * entries of children that no longer exist and flags the rest to compare
+     * their own modified time the next time they are requested.
+     * @param folder
+     */
+    private void validateFolder(File folder) {
+        String path = folder.getPath();
+        long now = SystemClock.uptimeMillis();
+        Long validatedAt = mValidatedAt.get(path);
+        if (validatedAt != null && now - validatedAt < FOLDER_VALIDATE_INTERVAL_MS) {
+            return;
+        }
+        mValidatedAt.put(path, now);
+
+        long lastModified = folder.lastModified();
+        Long indexedModified = mFolders.get(path);
+        if (indexedModified != null && indexedModified == lastModified) {
+            return;
+        }
+        mFolders.put(path, lastModified);
+        mDirty = true;
+
+        String[] names = folder.list();
+        HashSet<String> children = new HashSet<String>();
+        if (names != null) {
+            for (String name : names) {
+                children.add(name);
+            }
+        }
+        for (Iterator<GameEntry> it = mEntries.values().iterator(); it.hasNext();) {
+            GameEntry entry = it.next();
+            if (path.equals(entry.mParent)) {
+                if (children.contains(new File(entry.mPath).getName())) {
+                    entry.mNeedsCheck = true;
+                } else {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private GameEntry probe(File folder) {
+        GameFolder game = GameFolder.probe(folder);
+        GameEntry entry = new GameEntry(folder.getPath());
+        GameEntry old = mEntries.get(entry.mPath);
+        if (old != null) {
+            entry.mLastPlayed = old.mLastPlayed;
+        }
+        entry.mLastModified = game.getLastModified();
+        entry.mScriptFile = game.getScriptName();
+        entry.mHasArchive = game.hasArchive();
+        mEntries.put(entry.mPath, entry);
+        mDirty = true;
+        return entry;
+    }
+
+    private void load() {
+        if (!mIndexFile.exists()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        synchronized (mWriteLock) {
+            BufferedReader br = null;
+            try {
+                String line;
+                br = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(mIndexFile), UTF8_ENCODING));
+                while ((line = br.readLine()) != null) {
+                    sb.append(line);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            } finally {
+                if (br != null) {
+                    try {
+                        br.close();
+                    } catch (IOException e) {}
+                }
+            }
+        }
+
+        try {
+            JSONObject json = new JSONObject(sb.toString());
+            if (json.optInt(JSON_VERSION) != INDEX_VERSION) {
+                return;
+            }
+            JSONObject folders = json.getJSONObject(JSON_FOLDERS);
+            for (Iterator<String> iter = folders.keys(); iter.hasNext();) {
+                String path = iter.next();
+                mFolders.put(path, folders.getLong(path));
+            }
+            JSONObject games = json.getJSONObject(JSON_GAMES);
+            for (Iterator<String> iter = games.keys(); iter.hasNext();) {
+                String path = iter.next();
+                JSONObject obj = games.getJSONObject(path);
+                GameEntry entry = new GameEntry(path);
+                entry.mLastModified = obj.getLong(JSON_MODIFIED);
+                entry.mScriptFile = obj.has(JSON_SCRIPT) ? obj.getString(JSON_SCRIPT) : null;
+                entry.mHasArchive = obj.optBoolean(JSON_ARCHIVE);
+                entry.mCaption = obj.has(JSON_CAPTION) ? obj.getString(JSON_CAPTION) : null;
+                entry.mLastPlayed = obj.optLong(JSON_PLAYED);
+                mEntries.put(path, entry);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Library index is corrupted, it will be rebuilt: " + e.getMessage());
+            mFolders.clear();
+            mEntries.clear();
+        }
+    }
+
+    private synchronized JSONObject toJSON() throws JSONException {
+        JSONObject folders = new JSONObject();
+        for (Entry<String, Long> folder : mFolders.entrySet()) {
+            folders.put(folder.getKey(), folder.getValue().longValue());
+        }
+        JSONObject games = new JSONObject();
+        for (GameEntry entry : mEntries.values()) {
+            JSONObject obj = new JSONObject();
+            obj.put(JSON_MODIFIED, entry.mLastModified);
+            if (entry.mScriptFile != null) {
+                obj.put(JSON_SCRIPT, entry.mScriptFile);
+            }
+            if (entry.mHasArchive) {
+                obj.put(JSON_ARCHIVE, true);
+            }
+            if (entry.mCaption != null) {
+                obj.put(JSON_CAPTION, entry.mCaption);
+            }
+            if (entry.mLastPlayed > 0) {
+                obj.put(JSON_PLAYED, entry.mLastPlayed);
+            }
+            games.put(entry.mPath, obj);
+        }
+        JSONObject json = new JSONObject();
+        json.put(JSON_VERSION, INDEX_VERSION);
+        json.put(JSON_FOLDERS, folders);
+        json.put(JSON_GAMES, games);
+        return json;
+    }
+
+    // Changes are kept dirty so the next save tries to write them again
+    private synchronized void onSaveFailed() {
+        mDirty = true;
+    }
+
+    private class SaveIndexTask extends AsyncTask<Void, Void, Void> {
+        @Override
+        protected Void doInBackground(Void... params) {
+            String data;
+            try {
+                data = toJSON().toString();
+            } catch (JSONException e) {
+                e.printStackTrace();
+                onSaveFailed();
+                return null;
+            }
+            synchronized (mWriteLock) {
+                // Write to a temporary file first so a crash cannot leave a half written index
+                File tmp = new File(mIndexFile.getPath() + ".tmp");
+                FileOutputStream fos = null;
+                try {
+                    fos = new FileOutputStream(tmp);
+                    fos.write(data.getBytes(UTF8_ENCODING));
+                    fos.flush();
+                    fos.getFD().sync();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    tmp.delete();
+                    onSaveFailed();
+                    return null;
+                } finally {
+                    if (fos != null) {
+                        try {
+                            fos.close();
+                        } catch (IOException e) {}
+                    }
+                }
+                if (!tmp.renameTo(mIndexFile)) {
+                    Log.e(TAG, "Failed to replace the library index");
+                    tmp.delete();
+                    onSaveFailed();
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -1,108 +1,172 @@
 package com.onscripter.plus;
 
-import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.util.Arrays;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class GameUtils {
-    /* Supported encodings */
-    private enum Encoding {
-        UTF8, JAPANESE, KOREAN, CHINESE
+    /* Default number of bytes of the script scanned for the caption */
+    public static final int DEFAULT_CAPTION_SCAN_BUDGET = 1024 * 1024;
+    private static final int SCAN_BUFFER_SIZE = 16 * 1024;
+
+    /* Number of scripts whose encoding is remembered */
+    private static final int ENCODING_CACHE_SIZE = 256;
+
+    private static volatile int sCaptionScanBudget = DEFAULT_CAPTION_SCAN_BUDGET;
+
+    /* Each thread keeps one scanner so its buffer is reused for every script it reads */
+    private static final ThreadLocal<ScriptScanner> sScanner = new ThreadLocal<ScriptScanner>() {
+        @Override
+        protected ScriptScanner initialValue() {
+            return new ScriptScanner(new byte[SCAN_BUFFER_SIZE]);
+        }
     };
 
+    /* Least recently used encodings of scripts by path */
+    private static final LinkedHashMap<String, ScriptEncoding> sEncodingCache =
+            new LinkedHashMap<String, ScriptEncoding>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ScriptEncoding> eldest) {
+            return size() > ENCODING_CACHE_SIZE;
+        }
+    };
+
+    private static class ScriptEncoding {
+        final long lastModified;
+        final long length;
+        final EncodingDetector.Result result;
+
+        ScriptEncoding(File script, EncodingDetector.Result result) {
+            lastModified = script.lastModified();
+            length = script.length();
+            this.result = result;
+        }
+    }
+
     /**
-     * Basic parsing operations on a byte buffer to handle
-     * its position and parsing through the script
+     * Reads a script through a fixed buffer one chunk at a time. For nscript.dat
+     * it xors 0x84 on each byte to decode the script as it is read. It stops
+     * returning bytes once the budget of bytes to read is used up. Every chunk
+     * read is also given to the encoding detector if there is one.
      * @author Matthew Ng
      *
      */
-    private static class BasicParser {
-        public BasicParser(byte[] buffer) {
-            mBuffer = buffer;
-            mSize = buffer.length;
-            mPos = 0;
-        }
+    private static class ScriptScanner {
+        private final byte[] mBuffer;
+        private final EncodingDetector mDetector;
+        private InputStream mStream;
+        private boolean mDecode;
+        private boolean mDetect;
+        private boolean mEnded;
+        private int mRemainingBudget;
+        private int mSize;
+        private int mPos;
 
-        public void skipWhiteText() {
-            while(!eof() && (internalGetByte() == ' ' || internalGetByte() < '\n')) mPos++;
-        }
-
-        public void passCharacter(char c) {
-            while(!eof() && getByte() != c);
+        public ScriptScanner(byte[] buffer) {
+            mBuffer = buffer;
+            mDetector = new EncodingDetector();
         }
 
-        public int getPosition() {
-            return mPos;
+        public void reset(InputStream in, boolean decode, int budget, boolean detect) {
+            mStream = in;
+            mDecode = decode;
+            mDetect = detect;
+            mRemainingBudget = budget;
+            mEnded = false;
+            mSize = 0;
+            mPos = 0;
+            mDetector.reset();
         }
 
-        public boolean eof() {
-            return mPos >= mSize;
+        public EncodingDetector getDetector() {
+            return mDetector;
         }
 
-        public byte[] copyRange(int from, int to) {
-            return Arrays.copyOfRange(mBuffer, from, to);
+        /**
+         * Whether the whole script was read, false if it stopped at the
+         * budget or has not been read to the end yet
+         * @return
+         */
+        public boolean isAtEnd() {
+            return mEnded;
         }
 
-        protected byte internalGetByte() {
-            return mBuffer[mPos];
+        /**
+         * Gets the next byte of the script
+         * @return the byte (0-255) or -1 if end of file or budget was reached
+         * @throws IOException
+         */
+        public int next() throws IOException {
+            if (mPos >= mSize && !fill()) {
+                return -1;
+            }
+            return mBuffer[mPos++] & 0xFF;
         }
 
-        public boolean nextMatchesAndSkip(String text) {
-            if (internalGetByte() == text.charAt(0)){
-                for (int i = 1; i < text.length(); i++) {
-                    mPos++;
-                    if (internalGetByte() != text.charAt(i)) {
-                        return false;
-                    }
+        /**
+         * Skips bytes till after the next occurrence of the character
+         * @param c
+         * @return false if end of file or budget was reached first
+         * @throws IOException
+         */
+        public boolean passCharacter(int c) throws IOException {
+            int b;
+            while ((b = next()) != -1) {
+                if (b == c) {
+                    return true;
                 }
-                mPos++;
-                return true;
             }
             return false;
         }
 
-        public byte getByte() {
-            if (eof()) return 0;
-            byte ret = internalGetByte();
-            mPos++;
-            return ret;
+        private boolean fill() throws IOException {
+            if (mRemainingBudget <= 0 || mStream == null) {
+                return false;
+            }
+            int len = mStream.read(mBuffer, 0, Math.min(mBuffer.length, mRemainingBudget));
+            if (len <= 0) {
+                mEnded = true;
+                return false;
+            }
+            mRemainingBudget -= len;
+            mSize = len;
+            mPos = 0;
+            if (mDecode) {
+                for (int i = 0; i < len; i++) {
+                    mBuffer[i] ^= 0x84;
+                }
+            }
+            if (mDetect) {
+                mDetector.update(mBuffer, 0, len);
+            }
+            return true;
         }
-
-        protected final byte[] mBuffer;
-        protected final int mSize;
-        protected int mPos;
     }
 
     /**
-     * This extends basic parser that xors 0x84 on each byte to decode the script
-     * @author Matthew Ng
-     *
+     * Sets the number of bytes from the start of a script that are scanned
+     * for the caption before giving up.
+     * @param bytes
      */
-    private static class NScriptParser extends BasicParser {
-        public NScriptParser(byte[] buffer) {
-            super(buffer);
-        }
-
-        private byte get(int pos) {
-            return (byte) ((byte)(mBuffer[pos] ^ 0x84) & 0xFF);
-        }
+    public static void setCaptionScanBudget(int bytes) {
+        sCaptionScanBudget = bytes > 0 ? bytes : DEFAULT_CAPTION_SCAN_BUDGET;
+    }
 
-        @Override
-        protected byte internalGetByte() {
-            return get(mPos);
-        }
+    // Spaces, tabs and (signed) bytes under newline are skipped before a command
+    private static boolean isWhiteText(int c) {
+        return c == ' ' || (byte)c < '\n';
+    }
 
-        @Override
-        public byte[] copyRange(int from, int to) {
-            byte[] ret = new byte[to - from];
-            for (int i = from; i < to; i++) {
-                ret[i - from] = get(i);
-            }
-            return ret;
-        }
+    private static int skipWhiteText(ScriptScanner scanner) throws IOException {
+        int c;
+        while ((c = scanner.next()) != -1 && isWhiteText(c));
+        return c;
     }
 
     /* Getting caption from file */
@@ -121,60 +185,85 @@ public class GameUtils {
      * @return the name of the game (by its caption)
      */
     public static String getGameName(String path) {
-        if (path != null) {
-            final String[] names = {"nscript.dat", "0.txt", "00.txt"};      // Too lazy to support "nscr_sec.dat & nscript.___" encryption
-            File filepath = null;
-            for (int i = 0; i < names.length; i++) {
-                filepath = new File(path + "/" + names[i]);
-                if (filepath.exists()) {
-                    return getCaptionName(filepath);
-                }
-            }
+        File filepath = getScriptFile(path);
+        return filepath != null ? getCaptionName(filepath) : null;
+    }
+
+    // Too lazy to support "nscr_sec.dat & nscript.___" encryption
+    private static File getScriptFile(String path) {
+        return path != null ? GameFolder.probe(path).getReadableScriptFile() : null;
+    }
+
+    private static ScriptEncoding getCachedEncoding(File script) {
+        ScriptEncoding cached;
+        synchronized (sEncodingCache) {
+            cached = sEncodingCache.get(script.getPath());
+        }
+        if (cached != null && cached.lastModified == script.lastModified()
+                && cached.length == script.length()) {
+            return cached;
         }
         return null;
     }
 
+    private static void cacheEncoding(File script, EncodingDetector.Result result) {
+        if (result.getCharset() == null) {
+            return;
+        }
+        synchronized (sEncodingCache) {
+            sEncodingCache.put(script.getPath(), new ScriptEncoding(script, result));
+        }
+    }
+
     private static String getCaptionName(File filepath) {
-        DataInputStream dis = null;
+        final String command = "caption";
+        FileInputStream fis = null;
+        ScriptEncoding cached = getCachedEncoding(filepath);
         try {
-            int size = filepath.length() > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE / 2 : (int)filepath.length();
-            byte[] buffer = new byte[size];
-            dis = new DataInputStream(new FileInputStream(filepath));
-            dis.readFully(buffer, 0, size);
+            fis = new FileInputStream(filepath);
+            ScriptScanner scanner = sScanner.get();
+            scanner.reset(fis, !filepath.getPath().endsWith(".txt"), sCaptionScanBudget, cached == null);
 
-            BasicParser parser = filepath.getPath().endsWith(".txt") ? new BasicParser(buffer) : new NScriptParser(buffer);
-            while(!parser.eof()) {
-                // Skip spaces/tabs
-                parser.skipWhiteText();
-
-                if (parser.eof()) {
-                    return null;
+            int c;
+            while ((c = skipWhiteText(scanner)) != -1) {
+                // Match the command, the first byte that does not match is kept in c
+                int matched = 0;
+                while (c == command.charAt(matched)) {
+                    if (++matched == command.length()) {
+                        break;
+                    }
+                    c = scanner.next();
                 }
 
-                if (parser.nextMatchesAndSkip("caption")) {
-                    parser.skipWhiteText();
-
-                    if (parser.getByte() != '"') {
+                if (matched == command.length()) {
+                    if (skipWhiteText(scanner) != '"') {
                         // Did not follow with quote
                         return null;
                     }
 
                     // Scan line till the end quote
-                    int start = parser.getPosition();
-                    parser.passCharacter('"');
-                    byte[] data = parser.copyRange(start, parser.getPosition() - 1);
-                    return convertLocaleBytes(data);
+                    ByteArrayOutputStream data = new ByteArrayOutputStream(64);
+                    while ((c = scanner.next()) != '"') {
+                        if (c == -1) {
+                            return null;
+                        }
+                        data.write(c);
+                    }
+                    return decodeCaption(filepath, cached, scanner, data.toByteArray());
                 }
 
                 // Go to the end of the line
-                parser.passCharacter('\n');
+                if (c != '\n' && !scanner.passCharacter('\n')) {
+                    return null;
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            if (dis != null) {
+            sScanner.get().reset(null, false, 0, false);
+            if (fis != null) {
                 try {
-                    dis.close();
+                    fis.close();
                 } catch (IOException e) {}
             }
         }
@@ -182,124 +271,30 @@ public class GameUtils {
     }
 
     /**
-     * Tries to decode the text using one of the supported encodings and outputs it
-     * @param encoding
+     * Decodes the caption with the encoding of the script read so far, which
+     * is then cached for the script. The script is read a buffer at a time so
+     * it can end in the middle of a character, unless the whole script was
+     * read. If the script cannot be decoded by any encoding, only the caption
+     * is used.
+     * @param script
+     * @param cached
+     * @param scanner
      * @param data
      * @return
      */
-    static private String tryToDecodeString(Encoding encoding, byte[] data) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < data.length; i++) {
-            byte b = data[i];
-            if ((b & 0x80) == 0) {
-                // 1 Byte character
-                sb.append((char)b);
+    private static String decodeCaption(File script, ScriptEncoding cached,
+            ScriptScanner scanner, byte[] data) {
+        EncodingDetector.Result result;
+        if (cached != null) {
+            result = cached.result;
+        } else {
+            result = scanner.getDetector().getResult(!scanner.isAtEnd());
+            if (result.getCharset() != null) {
+                cacheEncoding(script, result);
             } else {
-                // 2 Byte characters
-                if (i + 1 >= data.length) {
-                    // Misaligned bytes in buffer
-                    return null;
-                }
-                try {
-                    byte nextByte = data[i + 1];
-                    byte[] bytes = new byte[]{b, nextByte };
-                    switch (encoding) {
-                    case KOREAN:
-                        if (isKorean(b, nextByte)) {
-                            sb.append(new String(bytes, "EUC-KR"));
-                        } else {
-                            return null;
-                        }
-                        break;
-                    case JAPANESE:
-                        if (isJapanese(b)) {
-                            sb.append(new String(bytes, "SHIFT_JIS"));
-                        } else {
-                            return null;
-                        }
-                        break;
-                    case CHINESE:
-                        if (isChinese(b, nextByte)) {
-                            sb.append(new String(bytes, "GBK"));
-                        } else {
-                            return null;
-                        }
-                        break;
-                    case UTF8:
-                        int utf8Size = 0;
-                        if ((utf8Size = UTF8ByteLength(b)) > 1) {
-                            byte[] utf8Char = Arrays.copyOfRange(data, i, i + utf8Size);
-                            sb.append(new String(utf8Char, "UTF-8").trim());
-                        } else {
-                            return null;
-                        }
-                        i += utf8Size - 2;
-                        break;
-                    }
-                    i++;
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                    return null;
-                }
+                result = EncodingDetector.detect(data, 0, data.length);
             }
         }
-        return sb.toString();
-    }
-
-    /**
-     * Decodes the text given the languages in its order
-     * @param data
-     * @return
-     */
-    static private String convertLocaleBytes(byte[] data) {
-        // Tries each language till one works and we return it
-        String text = null;
-        if ( (text = tryToDecodeString(Encoding.JAPANESE, data)) != null
-            || (text = tryToDecodeString(Encoding.KOREAN, data)) != null
-            || (text = tryToDecodeString(Encoding.UTF8, data)) != null
-            || (text = tryToDecodeString(Encoding.CHINESE, data)) != null) {
-            return text;
-        }
-        return null;
-    }
-
-    // http://ash.jp/code/cn/gb2312tbl.htm
-    static private boolean isChinese(byte c, byte c2) {
-        int n = (c & 0xFF) << 8 | (c2 & 0xFF);
-        return (n >= 0xA1A0 && n <= 0xfcfc) == true;
-    }
-
-    static private int UTF8ByteLength(byte c) {
-        // 1 Byte (0 to 127)
-        if ((c & 0x80) == 0) {
-            return 1;
-        }
-        // 2 Bytes (128 - 2047)
-        else if ((c & 0xE0) == 0xC0) {
-            return 2;
-        }
-        // 3 Bytes (2048 to 55295 and 57344 to 65535)
-        else if ((c & 0xF0) == 0xE0) {
-            return 3;
-        }
-        // 4 Bytes (65536 to 1114111)
-        else if ((c & 0xF8) == 0xF0) {
-            return 4;
-        }
-        return -1;
-    }
-
-    static private boolean isJapanese(byte c) {
-        return ( (c & 0xe0) == 0xe0 || (c & 0xe0) == 0x80 );
-    }
-
-    // http://ftp.unicode.org/Public/MAPPINGS/VENDORS/APPLE/KOREAN.TXT
-    static private boolean isKorean(byte c, byte c2) {
-        int n = (c & 0xFF) << 8 | (c2 & 0xFF);
-        return
-        /* Hangul syllables */  ((n >= 0xB0A1 && n <= 0xC8FE)
-        /* Standard Korean */ || (n >= 0xA141 && n <= 0xA974)
-        /* Chinese Gylphs */  || (n >= 0xD0A1 && n <= 0xFDFE)
-                                    ) == true;
+        return result.decode(data, 0, data.length);
     }
 }
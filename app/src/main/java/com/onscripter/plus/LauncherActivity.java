@@ -6,9 +6,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.Locale;
-import java.util.Queue;
+import java.util.Map;
+import java.util.Set;
 
 import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
@@ -19,7 +20,6 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.pm.ApplicationInfo;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.preference.PreferenceManager;
@@ -30,6 +30,8 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.ListView;
@@ -38,6 +40,10 @@ import android.widget.Toast;
 import com.onscripter.plus.ExtSDCardFix.OnSDCardFixListener;
 import com.onscripter.plus.FileSystemAdapter.CustomFileTypeParser;
 import com.onscripter.plus.FileSystemAdapter.LIST_ITEM_TYPE;
+import com.onscripter.plus.FileSystemAdapter.OnDirectoryChangeListener;
+import com.onscripter.plus.FileSystemAdapter.SORT_MODE;
+import com.onscripter.plus.FolderWatcher.OnFolderChangedListener;
+import com.onscripter.plus.GameInfoParser.OnGameInfoParsedListener;
 import com.onscripter.plus.bugtracking.BugTrackingService;
 import com.onscripter.plus.bugtracking.ONScripterTracer;
 
@@ -50,6 +56,7 @@ public class LauncherActivity extends ActivityPlus implements AdapterView.OnItem
     public static String DEFAULT_FONT_FILE_NAME = null;
     public static String SETTINGS_FOLDER_DEFAULT_KEY = null;
     public static String SETTINGS_THEME_KEY = null;
+    public static String SETTINGS_SORT_KEY = null;
     public static String GAME_PREF_NAME_KEY = null;
     private static File DEFAULT_LOCATION;
     private static String FONTS_FOLDER = null;
@@ -64,6 +71,10 @@ public class LauncherActivity extends ActivityPlus implements AdapterView.OnItem
     private ExtSDCardFix mFix;
     private String mCurrentThemeResult;
     private ChangeLog mChangeLog;
+    private GameInfoParser mGameInfoParser;
+    private boolean mParsingCancelled;
+    private FolderWatcher mWatcher;
+    private boolean mWatching;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -91,6 +102,7 @@ public class LauncherActivity extends ActivityPlus implements AdapterView.OnItem
             DEFAULT_FONT_PATH = getFilesDir() + "/" + DEFAULT_FONT_FILE;
             SETTINGS_FOLDER_DEFAULT_KEY = getString(R.string.settings_folder_default_key);
             SETTINGS_THEME_KEY = getString(R.string.settings_theme_key);
+            SETTINGS_SORT_KEY = getString(R.string.settings_sort_key);
             GAME_PREF_NAME_KEY = getString(R.string.game_pref_name);
             DEFAULT_LOCATION = Environment2.getExternalSDCardDirectory() != null ?
                     Environment2.getExternalSDCardDirectory() : Environment.getExternalStorageDirectory();
@@ -130,18 +142,61 @@ public class LauncherActivity extends ActivityPlus implements AdapterView.OnItem
             }
         }
 
+        // Parse game information on background threads and show them in batches
+        mGameInfoParser = new GameInfoParser();
+        mGameInfoParser.setOnGameInfoParsedListener(new OnGameInfoParsedListener() {
+            @Override
+            public void onGameInfoParsed(Map<String, String> names) {
+                if (mAdapter != null) {
+                    mAdapter.setCaptions(names);
+                }
+            }
+        });
+
         // Set up the listView and the adapter
         try {
-            mAdapter = new FileSystemAdapter(this, directory, true, false, false, this);
+            mAdapter = new FileSystemAdapter(this, directory, true, true, false, this);
             mAdapter.addLowerBoundFile(Environment.getExternalStorageDirectory());
             mAdapter.addLowerBoundFile(Environment2.getExternalSDCardDirectory());
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         }
+
+        // Show games copied, removed or renamed while the launcher is open without listing again
+        mWatcher = new FolderWatcher(new OnFolderChangedListener() {
+            @Override
+            public void onFolderChanged(File folder, Set<String> added, Set<String> removed,
+                    Set<String> changed) {
+                applyFolderChanges(folder, added, removed, changed);
+            }
+        });
+        mAdapter.setOnDirectoryChangeListener(new OnDirectoryChangeListener() {
+            @Override
+            public void onDirectoryChanging(File directory) {
+                // Stop parsing the games of the last folder
+                mGameInfoParser.cancelAll();
+            }
+
+            @Override
+            public void onDirectoryShown(File directory) {
+                watchFolders();
+            }
+        });
+        updateSortMode();
         final ListView listView = new ListView(this);
-        mAdapter.onlyShowFolders(true);
         listView.setAdapter(mAdapter);
         listView.setOnItemClickListener(this);
+        listView.setOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem,
+                    int visibleItemCount, int totalItemCount) {
+                prioritizeVisibleGames(firstVisibleItem, visibleItemCount);
+            }
+        });
         if (themeName.equals(defaultThemeName)) {
             listView.setBackgroundColor(getResources().getColor(android.R.color.background_light));
         }
@@ -194,6 +249,7 @@ public class LauncherActivity extends ActivityPlus implements AdapterView.OnItem
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 ExtSDCardFix.setSaveFolder(mSaveDirBrowse.getResultDirectory().getAbsolutePath());
+                watchFolders();
             }
         });
         builder.setNegativeButton(android.R.string.cancel, null);
@@ -246,12 +302,13 @@ public class LauncherActivity extends ActivityPlus implements AdapterView.OnItem
             @Override
             public void writeTestFinished() {
                 mChangeLog = new ChangeLog(LauncherActivity.this);
-                ParseGameInfoTask.start();
+                mGameInfoParser.start();
             }
 
             @Override
             public void option2Finished() {
                 updateSaveFolderItemVisibility();
+                watchFolders();
             }
 
             @Override
@@ -265,6 +322,7 @@ public class LauncherActivity extends ActivityPlus implements AdapterView.OnItem
             @Override
             public void copySaveFilesBack() {
                 updateSaveFolderItemVisibility();
+                watchFolders();
             }
         });
     }
@@ -320,6 +378,7 @@ public class LauncherActivity extends ActivityPlus implements AdapterView.OnItem
         case REQUEST_CODE_SETTINGS:
             String path = mPrefs.getString(SETTINGS_FOLDER_DEFAULT_KEY, null);
             setPath(path);
+            updateSortMode();
 
             // Change in theme
             String theme = mPrefs.getString(SETTINGS_THEME_KEY, "");
@@ -331,15 +390,50 @@ public class LauncherActivity extends ActivityPlus implements AdapterView.OnItem
         }
     }
 
+    private void updateSortMode() {
+        String value = mPrefs.getString(SETTINGS_SORT_KEY, getString(R.string.settings_sort_default_value));
+        SORT_MODE[] modes = SORT_MODE.values();
+        int index;
+        try {
+            index = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            index = 0;
+        }
+        mAdapter.setSortMode(modes[index >= 0 && index < modes.length ? index : 0]);
+    }
+
+    private void prioritizeVisibleGames(int firstVisibleItem, int visibleItemCount) {
+        if (mAdapter == null || visibleItemCount <= 0) {
+            return;
+        }
+        ArrayList<String> paths = new ArrayList<String>(visibleItemCount);
+        int end = Math.min(firstVisibleItem + visibleItemCount, mAdapter.getCount());
+        for (int i = firstVisibleItem; i < end; i++) {
+            File file = mAdapter.getFile(i);
+            if (file != null) {
+                paths.add(file.getPath());
+            }
+        }
+        mGameInfoParser.prioritize(paths);
+    }
+
+    /**
+     * Runs on the folder loader's background thread, one folder at a time
+     */
     @Override
     public LIST_ITEM_TYPE onFileTypeParse(File file) {
         if (file.isFile()) {
             return LIST_ITEM_TYPE.FILE;
         } else {
             // Folder
-            if (isDirectoryONScripterGame(file)) {
-                // Parse the information of the game in another thread
-                ParseGameInfoTask.queue(file.toString());
+            GameLibraryIndex.GameEntry entry = GameLibraryIndex.getInstance().getEntry(file);
+            if (entry.isGame()) {
+                // Parse the information of the game in another thread if not indexed yet
+                if (entry.getCaption() == null) {
+                    mGameInfoParser.queue(file.toString());
+                } else {
+                    mGameInfoParser.deliver(file.toString(), entry.getCaption());
+                }
                 return LIST_ITEM_TYPE.FILE;
             } else {
                 return LIST_ITEM_TYPE.FOLDER;
@@ -347,22 +441,48 @@ public class LauncherActivity extends ActivityPlus implements AdapterView.OnItem
         }
     }
 
-    public static boolean isDirectoryONScripterGame(File file) {
-        if (!file.canRead()) {
-            return false;
+    /**
+     * Watches the folder shown and the save folder while the launcher is
+     * visible, stops watching any other
+     */
+    private void watchFolders() {
+        if (mWatcher == null || mAdapter == null || !mWatching) {
+            return;
         }
-        File[] mDirectoryFiles = file.listFiles(new FileFilter() {
-            @Override
-            public boolean accept(File file) {
-                return (file.isFile() &&
-                        (file.getName().equals("0.txt") ||
-                         file.getName().equals("00.txt") ||
-                         file.getName().equals("nscr_sec.dat") ||
-                         file.getName().equals("nscript.___") ||
-                         file.getName().equals("nscript.dat")));
+        File library = mAdapter.getCurrentDirectory();
+        File saveFolder = ExtSDCardFix.getSaveFolder();
+        for (File folder : mWatcher.getWatchedFolders()) {
+            if (!folder.equals(library) && !folder.equals(saveFolder)) {
+                mWatcher.unwatch(folder);
             }
-        });
-        return mDirectoryFiles != null && mDirectoryFiles.length > 0;
+        }
+        mWatcher.watch(library);
+        mWatcher.watch(saveFolder);
+    }
+
+    private void applyFolderChanges(File folder, Set<String> added, Set<String> removed,
+            Set<String> changed) {
+        File library = mAdapter.getCurrentDirectory();
+        if (folder.equals(ExtSDCardFix.getSaveFolder())) {
+            // The game's preferences may now come from the save folder, read its name again
+            ArrayList<String> names = new ArrayList<String>(added);
+            names.addAll(removed);
+            names.addAll(changed);
+            for (String name : names) {
+                File game = new File(library, name);
+                if (game.isDirectory() && GameLibraryIndex.getInstance().getEntry(game).isGame()) {
+                    mGameInfoParser.queue(game.getPath());
+                }
+            }
+        }
+        if (folder.equals(library)) {
+            GameLibraryIndex.getInstance().applyChanges(folder, added, removed, changed);
+            mAdapter.applyChanges(folder, added, removed, changed);
+        }
+    }
+
+    public static boolean isDirectoryONScripterGame(File file) {
+        return GameLibraryIndex.getInstance().getEntry(file).isGame();
     }
 
     protected static void log(Object... txt) {
@@ -419,6 +539,29 @@ public class LauncherActivity extends ActivityPlus implements AdapterView.OnItem
         super.onPause();
         mDirBrowse.dismiss();
         mSaveDirBrowse.dismiss();
+
+        // Nothing is parsed while the launcher is hidden, the folder is loaded again on resume
+        if (mAdapter != null) {
+            mAdapter.cancelLoad();
+            mGameInfoParser.cancelAll();
+            mParsingCancelled = true;
+        }
+        mWatching = false;
+        if (mWatcher != null) {
+            mWatcher.unwatchAll();
+        }
+        GameLibraryIndex.getInstance().save();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mGameInfoParser != null) {
+            mGameInfoParser.shutdown();
+        }
+        if (mWatcher != null) {
+            mWatcher.shutdown();
+        }
+        super.onDestroy();
     }
 
     @Override
@@ -426,6 +569,15 @@ public class LauncherActivity extends ActivityPlus implements AdapterView.OnItem
         super.onResume();
         ONScripterTracer.close();
         BugTrackingService.sendPendingReport(this);
+        mWatching = true;
+        watchFolders();
+        if (mAdapter != null) {
+            mAdapter.setLastPlayedTimes(GameLibraryIndex.getInstance().getLastPlayedTimes());
+            if (mParsingCancelled) {
+                mParsingCancelled = false;
+                mAdapter.setCurrentDirectory(mAdapter.getCurrentDirectory());
+            }
+        }
     }
 
     @Override
@@ -444,20 +596,25 @@ public class LauncherActivity extends ActivityPlus implements AdapterView.OnItem
             return;
         }
 
-        if (isDirectoryONScripterGame(currentDir)) {
-            if (!new File(currentDir + "/arc.nsa").exists()) {
+        // Probe the folder again in case the index is out of date
+        GameLibraryIndex.GameEntry entry = GameLibraryIndex.getInstance().refresh(currentDir);
+        if (entry.isGame()) {
+            if (!entry.hasArchive()) {
                 alert("arc.nsa does not exist!");
                 return;
             }
             // Prevent PONScripter games from running and crashing
-            VNPreferences pref = ExtSDCardFix.getGameVNPreference(currentDir.getPath());
-            if (pref != null) {
-                String name = pref.getString(GAME_PREF_NAME_KEY, null);
-                if (name != null && name.toLowerCase(Locale.getDefault()).contains("ponscripter")) {
-                    alert(getString(R.string.message_ponscripter_not_supported));
-                    return;
+            String name = entry.getCaption();
+            if (name == null) {
+                VNPreferences pref = ExtSDCardFix.getGameVNPreference(currentDir.getPath());
+                if (pref != null) {
+                    name = pref.getString(GAME_PREF_NAME_KEY, null);
                 }
             }
+            if (name != null && name.toLowerCase(Locale.getDefault()).contains("ponscripter")) {
+                alert(getString(R.string.message_ponscripter_not_supported));
+                return;
+            }
             startONScripterCheckFont(currentDir.getPath());
         } else {
             mAdapter.setChildAsCurrent(position);
@@ -517,6 +674,7 @@ public class LauncherActivity extends ActivityPlus implements AdapterView.OnItem
             if (useDefaultFont) {
                 i.putExtra(ONScripter.USE_DEFAULT_FONT_EXTRA, true);
             }
+            GameLibraryIndex.getInstance().setLastPlayed(new File(path));
             startActivity(i);
         } else {
             updateSaveFolderItemVisibility();
@@ -616,74 +774,4 @@ public class LauncherActivity extends ActivityPlus implements AdapterView.OnItem
             mCopyTask = null;
         }
     }
-
-
-    static class ParseGameInfoTask extends AsyncTask<Void, Void, Void> {
-        // Static Queue Management
-        private static Queue<String> sParseGameInfoTaskQueue = new LinkedList<String>();
-        private static boolean sIsJobRunning = false;
-        public static void queue(String gamePath) {
-            synchronized (sParseGameInfoTaskQueue) {
-                sParseGameInfoTaskQueue.add(gamePath);
-            }
-        }
-        public static void start() {
-            runJob();
-        }
-        private static void runJob() {
-            String path = null;
-            synchronized (sParseGameInfoTaskQueue) {
-                if (sIsJobRunning || sParseGameInfoTaskQueue.isEmpty()) {
-                    return;
-                }
-                sIsJobRunning = true;
-                path = sParseGameInfoTaskQueue.poll();
-            }
-            new ParseGameInfoTask(path).execute();
-        }
-
-        // ParseGameInfoTask Class
-        private final String mGamePath;
-
-        public ParseGameInfoTask(String gamePath) {
-            mGamePath = gamePath;
-        }
-
-        @Override
-        protected Void doInBackground(Void... params) {
-            if (mGamePath != null) {
-                final VNPreferences pref = ExtSDCardFix.getGameVNPreference(mGamePath);
-
-                // Get the name of game
-                String name = null;
-                if (pref != null) {
-                    name = pref.getString(GAME_PREF_NAME_KEY, null);
-                }
-                if (name == null) {
-                    name = GameUtils.getGameName(mGamePath);
-
-                    // If can't find the name, then we will use the file path
-                    if (name == null) {
-                        name = new File(mGamePath).getName();
-                    }
-
-                    // Save the name into the preferences
-                    if (pref != null) {
-                        pref.putString(GAME_PREF_NAME_KEY, name);
-                        pref.commit();
-                    }
-                }
-            }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void result) {
-            super.onPostExecute(result);
-            synchronized (sParseGameInfoTaskQueue) {
-                sIsJobRunning = false;
-            }
-            runJob();
-        }
-    }
 }
@@ -1,8 +1,8 @@
 package com.onscripter.plus;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.util.HashMap;
+import java.util.List;
 
 import android.annotation.TargetApi;
 import android.app.AlertDialog;
@@ -150,8 +150,10 @@ public class ONScripter extends ActivityPlus implements OnClickListener, OnDismi
         mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
         updateControlPreferences();
 
+        // Only the font scale is needed to start, the rest is read when the settings dialog opens
         mVNPrefs = ExtSDCardFix.getGameVNPreference(mCurrentDirectory);
         mVNPrefs.setOnLoadVNPrefListener(this);
+        mVNPrefs.loadInBackground(false);
 
         mLeftLayout.setOtherLayout(mRightLayout);
         mRightLayout.setOtherLayout(mLeftLayout);
@@ -312,6 +314,9 @@ public class ONScripter extends ActivityPlus implements OnClickListener, OnDismi
         // Android 3.2+: a hack to not show the navigation bar when dialogs are shown
         Window dialogWin = mDialog.getWindow();
         dialogWin.setFlags(WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE, WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE);
+        if (!mVNPrefs.isLoaded()) {
+            mVNPrefs.loadInBackground(true);
+        }
         mDialog.show();
         dialogWin.getDecorView().setSystemUiVisibility(
                 getWindow().getDecorView().getSystemUiVisibility());
@@ -451,7 +456,7 @@ public class ONScripter extends ActivityPlus implements OnClickListener, OnDismi
 
     @Override
     public void onLoadVNPref(Result result) {
-        if (result == Result.NO_ISSUES) {
+        if (result == Result.NO_ISSUES && !mDialog.isShowing()) {
             // Load scale factor
             double scaleFactor = mVNPrefs.getFloat(DIALOG_FONT_SCALE_KEY, 1);
             mDialog.setFontScalingFactor(scaleFactor);
@@ -578,47 +583,32 @@ public class ONScripter extends ActivityPlus implements OnClickListener, OnDismi
             new Thread(new Runnable() {
                 @Override
                 public void run() {
-                    // Scan the sub-directories one level for a script file name and
-                    // add to list when found, if found it skips to next sub-directory
-                    File[] files = new File(mCurrentDirectory).listFiles(new FileFilter() {
-                        @Override
-                        public boolean accept(File pathname) {
-                            return pathname.isDirectory() && pathname.canRead();
-                        }
-                    });
-                    if (files != null) {
+                    // Scan the sub-directories one level for a script file
+                    List<String> scripts = GameFolder.probe(mCurrentDirectory).getSubGameScripts();
+                    if (!scripts.isEmpty()) {
                         final StringBuilder sb = new StringBuilder();
-                        final String[] scriptNames = {"nscript.dat", "0.txt", "00.txt"};
-                        for (File subdir: files) {
-                            String subdirName = subdir.getName();
-                            for (String scriptName: scriptNames) {
-                                File scriptFile = new File(subdir + "/" + scriptName);
-                                if (scriptFile.exists() && scriptFile.canRead()) {
-                                    sb.append("\n\t- " + subdirName + "/" + scriptName);
-                                    break;
-                                }
-                            }
-                        }
-                        if (sb.length() > 0) {
-                            // Show dialog informing them that there are multiple script files
-                            runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    new Builder(ONScripter.this)
-                                    .setTitle(getString(R.string.app_name))
-                                    .setMessage(getString(R.string.message_multiple_script_files) + sb.toString())
-                                    .setNegativeButton(R.string.dialog_multiple_scripts_dont_show_again,
-                                            new DialogInterface.OnClickListener() {
-                                        @Override
-                                        public void onClick(DialogInterface dialog, int which) {
-                                            mPrefs.edit().putBoolean(dontShowAgainKey, true).apply();
-                                        }
-                                    })
-                                    .setPositiveButton(android.R.string.ok, null)
-                                    .show();
-                                }
-                            });
+                        for (String script : scripts) {
+                            sb.append("\n\t- ").append(script);
                         }
+
+                        // Show dialog informing them that there are multiple script files
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                new Builder(ONScripter.this)
+                                .setTitle(getString(R.string.app_name))
+                                .setMessage(getString(R.string.message_multiple_script_files) + sb.toString())
+                                .setNegativeButton(R.string.dialog_multiple_scripts_dont_show_again,
+                                        new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(DialogInterface dialog, int which) {
+                                        mPrefs.edit().putBoolean(dontShowAgainKey, true).apply();
+                                    }
+                                })
+                                .setPositiveButton(android.R.string.ok, null)
+                                .show();
+                            }
+                        });
                     }
                 }
             }).start();
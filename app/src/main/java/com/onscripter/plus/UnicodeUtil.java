@@ -1,56 +1,241 @@
 package com.onscripter.plus;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PushbackInputStream;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.HashMap;
 
 public class UnicodeUtil {
+    private static final String DEFAULT_ENCODING = "ASCII";
+    private static final char BOM_CHAR = '\uFEFF';
 
+    /* Each thread keeps its coders and buffers so converting does not allocate them every time */
+    private static final ThreadLocal<Transcoder> sTranscoder = new ThreadLocal<Transcoder>() {
+        @Override
+        protected Transcoder initialValue() {
+            return new Transcoder();
+        }
+    };
+
+    /**
+     * Converts the text to another encoding. The input encoding is taken from
+     * its BOM, otherwise it is read as ascii. A BOM is written if the output
+     * is a unicode encoding.
+     * @param bytes
+     * @param encout
+     * @return
+     * @throws Exception
+     */
     public static byte[] convert(byte[] bytes, String encout) throws Exception {
         // Workaround for bug that will not be fixed by SUN
         // http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4508058
-        UnicodeInputStream uis = new UnicodeInputStream(
-                new ByteArrayInputStream(bytes), "ASCII");
-        boolean unicodeOutputReqd = (getBOM(encout) != null) ? true : false;
-        String enc = uis.getEncoding();
-        String BOM = getBOM(enc); // get the BOM of the inputstream
+        int bomLength = getBOMLength(bytes, 0, bytes.length);
+        String enc = bomLength > 0 ? getBOMEncoding(bytes, 0, bytes.length) : DEFAULT_ENCODING;
+        Transcoder transcoder = sTranscoder.get();
+        CharBuffer chars = transcoder.decode(bytes, bomLength, bytes.length - bomLength, enc);
+        return transcoder.encode(chars, encout, getBOM(encout) != null);
+    }
 
-        if (BOM == null) {
-            // inputstream looks like ascii...
-            // create a BOM based on the outputstream
-            BOM = getBOM(encout);
+    /**
+     * Decodes the text, using the encoding of its BOM if it has one
+     * @param bytes
+     * @param offset
+     * @param length
+     * @param defaultEnc used if there is no BOM
+     * @return text without the BOM
+     * @throws CharacterCodingException
+     */
+    public static String decode(byte[] bytes, int offset, int length, String defaultEnc)
+            throws CharacterCodingException {
+        int bomLength = getBOMLength(bytes, offset, length);
+        String enc = bomLength > 0 ? getBOMEncoding(bytes, offset, length) : defaultEnc;
+        return sTranscoder.get().decode(bytes, offset + bomLength, length - bomLength, enc).toString();
+    }
+
+    /**
+     * Encodes the text in UTF-8 straight from the sequence into an array of
+     * the exact size. Unpaired surrogates are written as '?'.
+     * @param text
+     * @return
+     */
+    public static byte[] toUTF8(CharSequence text) {
+        int length = text.length();
+        byte[] out = new byte[getUTF8Length(text)];
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xC0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                char low = i + 1 < length ? text.charAt(i + 1) : 0;
+                if (Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+                    int cp = Character.toCodePoint(c, low);
+                    out[pos++] = (byte) (0xF0 | (cp >> 18));
+                    out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    out[pos++] = (byte) (0x80 | (cp & 0x3F));
+                    i++;
+                } else {
+                    out[pos++] = '?';
+                }
+            } else {
+                out[pos++] = (byte) (0xE0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
         }
-        uis.close();
+        return out;
+    }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        BufferedReader br = new BufferedReader(new InputStreamReader(
-                new ByteArrayInputStream(bytes, uis.getBOMOffset(),
-                        bytes.length), enc));
-        Writer w = new BufferedWriter(new OutputStreamWriter(out, encout));
+    /**
+     * Number of bytes the text takes in UTF-8
+     * @param text
+     * @return
+     */
+    public static int getUTF8Length(CharSequence text) {
+        int length = text.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                continue;
+            } else if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                // Both chars are written as 4 bytes
+                bytes += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
 
-        // dont write a BOM for ascii(out) as the OutputStreamWriter
-        // will not process it correctly.
-        if (BOM != null && unicodeOutputReqd) {
-            w.write(BOM);
+    /**
+     * Length of the BOM at the start of the bytes
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return 0 if there is no BOM
+     */
+    public static int getBOMLength(byte[] bytes, int offset, int length) {
+        String enc = getBOMEncoding(bytes, offset, length);
+        if (enc == null) {
+            return 0;
+        } else if (enc.startsWith("UTF-32")) {
+            return 4;
+        } else if (enc.equals("UTF-8")) {
+            return 3;
         }
+        return 2;
+    }
 
-        char[] buffer = new char[4096];
-        int len;
-        while ((len = br.read(buffer)) != -1) {
-            w.write(buffer, 0, len);
+    /**
+     * Finds the encoding from the BOM at the start of the bytes
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return null if there is no BOM
+     */
+    public static String getBOMEncoding(byte[] bytes, int offset, int length) {
+        int b0 = length > 0 ? bytes[offset] & 0xFF : -1;
+        int b1 = length > 1 ? bytes[offset + 1] & 0xFF : -1;
+        int b2 = length > 2 ? bytes[offset + 2] & 0xFF : -1;
+        int b3 = length > 3 ? bytes[offset + 3] & 0xFF : -1;
+        if (b0 == 0x00 && b1 == 0x00 && b2 == 0xFE && b3 == 0xFF) {
+            return "UTF-32BE";
+        } else if (b0 == 0xFF && b1 == 0xFE && b2 == 0x00 && b3 == 0x00) {
+            return "UTF-32LE";
+        } else if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+            return "UTF-8";
+        } else if (b0 == 0xFE && b1 == 0xFF) {
+            return "UTF-16BE";
+        } else if (b0 == 0xFF && b1 == 0xFE) {
+            return "UTF-16LE";
         }
+        return null;
+    }
+
+    /**
+     * Decoders, encoders and buffers of one thread. The buffers only grow so
+     * after the first few conversions nothing but the result is allocated.
+     * @author Matthew Ng
+     *
+     */
+    private static class Transcoder {
+        private final HashMap<String, CharsetDecoder> mDecoders = new HashMap<String, CharsetDecoder>();
+        private final HashMap<String, CharsetEncoder> mEncoders = new HashMap<String, CharsetEncoder>();
+        private CharBuffer mChars = CharBuffer.allocate(1024);
+        private ByteBuffer mBytes = ByteBuffer.allocate(1024);
+        private final CharBuffer mBOM = CharBuffer.wrap(new char[] { BOM_CHAR });
 
-        br.close(); // Close the input.
-        w.close(); // Flush and close output.
-        return out.toByteArray();
+        /**
+         * Decodes into the shared char buffer, only valid till the next call
+         */
+        public CharBuffer decode(byte[] bytes, int offset, int length, String enc)
+                throws CharacterCodingException {
+            CharsetDecoder decoder = mDecoders.get(enc);
+            if (decoder == null) {
+                decoder = Charset.forName(enc).newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                mDecoders.put(enc, decoder);
+            }
+            int capacity = (int) (length * (double) decoder.maxCharsPerByte()) + 1;
+            if (mChars.capacity() < capacity) {
+                mChars = CharBuffer.allocate(capacity);
+            }
+            mChars.clear();
+            decoder.reset();
+            ByteBuffer in = ByteBuffer.wrap(bytes, offset, length);
+            check(decoder.decode(in, mChars, true));
+            check(decoder.flush(mChars));
+            mChars.flip();
+            return mChars;
+        }
+
+        public byte[] encode(CharBuffer chars, String enc, boolean writeBOM)
+                throws CharacterCodingException {
+            CharsetEncoder encoder = mEncoders.get(enc);
+            if (encoder == null) {
+                encoder = Charset.forName(enc).newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                mEncoders.put(enc, encoder);
+            }
+            int capacity = (int) ((chars.remaining() + 1) * (double) encoder.maxBytesPerChar()) + 4;
+            if (mBytes.capacity() < capacity) {
+                mBytes = ByteBuffer.allocate(capacity);
+            }
+            mBytes.clear();
+            encoder.reset();
+            if (writeBOM) {
+                mBOM.rewind();
+                check(encoder.encode(mBOM, mBytes, false));
+            }
+            check(encoder.encode(chars, mBytes, true));
+            check(encoder.flush(mBytes));
+            return Arrays.copyOf(mBytes.array(), mBytes.position());
+        }
+
+        private static void check(CoderResult result) throws CharacterCodingException {
+            // Buffers are sized for the worst case so they never overflow
+            if (result.isError()) {
+                result.throwException();
+            }
+        }
     }
 
     public static String getBOM(String enc) throws UnsupportedEncodingException {
@@ -89,102 +274,4 @@ public class UnicodeUtil {
         }
 
     }
-
-    public static class UnicodeInputStream extends InputStream {
-        private final PushbackInputStream internalIn;
-
-        private boolean isInited = false;
-
-        private int BOMOffset = -1;
-
-        private final String defaultEnc;
-
-        private String encoding;
-
-        public static final int BOM_SIZE = 4;
-
-        public UnicodeInputStream(InputStream in, String defaultEnc) {
-            internalIn = new PushbackInputStream(in, BOM_SIZE);
-            this.defaultEnc = defaultEnc;
-        }
-
-        public String getDefaultEncoding() {
-            return defaultEnc;
-        }
-
-        public String getEncoding() {
-            if (!isInited) {
-                try {
-                    init();
-                } catch (IOException ex) {
-                    IllegalStateException ise = new IllegalStateException(
-                            "Init method failed.");
-                    ise.initCause(ise);
-                    throw ise;
-                }
-            }
-            return encoding;
-        }
-
-        /**
-         * Read-ahead four bytes and check for BOM marks. Extra bytes are unread
-         * back to the stream, only BOM bytes are skipped.
-         */
-        protected void init() throws IOException {
-            if (isInited)
-                return;
-
-            byte bom[] = new byte[BOM_SIZE];
-            int n, unread;
-            n = internalIn.read(bom, 0, bom.length);
-
-            if ((bom[0] == (byte) 0x00) && (bom[1] == (byte) 0x00)
-                    && (bom[2] == (byte) 0xFE) && (bom[3] == (byte) 0xFF)) {
-                encoding = "UTF-32BE";
-                unread = n - 4;
-            } else if ((bom[0] == (byte) 0xFF) && (bom[1] == (byte) 0xFE)
-                    && (bom[2] == (byte) 0x00) && (bom[3] == (byte) 0x00)) {
-                encoding = "UTF-32LE";
-                unread = n - 4;
-            } else if ((bom[0] == (byte) 0xEF) && (bom[1] == (byte) 0xBB)
-                    && (bom[2] == (byte) 0xBF)) {
-                encoding = "UTF-8";
-                unread = n - 3;
-            } else if ((bom[0] == (byte) 0xFE) && (bom[1] == (byte) 0xFF)) {
-                encoding = "UTF-16BE";
-                unread = n - 2;
-            } else if ((bom[0] == (byte) 0xFF) && (bom[1] == (byte) 0xFE)) {
-                encoding = "UTF-16LE";
-                unread = n - 2;
-            } else {
-                // Unicode BOM mark not found, unread all bytes
-                encoding = defaultEnc;
-                unread = n;
-            }
-            BOMOffset = BOM_SIZE - unread;
-            if (unread > 0)
-                internalIn.unread(bom, (n - unread), unread);
-
-            isInited = true;
-        }
-
-        @Override
-        public void close() throws IOException {
-            // init();
-            isInited = true;
-            internalIn.close();
-        }
-
-        @Override
-        public int read() throws IOException {
-            // init();
-            isInited = true;
-            return internalIn.read();
-        }
-
-        public int getBOMOffset() {
-            return BOMOffset;
-        }
-    }
-
-}
\ No newline at end of file
+}
@@ -1,21 +1,34 @@
 package com.onscripter.plus;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.InvalidObjectException;
+import java.io.RandomAccessFile;
+import java.nio.charset.CharacterCodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.content.Context;
 import android.os.AsyncTask;
-import android.os.StatFs;
+import android.os.Process;
 import android.util.Log;
 
 import com.onscripter.plus.bugtracking.BugTrackingService;
@@ -23,10 +36,14 @@ import com.onscripter.plus.bugtracking.BugTrackingService;
 public class VNPreferences {
     private static final String TAG = "VNPreferences";
     public static final String PREF_FILE_NAME = "pref.json";
+    public static final String PREF_BINARY_FILE_NAME = "pref.bin";
 
     private static final int MIN_FILE_SPACE_KB = 300;
     private static final String UTF8_ENCODING = "UTF-8";
 
+    // Commits within this time of each other are written to file once
+    private static final long COMMIT_DELAY_MS = 250;
+
     private static final String JSON_NAME_TYPE = "type";
     private static final String JSON_NAME_VALUE = "value";
 
@@ -35,11 +52,59 @@ public class VNPreferences {
     private static final String TYPE_STRING = "string";
     private static final String TYPE_BOOL = "boolean";
 
+    /*
+     * Binary format: magic, version, hot keys (count then key, type tag and
+     * value written inline), string table (count then each string) and the
+     * properties (count then key string index, type tag and value). String
+     * values are stored as an index into the string table. Version 1 files
+     * do not have the hot keys.
+     */
+    private static final int BINARY_MAGIC = 0x564E5042;     // "VNPB"
+    private static final int BINARY_VERSION = 2;
+    private static final int BINARY_VERSION_NO_HOT_KEYS = 1;
+    private static final int BINARY_MAX_COUNT = 0xFFFF;
+    private static final int BINARY_TYPE_NONE = 0xFF;
+    private static final int HOT_KEYS_BUFFER_SIZE = 512;
+
+    // Strings no longer used are dropped from the table once there are this many more than keys
+    private static final int BINARY_UNUSED_STRINGS = 64;
+
+    private static volatile boolean sUseBinaryFormat = true;
+
+    /* Keys that can be read from the start of the binary file without loading the rest */
+    private static final HashSet<String> sHotKeys = new HashSet<String>();
+    private static boolean sDefaultHotKeysAdded;
+
+    /* All preferences are written on one background thread */
+    private static final ScheduledExecutorService sWriter = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "VNPreferences");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     private final String mPath;
     private final Object mReadWriteLock = new Object();
-    private boolean mLoaded;
-    private LoadSaveSettingsTask mTask;
+    private volatile boolean mLoaded;
+    private LoadSettingsTask mTask;
     private final HashMap<String, Property> mData;
+    private HashMap<String, Property> mHotData;
+    private final HashMap<String, String> mSerialized;
+
+    // Binary encoding of each property and the string table they index, kept between writes
+    private final HashMap<String, byte[]> mEncoded;
+    private final HashMap<String, Integer> mStringIndex;
+    private final ByteArrayOutputStream mStringTable;
+    private boolean mWriteScheduled;
     private OnLoadVNPrefListener mListener;
 
     public interface OnLoadVNPrefListener {
@@ -52,42 +117,101 @@ public class VNPreferences {
         mPath = path;
         mLoaded = false;
         mData = new HashMap<String, Property>();
+        mSerialized = new HashMap<String, String>();
+        mEncoded = new HashMap<String, byte[]>();
+        mStringIndex = new HashMap<String, Integer>();
+        mStringTable = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Marks a key as often read on its own. These keys are written at the
+     * start of the binary file and can be read without loading every
+     * preference. The game name and the font scale always are.
+     * @param key
+     */
+    public static void addHotKey(String key) {
+        if (key != null) {
+            synchronized (sHotKeys) {
+                sHotKeys.add(key);
+            }
+        }
+    }
+
+    private static boolean isHotKey(String key) {
+        synchronized (sHotKeys) {
+            addDefaultHotKeys();
+            return sHotKeys.contains(key);
+        }
+    }
+
+    /**
+     * Every process writes the same hot keys: the game name that the launcher
+     * shows and the font scale that the game reads first. Must hold the lock
+     * on sHotKeys.
+     */
+    private static void addDefaultHotKeys() {
+        if (sDefaultHotKeysAdded) {
+            return;
+        }
+        sHotKeys.add(ONScripter.DIALOG_FONT_SCALE_KEY);
+        Context ctx = App.getContext();
+        if (ctx != null) {
+            sHotKeys.add(ctx.getString(R.string.game_pref_name));
+            sDefaultHotKeysAdded = true;
+        }
+    }
 
-        // Get the data from the files
-        mTask = new LoadSaveSettingsTask(LoadSaveSettingsTask.LOAD_TASK);
+    /**
+     * Reads the preferences in the background and notifies the listener when
+     * finished. Nothing is read until then or until a value is asked for.
+     * @param all if false, only the hot keys are read if the file has them
+     */
+    public void loadInBackground(boolean all) {
+        if (mLoaded || mTask != null) {
+            return;
+        }
+        mTask = new LoadSettingsTask(all);
         mTask.execute();
     }
 
-    private boolean load() {
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Chooses if preferences are written in the compact binary format or as
+     * json. Either format is read regardless and is replaced by the chosen
+     * one on the next commit.
+     * @param useBinary
+     */
+    public static void setUseBinaryFormat(boolean useBinary) {
+        sUseBinaryFormat = useBinary;
+    }
+
+    private synchronized boolean load() {
+        if (mLoaded) {
+            return true;
+        }
+        File binaryFile = new File(mPath + "/" + PREF_BINARY_FILE_NAME);
+        if (binaryFile.exists()) {
+            if (loadBinary(binaryFile)) {
+                mLoaded = true;
+                return true;
+            }
+            Log.w(TAG, "Cannot read " + binaryFile.getAbsolutePath() + ", trying " + PREF_FILE_NAME);
+        }
+
         File file = new File(mPath + "/" + PREF_FILE_NAME);
         if (file.exists()) {
-            StringBuilder sb = new StringBuilder();
-            synchronized (mReadWriteLock) {
-                BufferedReader br = null;
-                try {
-                    // Read file
-                    String line;
-                    br = new BufferedReader(new InputStreamReader(
-                            new FileInputStream(file), UTF8_ENCODING));
-                    while((line = br.readLine()) != null) {
-                        sb.append(line);
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return false;
-                } finally {
-                    if (br != null) {
-                        try {
-                            br.close();
-                        } catch (IOException e) {}
-                    }
-                }
+            byte[] bytes = readFile(file);
+            if (bytes == null) {
+                return false;
             }
 
             // Parse the JSON data
             JSONObject json;
             try {
-                String text = sb.toString();
+                String text = UnicodeUtil.decode(bytes, 0, bytes.length, UTF8_ENCODING);
                 if (!text.isEmpty()) {
                     json = new JSONObject(text.substring(text.indexOf("{"), text.lastIndexOf("}") + 1));
                     for(Iterator<String> iter = json.keys(); iter.hasNext();) {
@@ -106,7 +230,12 @@ public class VNPreferences {
                         } else {
                             continue;       // Ignored
                         }
-                        mData.put(key, prop);
+                        synchronized (mData) {
+                            // Values put before loading are newer than the file
+                            if (!mData.containsKey(key)) {
+                                mData.put(key, prop);
+                            }
+                        }
                     }
                 }
             } catch (JSONException e) {
@@ -115,61 +244,255 @@ public class VNPreferences {
                 BugTrackingService.sendBugReportWithFile(App.getContext(), name,
                         e, null, file.getAbsolutePath());
                 return false;
+            } catch (CharacterCodingException e) {
+                e.printStackTrace();
+                return false;
+            }
+
+            // Move over to the binary format
+            if (sUseBinaryFormat) {
+                commit();
             }
         }
         mLoaded = true;
         return true;
     }
 
+    /**
+     * Reads the whole file at once
+     * @param file
+     * @return null if it cannot be read
+     */
+    private byte[] readFile(File file) {
+        synchronized (mReadWriteLock) {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "r");
+                byte[] bytes = new byte[(int) raf.length()];
+                raf.readFully(bytes);
+                return bytes;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                if (raf != null) {
+                    try {
+                        raf.close();
+                    } catch (IOException e) {}
+                }
+            }
+        }
+    }
+
+    private boolean loadBinary(File file) {
+        // Read the whole file at once and parse from memory
+        byte[] bytes = readFile(file);
+        if (bytes == null) {
+            return false;
+        }
+
+        HashMap<String, Property> data = new HashMap<String, Property>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int version;
+        try {
+            if (in.readInt() != BINARY_MAGIC) {
+                return false;
+            }
+            version = in.readUnsignedByte();
+            if (version == BINARY_VERSION) {
+                // Hot keys are also in the properties below
+                if (!readHotKeys(in, new HashMap<String, Property>())) {
+                    return false;
+                }
+            } else if (version != BINARY_VERSION_NO_HOT_KEYS) {
+                return false;
+            }
+            String[] strings = new String[in.readUnsignedShort()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                String key = strings[in.readUnsignedShort()];
+                Property prop;
+                switch (in.readUnsignedByte()) {
+                case Property.INTEGER:
+                    prop = new Property(in.readInt());
+                    break;
+                case Property.STRING:
+                    prop = new Property(strings[in.readUnsignedShort()]);
+                    break;
+                case Property.BOOLEAN:
+                    prop = new Property(in.readBoolean());
+                    break;
+                case Property.FLOAT:
+                    prop = new Property(in.readFloat());
+                    break;
+                default:
+                    return false;
+                }
+                data.put(key, prop);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            e.printStackTrace();
+            return false;
+        }
+        synchronized (mData) {
+            for (Entry<String, Property> entry : data.entrySet()) {
+                if (!mData.containsKey(entry.getKey())) {
+                    mData.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        // Rewrite older files so the hot keys can be read next time
+        if (version != BINARY_VERSION && sUseBinaryFormat) {
+            commit();
+        }
+        return true;
+    }
+
+    /**
+     * Reads only the hot keys at the start of the binary file, the rest of
+     * the file is not read. Absent hot keys are kept as null values.
+     * @return the hot keys, null if the file does not have them and
+     *          everything has to be loaded instead
+     */
+    private HashMap<String, Property> loadHotKeys() {
+        synchronized (mData) {
+            if (mHotData != null) {
+                return mHotData;
+            }
+        }
+        File file = new File(mPath + "/" + PREF_BINARY_FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        HashMap<String, Property> data = new HashMap<String, Property>();
+        synchronized (mReadWriteLock) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                        HOT_KEYS_BUFFER_SIZE));
+                if (in.readInt() != BINARY_MAGIC || in.readUnsignedByte() != BINARY_VERSION
+                        || !readHotKeys(in, data)) {
+                    return null;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {}
+                }
+            }
+        }
+        synchronized (mData) {
+            mHotData = data;
+        }
+        return data;
+    }
+
+    private boolean readHotKeys(DataInputStream in, HashMap<String, Property> out) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            Property prop;
+            switch (in.readUnsignedByte()) {
+            case Property.INTEGER:
+                prop = new Property(in.readInt());
+                break;
+            case Property.STRING:
+                prop = new Property(in.readUTF());
+                break;
+            case Property.BOOLEAN:
+                prop = new Property(in.readBoolean());
+                break;
+            case Property.FLOAT:
+                prop = new Property(in.readFloat());
+                break;
+            case BINARY_TYPE_NONE:
+                prop = null;
+                break;
+            default:
+                return false;
+            }
+            out.put(key, prop);
+        }
+        return true;
+    }
+
     public void setOnLoadVNPrefListener(OnLoadVNPrefListener listener) {
         mListener = listener;
     }
 
     public boolean contains(String name) {
-        return mData.containsKey(name);
+        synchronized (mData) {
+            return mData.containsKey(name);
+        }
     }
 
     public void putInteger(String name, int value) {
-        Property prop = mData.get(name);
-        if (prop != null) {
-            prop.mIntVal = value;
-        } else {
-            mData.put(name, new Property(value));
+        synchronized (mData) {
+            Property prop = mData.get(name);
+            if (prop != null) {
+                prop.mIntVal = value;
+            } else {
+                mData.put(name, new Property(value));
+            }
+            onChanged(name);
         }
     }
 
     public void putBoolean(String name, boolean value) {
-        Property prop = mData.get(name);
-        if (prop != null) {
-            prop.mBoolval = value;
-        } else {
-            mData.put(name, new Property(value));
+        synchronized (mData) {
+            Property prop = mData.get(name);
+            if (prop != null) {
+                prop.mBoolval = value;
+            } else {
+                mData.put(name, new Property(value));
+            }
+            onChanged(name);
         }
     }
 
     public void putString(String name, String value) {
-        Property prop = mData.get(name);
-        if (prop != null) {
-            prop.mStringVal = value;
-        } else {
-            mData.put(name, new Property(value));
+        synchronized (mData) {
+            Property prop = mData.get(name);
+            if (prop != null) {
+                prop.mStringVal = value;
+            } else {
+                mData.put(name, new Property(value));
+            }
+            onChanged(name);
         }
     }
 
     public void putFloat(String name, Float value) {
-        Property prop = mData.get(name);
-        if (prop != null) {
-            prop.mFloatval = value;
-        } else {
-            mData.put(name, new Property(value));
+        synchronized (mData) {
+            Property prop = mData.get(name);
+            if (prop != null) {
+                prop.mFloatval = value;
+            } else {
+                mData.put(name, new Property(value));
+            }
+            onChanged(name);
         }
     }
 
+    // Must hold the lock on mData
+    private void onChanged(String name) {
+        mSerialized.remove(name);
+        mEncoded.remove(name);
+    }
+
     public int getInteger(String name, int defaultValue) {
-        if (!ensureLoaded()) {
-            return defaultValue;
-        }
-        Property prop = mData.get(name);
+        Property prop = getProperty(name);
         if (prop == null) {
             return defaultValue;
         }
@@ -182,10 +505,7 @@ public class VNPreferences {
     }
 
     public boolean getBoolean(String name, boolean defaultValue) {
-        if (!ensureLoaded()) {
-            return defaultValue;
-        }
-        Property prop = mData.get(name);
+        Property prop = getProperty(name);
         if (prop == null) {
             return defaultValue;
         }
@@ -198,10 +518,7 @@ public class VNPreferences {
     }
 
     public String getString(String name, String defaultValue) {
-        if (!ensureLoaded()) {
-            return defaultValue;
-        }
-        Property prop = mData.get(name);
+        Property prop = getProperty(name);
         if (prop == null) {
             return defaultValue;
         }
@@ -214,10 +531,7 @@ public class VNPreferences {
     }
 
     public float getFloat(String name, float defaultValue) {
-        if (!ensureLoaded()) {
-            return defaultValue;
-        }
-        Property prop = mData.get(name);
+        Property prop = getProperty(name);
         if (prop == null) {
             return defaultValue;
         }
@@ -229,17 +543,310 @@ public class VNPreferences {
         }
     }
 
+    /**
+     * Finds the property, hot keys are read from the start of the file if
+     * the rest is not loaded yet. Other keys load every preference first,
+     * call loadInBackground() early to not wait for it on the UI thread.
+     * @param name
+     * @return null if not found or the file cannot be read
+     */
+    private Property getProperty(String name) {
+        if (!mLoaded && isHotKey(name)) {
+            synchronized (mData) {
+                Property prop = mData.get(name);
+                if (prop != null) {
+                    return prop;
+                }
+            }
+            // The writer can drop the hot keys at any time, keep this copy
+            HashMap<String, Property> hotData = loadHotKeys();
+            if (hotData != null && hotData.containsKey(name)) {
+                return hotData.get(name);
+            }
+        }
+        if (!ensureLoaded()) {
+            return null;
+        }
+        synchronized (mData) {
+            return mData.get(name);
+        }
+    }
+
+    /**
+     * Writes the preferences to file in the background. Many commits close
+     * together are written only once with the latest values.
+     */
     public void commit() {
-        if (mTask != null && mTask.isSaving()) {
-            mTask.cancel(true);
+        synchronized (mData) {
+            if (mWriteScheduled) {
+                return;
+            }
+            mWriteScheduled = true;
+        }
+        sWriter.schedule(mWriteRunnable, COMMIT_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits until the commits made before this call are written, used by tests
+     */
+    static void waitForWrites() throws InterruptedException, ExecutionException {
+        // Runs after every write scheduled before it
+        sWriter.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, COMMIT_DELAY_MS, TimeUnit.MILLISECONDS).get();
+    }
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Values only put so far are written together with the rest from the file,
+            // if the file cannot be read it is kept instead of losing everything else in it
+            if (!mLoaded && !load()) {
+                Log.w(TAG, "Cannot read preferences, not writing them in " + mPath);
+                synchronized (mData) {
+                    mWriteScheduled = false;
+                }
+                return;
+            }
+
+            byte[] data = null;
+            boolean binary = sUseBinaryFormat;
+            synchronized (mData) {
+                mWriteScheduled = false;
+                mHotData = null;
+                if (mData.isEmpty()) {
+                    return;
+                }
+                if (binary) {
+                    data = encodeBinary();
+                    binary = data != null;
+                }
+                if (data == null) {
+                    data = UnicodeUtil.toUTF8(serialize());
+                }
+            }
+            if (hasSpaceToWrite()) {
+                write(data, binary);
+            }
+        }
+    };
+
+    /**
+     * Encodes all the properties in the binary format. Only properties that
+     * changed since the last write are encoded again, the rest reuse their
+     * bytes and the string table from before. Must hold the lock on mData.
+     * @return null if it cannot be encoded, such as very long strings
+     */
+    private byte[] encodeBinary() {
+        // Old values stay in the string table, start again once there are too many
+        if (mStringIndex.size() > mData.size() * 2 + BINARY_UNUSED_STRINGS) {
+            clearEncoded();
+        }
+        try {
+            ArrayList<byte[]> properties = new ArrayList<byte[]>(mData.size());
+            int size = 0;
+            for (Entry<String, Property> entry : mData.entrySet()) {
+                byte[] encoded = mEncoded.get(entry.getKey());
+                if (encoded == null) {
+                    Property prop = entry.getValue();
+                    if (prop.mType == Property.STRING && prop.mStringVal == null) {
+                        continue;
+                    }
+                    encoded = encodeProperty(entry.getKey(), prop);
+                    mEncoded.put(entry.getKey(), encoded);
+                }
+                properties.add(encoded);
+                size += encoded.length;
+            }
+            if (properties.size() > BINARY_MAX_COUNT) {
+                return null;
+            }
+
+            String[] hotKeys;
+            synchronized (sHotKeys) {
+                addDefaultHotKeys();
+                hotKeys = sHotKeys.toArray(new String[sHotKeys.size()]);
+            }
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(size + mStringTable.size() + 256);
+            DataOutputStream header = new DataOutputStream(bos);
+            header.writeInt(BINARY_MAGIC);
+            header.writeByte(BINARY_VERSION);
+            header.writeShort(hotKeys.length);
+            for (String key : hotKeys) {
+                Property prop = mData.get(key);
+                header.writeUTF(key);
+                if (prop == null || prop.mType == Property.STRING && prop.mStringVal == null) {
+                    header.writeByte(BINARY_TYPE_NONE);
+                    continue;
+                }
+                header.writeByte(prop.mType);
+                switch (prop.mType) {
+                case Property.INTEGER:
+                    header.writeInt(prop.mIntVal);
+                    break;
+                case Property.STRING:
+                    header.writeUTF(prop.mStringVal);
+                    break;
+                case Property.BOOLEAN:
+                    header.writeBoolean(prop.mBoolval);
+                    break;
+                case Property.FLOAT:
+                    header.writeFloat(prop.mFloatval);
+                    break;
+                }
+            }
+            header.writeShort(mStringIndex.size());
+            mStringTable.writeTo(header);
+            header.writeShort(properties.size());
+            for (byte[] encoded : properties) {
+                header.write(encoded);
+            }
+            header.flush();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            // String is too long or too many of them for the binary format
+            Log.w(TAG, "Cannot encode preferences as binary: " + e.getMessage());
+            clearEncoded();
+            return null;
+        }
+    }
+
+    // Key string index, type tag and value
+    private byte[] encodeProperty(String key, Property prop) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(8);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeShort(addString(key));
+        out.writeByte(prop.mType);
+        switch (prop.mType) {
+        case Property.INTEGER:
+            out.writeInt(prop.mIntVal);
+            break;
+        case Property.STRING:
+            out.writeShort(addString(prop.mStringVal));
+            break;
+        case Property.BOOLEAN:
+            out.writeBoolean(prop.mBoolval);
+            break;
+        case Property.FLOAT:
+            out.writeFloat(prop.mFloatval);
+            break;
+        }
+        return bos.toByteArray();
+    }
+
+    private int addString(String str) throws IOException {
+        Integer index = mStringIndex.get(str);
+        if (index == null) {
+            if (mStringIndex.size() >= BINARY_MAX_COUNT) {
+                throw new IOException("Too many strings");
+            }
+            // Throws before writing anything if the string is too long
+            new DataOutputStream(mStringTable).writeUTF(str);
+            index = mStringIndex.size();
+            mStringIndex.put(str, index);
+        }
+        return index;
+    }
+
+    private void clearEncoded() {
+        mEncoded.clear();
+        mStringIndex.clear();
+        mStringTable.reset();
+    }
+
+    /**
+     * Builds the json text of all the properties. Only properties that
+     * changed since the last write are converted again, the rest reuse the
+     * text from before. Must hold the lock on mData.
+     * @return
+     */
+    private StringBuilder serialize() {
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        for (Entry<String, Property> entry : mData.entrySet()) {
+            String key = entry.getKey();
+            String text = mSerialized.get(key);
+            if (text == null) {
+                try {
+                    JSONObject obj = entry.getValue().toJSON();
+                    if (obj == null) {
+                        continue;
+                    }
+                    text = JSONObject.quote(key) + ":" + obj.toString();
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+                mSerialized.put(key, text);
+            }
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append(text);
+        }
+        sb.append('}');
+        return sb;
+    }
+
+    private boolean hasSpaceToWrite() {
+        try {
+            long kbAvailable = new File(mPath).getUsableSpace() / 1024;
+
+            // If at least 300kb is left over
+            if (kbAvailable <= MIN_FILE_SPACE_KB) {
+                Log.w(TAG, "Not enough space to save preferences in " + mPath);
+                return false;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    private void write(byte[] data, boolean binary) {
+        synchronized (mReadWriteLock) {
+            // Write to a temporary file and replace the old one, a crash cannot leave half a file
+            String name = binary ? PREF_BINARY_FILE_NAME : PREF_FILE_NAME;
+            File file = new File(mPath + "/" + name);
+            File tmp = new File(mPath + "/" + name + ".tmp");
+            FileOutputStream fos = null;
+            try {
+                fos = new FileOutputStream(tmp);
+                fos.write(data);
+                fos.flush();
+                fos.getFD().sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+                tmp.delete();
+                return;
+            } finally {
+                if (fos != null) {
+                    try {
+                        fos.close();
+                    } catch (IOException e) {}
+                }
+            }
+            if (!tmp.renameTo(file)) {
+                Log.e(TAG, "Failed to replace " + file.getAbsolutePath());
+                tmp.delete();
+                return;
+            }
+
+            // Only keep one format so an old file is never read instead, once
+            // everything in the old file was read and written to this one
+            if (mLoaded) {
+                new File(mPath + "/" + (binary ? PREF_FILE_NAME : PREF_BINARY_FILE_NAME)).delete();
+            }
         }
-        mTask = new LoadSaveSettingsTask(LoadSaveSettingsTask.SAVE_TASK);
-        mTask.execute();
     }
 
     private boolean ensureLoaded() {
         if (!mLoaded) {
-            if (mTask != null && !mTask.isSaving()) {
+            if (mTask != null) {
                 mTask.cancel(true);
             }
             if (!load()) {
@@ -346,88 +953,17 @@ public class VNPreferences {
         }
     }
 
-    private class LoadSaveSettingsTask extends AsyncTask<Void, Void, OnLoadVNPrefListener.Result> {
-        public static final int LOAD_TASK = 1;
-        public static final int SAVE_TASK = 2;
-
-        private final int mTaskCode;
+    private class LoadSettingsTask extends AsyncTask<Void, Void, OnLoadVNPrefListener.Result> {
+        private final boolean mAll;
 
-        public LoadSaveSettingsTask(int taskCode) {
-            mTaskCode = taskCode;
-        }
-
-        public boolean isSaving() {
-            return mTaskCode == SAVE_TASK;
+        public LoadSettingsTask(boolean all) {
+            mAll = all;
         }
 
         @Override
         protected OnLoadVNPrefListener.Result doInBackground(Void... params) {
-            switch (mTaskCode) {
-            case LOAD_TASK:
+            if (mAll || loadHotKeys() == null) {
                 load();
-                break;
-            case SAVE_TASK:
-                // Check for space left
-                long _kbAvailable = 0;
-                try {
-                    StatFs stat = new StatFs(mPath);
-                    long bytesAvailable = (long)stat.getBlockSize() *(long)stat.getBlockCount();
-                    _kbAvailable = bytesAvailable / 1024;
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return OnLoadVNPrefListener.Result.NO_ISSUES;
-                }
-                final long kbAvailable = _kbAvailable;
-
-                // If at least 300kb is left over
-                if (kbAvailable <= MIN_FILE_SPACE_KB) {
-                    return OnLoadVNPrefListener.Result.NO_MEMORY;
-                } else if (mData != null && !mData.isEmpty()) {
-                    return save();
-                }
-                break;
-            }
-            return OnLoadVNPrefListener.Result.NO_ISSUES;
-        }
-
-        private OnLoadVNPrefListener.Result save() {
-            // Build the json object to write to file
-            JSONObject data = new JSONObject();
-            for (Entry<String, Property> entry : mData.entrySet()) {
-                if (isCancelled()) {
-                    return OnLoadVNPrefListener.Result.CANCELLED;
-                }
-                JSONObject obj;
-                try {
-                    obj = entry.getValue().toJSON();
-                    if (obj != null) {
-                        data.put(entry.getKey(), obj);
-                    }
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
-            }
-            if (isCancelled()) {
-                return OnLoadVNPrefListener.Result.CANCELLED;
-            }
-            synchronized (mReadWriteLock) {
-                // Write to file system
-                FileOutputStream fos = null;
-                try {
-                    fos = new FileOutputStream(mPath + "/" + PREF_FILE_NAME);
-                    byte[] out = UnicodeUtil.convert(data.toString()
-                            .getBytes("UTF-16"), UTF8_ENCODING);
-                    fos.write(out);
-                    fos.flush();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } finally {
-                    if (fos != null) {
-                        try {
-                            fos.close();
-                        } catch (IOException e) {}
-                    }
-                }
             }
             return OnLoadVNPrefListener.Result.NO_ISSUES;
         }
@@ -435,7 +971,7 @@ public class VNPreferences {
         @Override
         protected void onCancelled() {
             super.onCancelled();
-            if (mListener != null && mTaskCode == LOAD_TASK) {
+            if (mListener != null) {
                 mListener.onLoadVNPref(OnLoadVNPrefListener.Result.CANCELLED);
             }
             mTask = null;
@@ -444,7 +980,7 @@ public class VNPreferences {
         @Override
         protected void onPostExecute(OnLoadVNPrefListener.Result result) {
             super.onPostExecute(result);
-            if (mListener != null && mTaskCode == LOAD_TASK) {
+            if (mListener != null) {
                 mListener.onLoadVNPref(OnLoadVNPrefListener.Result.NO_ISSUES);
             }
             mTask = null;
@@ -1,8 +1,6 @@
 package com.onscripter.plus.bugtracking;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.CookieHandler;
 import java.net.CookieManager;
@@ -242,11 +240,10 @@ public class BugTrackingService extends IntentService {
             request.putField("message", exceptionMessage);
             request.putField("name", gameName);
             if (uploadFile != null) {
-                byte[] data = readBytesFromFile(uploadFile);
-                if (data != null) {
-                    request.putFile("extraFile", data);
-                }
+                request.putFile("extraFile", new File(uploadFile));
             }
+            // Only gzipped once the server said it accepts gzip
+            request.setCompressed(true);
             request.send();
 
             handleGenericJSONResult(request);
@@ -284,12 +281,13 @@ public class BugTrackingService extends IntentService {
         if (id != null) {
             ModifyServerRequest request = null;
             try {
-                byte[] logFileData = readBytesFromFile(APP_TRACE_FOLDER + "/" + ONScripterTracer.TRACE_FILE_NAME);
-                byte[] saveFileData = null;
-                if (hasSaveFile) {
-                    saveFileData = readBytesFromFile(APP_TRACE_FOLDER + "/" + ONScripterTracer.SAVE_FILE_NAME);
-                }
-                if (logFileData != null && (hasSaveFile && saveFileData != null || !hasSaveFile)) {
+                File logFile = new File(APP_TRACE_FOLDER + "/" + ONScripterTracer.TRACE_FILE_NAME);
+                File saveFile = new File(APP_TRACE_FOLDER + "/" + ONScripterTracer.SAVE_FILE_NAME);
+                if (!ONScripterTracer.exportText(APP_TRACE_FOLDER)) {
+                    // Do not send a log left from an older trace or cut off by the failed export
+                    logFile.delete();
+                    Log.e(TAG, "Unable to export the trace to send");
+                } else if (logFile.canRead() && (!hasSaveFile || saveFile.canRead())) {
                     request = new ModifyServerRequest(METHOD.POST);
                     request.openConnection(URL_SERVER_HOST + "game/" + id + "/trace/");
                     request.putField("stacktrace", stacktrace);
@@ -299,10 +297,12 @@ public class BugTrackingService extends IntentService {
                     request.putField("date", dateStr);
                     request.putField("locale", Resources.getSystem().getConfiguration().locale.getDisplayName());
                     request.putField("extra", extraData);
-                    request.putFile("traceLog", logFileData);
+                    request.putFile("traceLog", logFile);
                     if (hasSaveFile) {
-                        request.putFile("saveFile", saveFileData);
+                        request.putFile("saveFile", saveFile);
                     }
+                    // The metadata request before tells if the server accepts gzip
+                    request.setCompressed(true);
                     request.send();
 
                     handleGenericJSONResult(request);
@@ -420,34 +420,6 @@ public class BugTrackingService extends IntentService {
         return false;
     }
 
-    /**
-     * Gets the bytes from a file path
-     * @param filepath
-     * @return
-     */
-    private static byte[] readBytesFromFile(String filepath) {
-        File file = new File(filepath);
-        FileInputStream is = null;
-        int size = (int) file.length();
-        byte[] buffer = new byte[size];
-        try {
-            is = new FileInputStream(file);
-            is.read(buffer, 0, size);
-            return buffer;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {}
-            }
-        }
-        return null;
-    }
-
     /**
      * Used to convert a map of data into a json string for the server to read later
      * @param extraData
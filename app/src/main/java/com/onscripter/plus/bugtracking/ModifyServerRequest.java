@@ -1,24 +1,72 @@
 package com.onscripter.plus.bugtracking;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.zip.GZIPOutputStream;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.util.Pair;
-
+/**
+ * Sends fields and files to the server as one form body. The body is
+ * streamed with chunked transfer encoding, files are read from disk as they
+ * are sent and the body can be gzipped on the way, so large files are never
+ * held in memory. Connections are kept alive and reused when the response
+ * is read to the end.
+ *
+ * Gzip is only used when asked for with setCompressed() and the server
+ * has said it accepts it with "Accept-Encoding: gzip" in an earlier
+ * response, so a server that ignores Content-Encoding never gets a body it
+ * cannot read. If the server still answers a gzipped body with a 4xx
+ * error, the request is sent again without gzip and later requests to that
+ * server are never gzipped.
+ */
 public class ModifyServerRequest {
     static enum METHOD { PUT, POST };
 
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /* Servers (host:port) that answered with "Accept-Encoding: gzip" */
+    private static final HashSet<String> sGzipAccepted = new HashSet<String>();
+
+    /* Servers (host:port) that did not accept a gzipped body */
+    private static final HashSet<String> sGzipRefused = new HashSet<String>();
+
+    /**
+     * A file sent as "field|length=" followed by its bytes
+     */
+    private static final class FilePart {
+        final String header;
+        final byte[] data;
+        final File file;
+        final long length;
+
+        FilePart(String field, byte[] data, File file, long length) {
+            header = field + "|" + length + "=";
+            this.data = data;
+            this.file = file;
+            this.length = length;
+        }
+    }
+
     private HttpURLConnection mConnection;
+    private URL mUrl;
+    private byte[] mBuffer;
     private ArrayList<String> mFieldData;
-    private ArrayList<Pair<String, byte[]>> mFileData;
+    private ArrayList<FilePart> mFileData;
+    private boolean mCompressed;
+    private boolean mSent;
+    private boolean mResponseRead;
 
     private final METHOD mMethod;
 
@@ -45,21 +93,27 @@ public class ModifyServerRequest {
      */
     public void openConnection(String url) throws IOException {
         if (mConnection == null) {
-            try {
-                URL _url = new URL(url);
-                System.setProperty("http.keepAlive", "false");
-                mConnection = (HttpURLConnection) _url.openConnection();
-                mConnection.setDoOutput(true);
-                mConnection.setDoInput(true);
-                mConnection.setUseCaches(false);
-                mConnection.setRequestMethod(mMethod == METHOD.PUT ? "PUT" : "POST");
-                mConnection.setReadTimeout(10000);
-                mFieldData = new ArrayList<String>();
-                mFileData = new ArrayList<Pair<String, byte[]>>();
-            } catch (IOException e) {
-                mConnection = null;
-                throw e;
-            }
+            mUrl = new URL(url);
+            connect();
+            mFieldData = new ArrayList<String>();
+            mFileData = new ArrayList<FilePart>();
+        }
+    }
+
+    private void connect() throws IOException {
+        try {
+            mConnection = (HttpURLConnection) mUrl.openConnection();
+            mConnection.setDoOutput(true);
+            mConnection.setDoInput(true);
+            mConnection.setUseCaches(false);
+            mConnection.setRequestMethod(mMethod == METHOD.PUT ? "PUT" : "POST");
+            mConnection.setReadTimeout(10000);
+            mConnection.setChunkedStreamingMode(CHUNK_SIZE);
+            mSent = false;
+            mResponseRead = false;
+        } catch (IOException e) {
+            mConnection = null;
+            throw e;
         }
     }
 
@@ -81,8 +135,33 @@ public class ModifyServerRequest {
      */
     public void putFile(String field, byte[] data) {
         if (mFieldData != null) {
-            mFileData.add(Pair.create(field + "|" + data.length + "=", data));
+            mFileData.add(new FilePart(field, data, null, data.length));
+        }
+    }
+
+    /**
+     * Add a file that is read from disk while the request is sent
+     * @param field
+     * @param file
+     * @return false if the file cannot be read
+     */
+    public boolean putFile(String field, File file) {
+        if (mFieldData != null && file.isFile() && file.canRead()) {
+            mFileData.add(new FilePart(field, null, file, file.length()));
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * Gzip the body of the request, the server gets it with the header
+     * "Content-Encoding: gzip". Off by default and only used once an earlier
+     * response from the server accepted gzip, if the server refuses it
+     * anyway the body is sent again uncompressed. Call before send().
+     * @param compressed
+     */
+    public void setCompressed(boolean compressed) {
+        mCompressed = compressed;
     }
 
     /**
@@ -91,28 +170,91 @@ public class ModifyServerRequest {
      */
     public void send() throws IOException {
         if (mConnection != null) {
-            DataOutputStream writer = new DataOutputStream(mConnection.getOutputStream());
+            try {
+                String server = getServer();
+                boolean compressed;
+                synchronized (sGzipRefused) {
+                    compressed = mCompressed && sGzipAccepted.contains(server)
+                            && !sGzipRefused.contains(server);
+                }
+                if (!compressed) {
+                    writeBody(false);
+                } else if (!sendCompressed()) {
+                    synchronized (sGzipRefused) {
+                        sGzipRefused.add(server);
+                    }
+                    closeConnection();
+                    connect();
+                    writeBody(false);
+                }
+            } finally {
+                mFileData.clear();
+                mFieldData.clear();
+            }
+        }
+    }
+
+    /**
+     * Sends the body gzipped
+     * @return false if the server answered with a 4xx error
+     * @throws IOException
+     */
+    private boolean sendCompressed() throws IOException {
+        try {
+            writeBody(true);
+        } catch (IOException e) {
+            // The server can answer before it reads the whole body
+            if (!isClientError()) {
+                throw e;
+            }
+            return false;
+        }
+        return !isClientError();
+    }
+
+    private boolean isClientError() {
+        try {
+            int code = mConnection.getResponseCode();
+            return code >= 400 && code < 500;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void writeBody(boolean compressed) throws IOException {
+        if (compressed) {
+            mConnection.setRequestProperty("Content-Encoding", "gzip");
+        }
+        mSent = true;
+        OutputStream out = mConnection.getOutputStream();
+        try {
+            if (compressed) {
+                out = new GZIPOutputStream(out, CHUNK_SIZE);
+            }
+            boolean first = true;
             for (int i = 0; i < mFieldData.size(); i++) {
-                writer.write(mFieldData.get(i).getBytes("UTF-8"));
-                if (i + 1 < mFieldData.size()) {
-                    writer.writeBytes("&");
+                if (!first) {
+                    out.write('&');
                 }
+                out.write(mFieldData.get(i).getBytes("UTF-8"));
+                first = false;
             }
-            if (mFileData.size() > 0) {
-                writer.writeBytes("&");
-                for (int i = 0; i < mFileData.size(); i++) {
-                    Pair<String, byte[]> data = mFileData.get(i);
-                    writer.writeBytes(data.first);
-                    writer.write(data.second);
-                    if (i + 1 < mFileData.size()) {
-                        writer.writeBytes("&");
-                    }
+            for (int i = 0; i < mFileData.size(); i++) {
+                FilePart part = mFileData.get(i);
+                if (!first) {
+                    out.write('&');
                 }
+                out.write(part.header.getBytes("UTF-8"));
+                if (part.data != null) {
+                    out.write(part.data);
+                } else {
+                    writeFile(out, part.file, part.length);
+                }
+                first = false;
             }
-            writer.flush();
-            writer.close();
-            mFileData.clear();
-            mFieldData.clear();
+        } finally {
+            // Finishes the gzip stream and the last chunk
+            out.close();
         }
     }
 
@@ -120,11 +262,52 @@ public class ModifyServerRequest {
      * Disconnects communication to the server.
      * You should run this whenever you use openConnection (place this
      * in the finally clause of a try-catch)
+     *
+     * If the response was read to the end, the connection is left open to
+     * be reused by the next request to the same server.
      */
     public void disconnect() {
         if (mConnection != null) {
+            closeConnection();
+        }
+    }
+
+    private void closeConnection() {
+        if (mSent) {
+            rememberAcceptedEncoding();
+        }
+        if (!drainResponse()) {
             mConnection.disconnect();
-            mConnection = null;
+        }
+        mConnection = null;
+    }
+
+    private String getServer() {
+        return mUrl.getHost() + ":" + mUrl.getPort();
+    }
+
+    /**
+     * Remembers the server accepts gzip if the response says so in its
+     * Accept-Encoding header, e.g. "gzip, deflate" but not "gzip;q=0"
+     */
+    private void rememberAcceptedEncoding() {
+        String accepted = mConnection.getHeaderField("Accept-Encoding");
+        if (accepted == null) {
+            return;
+        }
+        for (String coding : accepted.split(",")) {
+            String[] params = coding.split(";");
+            if (params[0].trim().equalsIgnoreCase("gzip")) {
+                for (int i = 1; i < params.length; i++) {
+                    if (params[i].replace(" ", "").matches("q=0(\\.0*)?")) {
+                        return;
+                    }
+                }
+                synchronized (sGzipRefused) {
+                    sGzipAccepted.add(getServer());
+                }
+                return;
+            }
         }
     }
 
@@ -153,6 +336,7 @@ public class ModifyServerRequest {
             while ((line = br.readLine()) != null) {
                 sb.append(line + "\n");
             }
+            mResponseRead = true;
         } finally {
             if (br != null) {
                 br.close();
@@ -161,6 +345,72 @@ public class ModifyServerRequest {
         return sb.toString();
     }
 
+    /**
+     * Reads what is left of the response so the connection can be reused
+     * @return false if the connection should be closed instead
+     */
+    private boolean drainResponse() {
+        if (mResponseRead) {
+            return true;
+        }
+        InputStream in = null;
+        try {
+            try {
+                in = mConnection.getInputStream();
+            } catch (IOException e) {
+                in = mConnection.getErrorStream();
+            }
+            if (in == null) {
+                return false;
+            }
+            byte[] buffer = getBuffer();
+            while (in.read(buffer) != -1) {}
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    /**
+     * Copies the file in chunks. The length was already sent to the server so
+     * exactly that many bytes are written even if the file changed since.
+     * @param out
+     * @param file
+     * @param length
+     * @throws IOException
+     */
+    private void writeFile(OutputStream out, File file, long length) throws IOException {
+        byte[] buffer = getBuffer();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException(file.getName() + " became shorter while uploading");
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Used to copy files to the connection and read what is left of the response
+    private byte[] getBuffer() {
+        if (mBuffer == null) {
+            mBuffer = new byte[CHUNK_SIZE];
+        }
+        return mBuffer;
+    }
+
     /**
      * Returns the response data as a JSON. You must know if the server can
      * return JSON files otherwise, this will throw an exception.
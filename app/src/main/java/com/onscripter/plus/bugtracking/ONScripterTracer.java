@@ -1,16 +1,11 @@
 package com.onscripter.plus.bugtracking;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.util.ArrayList;
 
 import android.app.Activity;
 import android.content.Context;
@@ -22,68 +17,103 @@ import android.widget.Toast;
 
 public class ONScripterTracer {
     public static String TRACE_FILE_NAME = "trace.log";
+    public static String TRACE_BINARY_FILE_NAME = "trace.bin";
     public static String SAVE_FILE_NAME = "save.dat";
+    public static final float PLAYBACK_AS_FAST_AS_POSSIBLE = TracePlayer.AS_FAST_AS_POSSIBLE;
 
     private static File sTraceFile;
-    private static boolean sIsOpened = false;
-    private static boolean sVideoIsPlaying = false;
-    private static StringBuilder sBuffer;
-    private static long sStartTime = 0;
-    private static long sSkipTime = 0;
-    private static long sLastLoggedTime = 0;
-    private static boolean sHasLoadedSaveFile = false;
+    private static volatile TraceRecorder sRecorder;
+    private static volatile boolean sIsOpened = false;
+    private static volatile boolean sHasLoadedSaveFile = false;
     private static boolean sAllowPlayback = false;
+    private static float sPlaybackSpeed = 1;
     private static int sViewWidth = 0;
     private static int sViewHeight = 0;
 
-    private final static char KEY_EVENT = 'k';
-    private final static char MOUSE_EVENT = 'm';
-    private final static char CRASH_EVENT = 'c';
-    private final static char LOAD_EVENT = 'l';
-
     private ONScripterTracer(){}
 
-    public static void init(Context ctx) {
-        sTraceFile = new File(ctx.getApplicationContext().getFilesDir() + "/" + TRACE_FILE_NAME);
+    public static synchronized void init(Context ctx) {
+        File folder = ctx.getApplicationContext().getFilesDir();
+        sTraceFile = new File(folder + "/" + TRACE_FILE_NAME);
+        if (sRecorder == null) {
+            sRecorder = new TraceRecorder(new File(folder + "/" + TRACE_BINARY_FILE_NAME),
+                    TraceRecorder.DEFAULT_QUEUE_CAPACITY);
+        }
+    }
+
+    /**
+     * Writes the recorded trace in the folder as text to TRACE_FILE_NAME
+     * @param folder
+     * @return false if there is no recorded trace or it cannot be converted
+     */
+    public static boolean exportText(String folder) {
+        File binary = new File(folder + "/" + TRACE_BINARY_FILE_NAME);
+        if (!binary.exists()) {
+            return false;
+        }
+        TraceRecorder recorder = sRecorder;
+        if (recorder != null) {
+            recorder.flush();
+        }
+        return TraceRecorder.convertToText(binary, new File(folder + "/" + TRACE_FILE_NAME));
     }
 
+    /*
+     * Key and mouse events only come from the view's input thread and never
+     * lock, the recorder works out their time on its own thread
+     */
+
     public static void traceKeyEvent(int keyCode, int down) {
-        traceText(KEY_EVENT + "," + keyCode + "," + down);
+        TraceRecorder recorder = sRecorder;
+        if (sIsOpened && recorder != null) {
+            recorder.traceKey(keyCode, down);
+        }
     }
 
     public static void traceMouseEvent(int x, int y, int action) {
-        traceText(MOUSE_EVENT + "," + x + "," + y + "," + action);
+        TraceRecorder recorder = sRecorder;
+        if (sIsOpened && recorder != null) {
+            recorder.traceMouse(x, y, action);
+        }
     }
 
-    public synchronized static void traceVideoStartEvent() {
-        if (!sVideoIsPlaying) {
-            sVideoIsPlaying = true;
-            sSkipTime -= System.currentTimeMillis();
+    public static void traceVideoStartEvent() {
+        TraceRecorder recorder = sRecorder;
+        if (recorder != null) {
+            recorder.videoStart();
         }
     }
 
-    public synchronized static void traceVideoEndEvent() {
-        if (sVideoIsPlaying) {
-            sVideoIsPlaying = false;
-            sSkipTime += System.currentTimeMillis();
+    public static void traceVideoEndEvent() {
+        TraceRecorder recorder = sRecorder;
+        if (recorder != null) {
+            recorder.videoEnd();
         }
     }
 
     public static void traceLoadEvent(Context c, String saveFilePath, String savePath) {
         // Copy save file to the private application folder, it is not worth fixing when 2 load events overlap
         new CopySaveFileTask(c, saveFilePath).execute();
-        reset();
-        traceText(LOAD_EVENT + (savePath != null ? savePath : ""));
+        TraceRecorder recorder = sRecorder;
+        if (recorder != null) {
+            recorder.load(savePath);
+        }
         sHasLoadedSaveFile = true;
     }
 
-    public static void traceViewDimensions(int width, int height) {
+    public static synchronized void traceViewDimensions(int width, int height) {
         sViewWidth = width;
         sViewHeight = height;
+        if (sRecorder != null) {
+            sRecorder.setDimensions(width, height);
+        }
     }
 
     public static void traceCrash() {
-        traceText(CRASH_EVENT + "");
+        TraceRecorder recorder = sRecorder;
+        if (recorder != null) {
+            recorder.crash();
+        }
     }
 
     public static boolean open() {
@@ -102,8 +132,18 @@ public class ONScripterTracer {
         return sAllowPlayback;
     }
 
-    public synchronized static long getCurrentLogTime() {
-        return sLastLoggedTime;
+    /**
+     * Speed of the next playback, 1 for real time and
+     * PLAYBACK_AS_FAST_AS_POSSIBLE to not wait between events
+     * @param speed
+     */
+    public static void setPlaybackSpeed(float speed) {
+        sPlaybackSpeed = speed;
+    }
+
+    public static long getCurrentLogTime() {
+        TraceRecorder recorder = sRecorder;
+        return recorder != null ? recorder.getLastLoggedTime() : 0;
     }
 
     public static synchronized boolean open(boolean append) {
@@ -111,15 +151,11 @@ public class ONScripterTracer {
             sIsOpened = true;
             if (!append) {
                 sTraceFile.delete();
-                reset();
-            } else if (sStartTime > 0) {
-                // Reopened so we need to skip the time that was closed
-                sSkipTime += System.currentTimeMillis();
+                sHasLoadedSaveFile = false;
             }
-
-            // This runs once on the first open
-            if (sBuffer == null) {
-                reset();
+            if (sRecorder != null) {
+                sRecorder.setDimensions(sViewWidth, sViewHeight);
+                sRecorder.open(append);
             }
             return true;
         }
@@ -127,41 +163,11 @@ public class ONScripterTracer {
     }
 
     public static synchronized void close() {
-        if (sIsOpened && sBuffer != null) {
-            sSkipTime -= System.currentTimeMillis();
+        if (sIsOpened && sRecorder != null) {
             sIsOpened = false;
-            PrintWriter writer = null;
-            try {
-                writer = new PrintWriter(sTraceFile);
-                writer.print(sViewWidth);
-                writer.append(',').println(sViewHeight);
-                writer.print(sBuffer);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } finally {
-                if (writer != null) {
-                    writer.close();
-                }
-            }
-        }
-    }
-
-    private static void reset() {
-        sBuffer = new StringBuilder();
-        sHasLoadedSaveFile = false;
-        sVideoIsPlaying = false;
-        sLastLoggedTime = 0;
-        sSkipTime = 0;
-        sStartTime = System.currentTimeMillis();
-    }
 
-    private synchronized static void traceText(String text) {
-        if (sIsOpened && !sVideoIsPlaying && sBuffer != null) {
-            sLastLoggedTime = System.currentTimeMillis() - sSkipTime - sStartTime;
-            sBuffer.append(sLastLoggedTime);
-            sBuffer.append(',');
-            sBuffer.append(text);
-            sBuffer.append('\n');
+            // Writes the rest of the events, the text is only made when the trace is sent
+            sRecorder.close();
         }
     }
 
@@ -196,16 +202,29 @@ public class ONScripterTracer {
         }
     }
 
-    public static class Playback {
+    public static class Playback implements TracePlayer.Listener {
         private final File mTraceFile;
         private boolean mCanBeUsed = true;
         private boolean mIsPlaying = false;
         private final TracedONScripterView mGame;
+        private final TracePlayer mPlayer;
         private Thread mThread;
+        private double mScaleX;
+        private double mScaleY;
 
         public Playback(TracedONScripterView gameView, String tracePath) {
+            this(gameView, tracePath, sPlaybackSpeed);
+        }
+
+        /**
+         * @param gameView
+         * @param tracePath
+         * @param speed 1 for real time, PLAYBACK_AS_FAST_AS_POSSIBLE to not wait between events
+         */
+        public Playback(TracedONScripterView gameView, String tracePath, float speed) {
             mTraceFile = new File(tracePath);
             mGame = gameView;
+            mPlayer = new TracePlayer(speed);
         }
 
         public void start() {
@@ -215,141 +234,73 @@ public class ONScripterTracer {
                 mThread = new Thread(new Runnable() {
                     @Override
                     public void run() {
-                        // Read file
-                        ArrayList<String[]> commands = new ArrayList<String[]>();
-                        BufferedReader br = null;
-                        int width = 0, height = 0;
+                        // Events are read as they are played instead of all at once
+                        TraceReader reader = null;
                         try {
-                            br = new BufferedReader(new FileReader(mTraceFile));
+                            reader = new TraceReader(mTraceFile);
 
                             // Parse the first line for the game width and height from that trace
-                            String line = br.readLine();
-                            if (line != null) {
-                                String[] parts = line.split(",");
-                                if (parts.length < 2) {
-                                    toast("First line does not contain height and width of gameview!");
+                            if (!reader.readHeader()) {
+                                toast("First line does not contain height and width of gameview!");
+                                return;
+                            }
+                            int width = reader.getWidth();
+                            int height = reader.getHeight();
+                            if (width <= 1 || height <= 1) {
+                                toast("Width or height is less than or equal to 1 and we cannot run playback");
+                                return;
+                            }
+                            mScaleX = sViewWidth * 1.0 / width;
+                            mScaleY = sViewHeight * 1.0 / height;
+
+                            // Check if the first event loads a save file
+                            boolean hasEvent = reader.next();
+                            if (hasEvent && reader.getType() == TraceReader.LOAD_EVENT) {
+                                String saveDirectoryName = reader.getLoadPath();
+
+                                // See if the save file is in the downloads folder
+                                File saveFile = new File(Environment.getExternalStoragePublicDirectory(
+                                        Environment.DIRECTORY_DOWNLOADS) + "/" + SAVE_FILE_NAME);
+                                if (!saveFile.exists()) {
+                                    toast("Unable to playback without the save file in the downloads folder! (save.dat)");
                                     return;
                                 }
-                                width = Integer.parseInt(parts[0]);
-                                height = Integer.parseInt(parts[1]);
-                                if (width <= 1 || height <= 1) {
-                                    toast("Width or height is less than or equal to 1 and we cannot run playback");
+
+                                // Copy the save file from Downloads folder to game save folder as save1.dat
+                                File dst = new File(mGame.rootFolder + "/" + saveDirectoryName + "save1.dat");
+                                if (!copy(saveFile, dst)) {
+                                    toast("Playback failed because could not copy save file");
                                     return;
                                 }
 
-                                // Parse the second line and check if we are loading any files
-                                line = br.readLine();
-                                if (line != null) {
-                                    parts = line.split(",");
-                                    if (parts[1].charAt(0) == LOAD_EVENT) {
-                                        String saveDirectoryName = parts[1].substring(1);
-
-                                        // See if the save file is in the downloads folder
-                                        File saveFile = new File(Environment.getExternalStoragePublicDirectory(
-                                                Environment.DIRECTORY_DOWNLOADS) + "/" + SAVE_FILE_NAME);
-                                        if (!saveFile.exists()) {
-                                            toast("Unable to playback without the save file in the downloads folder! (save.dat)");
-                                            return;
-                                        }
-
-                                        // Copy the save file from Downloads folder to game save folder as save1.dat
-                                        File dst = new File(mGame.rootFolder + "/" + (saveDirectoryName.length() > 0 ? saveDirectoryName : "") + "save1.dat");
-                                        if (!copy(saveFile, dst)) {
-                                            toast("Playback failed because could not copy save file");
-                                            return;
-                                        }
-
-                                        // Load the game
-                                        try {
-                                            threadWait(2000);
-                                            loadFirstGame();
-                                        } catch (InterruptedException e1) {
-                                            e1.printStackTrace();
-                                            return;
-                                        }
-                                    } else if (parts.length < 1) {
-                                        toast("First line does not have enough arguments");
-                                    } else {
-                                        commands.add(parts);
-                                    }
-                                }
+                                // Load the game
+                                threadWait(2000);
+                                loadFirstGame();
+                                hasEvent = false;
+                            }
+                            if (!mIsPlaying) {
+                                return;
                             }
 
-                            // Parse the rest of the file
-                            while((line = br.readLine()) != null) {
-                                if (!mIsPlaying) {
-                                    return;
-                                }
-                                if (line.trim().length() > 0) {
-                                    commands.add(line.split(","));
-                                }
+                            // Playback the data
+                            toast("Starting playback...");
+                            mPlayer.play(reader, Playback.this, hasEvent);
+                            if (mPlayer.getShiftedMillis() > 0) {
+                                Log.w("ONScripter Playback", "Playback fell behind by " + mPlayer.getShiftedMillis() + "ms");
                             }
                         } catch (IOException e) {
                             e.printStackTrace();
                             toast("Playback: Failed to read file");
-                            return;
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                            toast("Playback: Thread interruption");
                         } finally {
                             try {
-                                if (br != null) {
-                                    br.close();
+                                if (reader != null) {
+                                    reader.close();
                                 }
                             } catch (IOException e){}
                         }
-
-                        // Playback the data
-                        toast("Starting playback...");
-
-                        long startTime = System.currentTimeMillis();
-                        try {
-                            for (String[] command: commands) {
-                                long time = Long.parseLong(command[0]);
-                                char type = command[1].charAt(0);
-
-                                if (!mIsPlaying) {
-                                    return;
-                                }
-
-                                // See when we should execute the next command
-                                if (time + startTime > System.currentTimeMillis()) {
-                                    try {
-                                        threadWait(time + startTime - System.currentTimeMillis());
-                                        if (!mIsPlaying) {
-                                            return;
-                                        }
-                                    } catch (InterruptedException e) {
-                                        e.printStackTrace();
-                                        toast("Playback: Thread interruption");
-                                    }
-                                }
-
-                                // Execute command
-                                switch(type) {
-                                case KEY_EVENT:
-                                    int keyCode = Integer.parseInt(command[2]);
-                                    int downState = Integer.parseInt(command[3]);
-                                    mGame.triggerKeyEvent(keyCode, downState);
-                                    Log.v("ONScripter Playback", "Key Event [" + time + "]: " + command[2] + ", " + command[3]);
-                                    break;
-                                case MOUSE_EVENT:
-                                    int x = (int)Math.round(Integer.parseInt(command[2]) * (sViewWidth * 1.0 / width));
-                                    int y = (int)Math.round(Integer.parseInt(command[3]) * (sViewHeight* 1.0 / height));
-                                    int action = Integer.parseInt(command[4]);
-                                    mGame.triggerMouseEvent(x, y, action);
-                                    Log.v("ONScripter Playback", "Mouse Event [" + time + "]: (" + x + "," + y + "), " + command[4]);
-                                    break;
-                                case CRASH_EVENT:
-                                    Log.v("ONScripter Playback", "Playback was logged to crash now");
-                                    stop();
-                                    return;
-                                }
-                            }
-                        } catch (NumberFormatException e) {
-                            e.printStackTrace();
-                            toast("Plaback: Failed to parse numbers from file correctly");
-                        } catch (ArrayIndexOutOfBoundsException e) {
-                            e.printStackTrace();
-                            toast("Playback: Failed to parse file because accessing data out of bounds");
-                        }
                         stop();
                     }
                 });
@@ -361,13 +312,30 @@ public class ONScripterTracer {
             if (mCanBeUsed && mIsPlaying && mThread != null) {
                 mCanBeUsed = false;
                 mIsPlaying = false;
-                synchronized (mThread) {
-                    mThread.notify();
-                }
+                mPlayer.stop();
                 toast("Finished playback");
             }
         }
 
+        @Override
+        public void onKeyEvent(long time, int keyCode, int down) {
+            mGame.triggerKeyEvent(keyCode, down);
+            Log.v("ONScripter Playback", "Key Event [" + time + "]: " + keyCode + ", " + down);
+        }
+
+        @Override
+        public void onMouseEvent(long time, int x, int y, int action) {
+            x = (int)Math.round(x * mScaleX);
+            y = (int)Math.round(y * mScaleY);
+            mGame.triggerMouseEvent(x, y, action);
+            Log.v("ONScripter Playback", "Mouse Event [" + time + "]: (" + x + "," + y + "), " + action);
+        }
+
+        @Override
+        public void onCrashEvent(long time) {
+            Log.v("ONScripter Playback", "Playback was logged to crash now");
+        }
+
         private void loadFirstGame() throws InterruptedException {
             toast("Loading save file");
             Log.v("ONScripter Playback", "Load first game");
@@ -380,9 +348,7 @@ public class ONScripterTracer {
         }
 
         private void threadWait(long time) throws InterruptedException {
-            synchronized (mThread) {
-                Thread.currentThread().wait(time);
-            }
+            mPlayer.sleep(time);
         }
 
         private void toast(final String message) {
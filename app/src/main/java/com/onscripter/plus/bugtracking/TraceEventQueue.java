@@ -0,0 +1,120 @@
+package com.onscripter.plus.bugtracking;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size queue of trace events for one producer thread and one consumer
+ * thread without locks. Each event is stored as primitives in parallel
+ * arrays (type, time, x, y, action) so adding one does not allocate. The
+ * producer never waits, if the queue is full the event is dropped.
+ * @author Matthew Ng
+ *
+ */
+final class TraceEventQueue {
+    private final int[] mTypes;
+    private final long[] mTimes;
+    private final int[] mX;
+    private final int[] mY;
+    private final int[] mActions;
+    private final int mMask;
+
+    // Count of events added (producer) and removed (consumer), positions are these masked
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    // Last seen value of the other side, only re-read when it looks full or empty
+    private long mCachedTail;
+    private long mCachedHead;
+
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * @param capacity number of events, rounded up to a power of 2
+     */
+    public TraceEventQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mTypes = new int[size];
+        mTimes = new long[size];
+        mX = new int[size];
+        mY = new int[size];
+        mActions = new int[size];
+        mMask = size - 1;
+    }
+
+    /* Producer */
+
+    /**
+     * Adds an event, only call from the producer thread
+     * @return false if the queue was full and the event was dropped
+     */
+    public boolean offer(int type, long time, int x, int y, int action) {
+        long head = mHead.get();
+        if (head - mCachedTail >= mTypes.length) {
+            mCachedTail = mTail.get();
+            if (head - mCachedTail >= mTypes.length) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+        }
+        int i = (int) (head & mMask);
+        mTypes[i] = type;
+        mTimes[i] = time;
+        mX[i] = x;
+        mY[i] = y;
+        mActions[i] = action;
+
+        // Ordered write publishes the fields above before the new head
+        mHead.lazySet(head + 1);
+        return true;
+    }
+
+    /* Consumer, the peek methods are only valid when not empty */
+
+    public boolean isEmpty() {
+        long tail = mTail.get();
+        if (tail < mCachedHead) {
+            return false;
+        }
+        mCachedHead = mHead.get();
+        return tail >= mCachedHead;
+    }
+
+    public int peekType() {
+        return mTypes[index()];
+    }
+
+    public long peekTime() {
+        return mTimes[index()];
+    }
+
+    public int peekX() {
+        return mX[index()];
+    }
+
+    public int peekY() {
+        return mY[index()];
+    }
+
+    public int peekAction() {
+        return mActions[index()];
+    }
+
+    /**
+     * Removes the event at the front, the producer can reuse its slot after
+     */
+    public void remove() {
+        mTail.lazySet(mTail.get() + 1);
+    }
+
+    /**
+     * Number of events dropped because the queue was full
+     * @return
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    private int index() {
+        return (int) (mTail.get() & mMask);
+    }
+}
@@ -0,0 +1,209 @@
+package com.onscripter.plus.bugtracking;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays the events of a trace at the times they were recorded. Every event
+ * is scheduled against a fixed start on the monotonic clock instead of the
+ * time since the last event, so a late event does not push back the rest.
+ * If playback falls far behind (the device stalled), the start is moved
+ * forward so the following events keep their spacing instead of all being
+ * sent at once.
+ *
+ * The speed multiplies how fast time passes, AS_FAST_AS_POSSIBLE sends the
+ * events without waiting.
+ * @author Matthew Ng
+ *
+ */
+final class TracePlayer {
+    public static final float AS_FAST_AS_POSSIBLE = Float.POSITIVE_INFINITY;
+
+    /* Later than this and the schedule is moved instead of catching up */
+    private static final long MAX_CATCH_UP_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    public interface Listener {
+        public void onKeyEvent(long time, int keyCode, int down);
+        public void onMouseEvent(long time, int x, int y, int action);
+
+        /**
+         * The trace was recorded up to a crash here, playback stops after
+         * @param time
+         */
+        public void onCrashEvent(long time);
+    }
+
+    /**
+     * Where playback reads the time and waits, tests replace it to not depend
+     * on how busy the machine is
+     */
+    interface Clock {
+        public long nanoTime();
+
+        /**
+         * Waits on the lock, which is held, till notified or the time passed
+         * @param lock
+         * @param nanos
+         * @throws InterruptedException
+         */
+        public void await(Object lock, long nanos) throws InterruptedException;
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void await(Object lock, long nanos) throws InterruptedException {
+            TimeUnit.NANOSECONDS.timedWait(lock, nanos);
+        }
+    };
+
+    private final Object mLock = new Object();
+    private final float mSpeed;
+    private final Clock mClock;
+    private volatile boolean mStopped;
+
+    // Time the schedule was moved forward because playback fell behind
+    private long mShiftNanos;
+    private int mShiftCount;
+
+    // How late the event being played was sent
+    private long mLateNanos;
+
+    /**
+     * @param speed 1 plays in real time, 4 is four times faster
+     */
+    public TracePlayer(float speed) {
+        this(speed, SYSTEM_CLOCK);
+    }
+
+    TracePlayer(float speed, Clock clock) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Speed must be more than 0");
+        }
+        mSpeed = speed;
+        mClock = clock;
+    }
+
+    /**
+     * Plays the events till the end of the trace, a crash event or stop().
+     * Blocks till finished.
+     * @param reader
+     * @param listener
+     * @param fromCurrent also plays the event the reader is on
+     * @return number of events played
+     * @throws IOException if the trace cannot be read
+     * @throws InterruptedException
+     */
+    public int play(TraceReader reader, Listener listener, boolean fromCurrent)
+            throws IOException, InterruptedException {
+        final boolean realTime = mSpeed != AS_FAST_AS_POSSIBLE;
+        final double nanosPerMs = TimeUnit.MILLISECONDS.toNanos(1) / (double) mSpeed;
+        long start = mClock.nanoTime();
+        int count = 0;
+        boolean hasEvent = fromCurrent || reader.next();
+        while (hasEvent && !mStopped) {
+            long time = reader.getTime();
+            if (realTime) {
+                long target = start + (long) (time * nanosPerMs);
+                long late = mClock.nanoTime() - target;
+                if (late < 0) {
+                    waitNanos(-late);
+                    if (mStopped) {
+                        break;
+                    }
+                } else if (late > MAX_CATCH_UP_NS) {
+                    start += late;
+                    mShiftNanos += late;
+                    mShiftCount++;
+                }
+                mLateNanos = mClock.nanoTime() - target;
+            }
+
+            switch (reader.getType()) {
+            case TraceReader.KEY_EVENT:
+                listener.onKeyEvent(time, reader.getValue(0), reader.getValue(1));
+                break;
+            case TraceReader.MOUSE_EVENT:
+                listener.onMouseEvent(time, reader.getValue(0), reader.getValue(1), reader.getValue(2));
+                break;
+            case TraceReader.CRASH_EVENT:
+                listener.onCrashEvent(time);
+                return count + 1;
+            }
+            count++;
+            hasEvent = reader.next();
+        }
+        return count;
+    }
+
+    /**
+     * Stops playing, the current play() returns shortly after
+     */
+    public void stop() {
+        synchronized (mLock) {
+            mStopped = true;
+            mLock.notifyAll();
+        }
+    }
+
+    public boolean isStopped() {
+        return mStopped;
+    }
+
+    /**
+     * Total time the schedule was moved forward because playback fell more
+     * than 100ms behind
+     * @return
+     */
+    public long getShiftedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mShiftNanos);
+    }
+
+    /**
+     * Number of times the schedule was moved forward
+     * @return
+     */
+    public int getShiftCount() {
+        return mShiftCount;
+    }
+
+    /**
+     * How late the current event is sent compared to its time in the trace,
+     * only valid inside the listener. Always 0 when not waiting for events.
+     * @return
+     */
+    public long getLateNanos() {
+        return mLateNanos;
+    }
+
+    /**
+     * Waits unless stopped, not changed by the speed
+     * @param millis
+     * @throws InterruptedException
+     */
+    public void sleep(long millis) throws InterruptedException {
+        waitNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Waits on the monotonic clock, wakes early if stopped
+     * @param nanos
+     * @throws InterruptedException
+     */
+    private void waitNanos(long nanos) throws InterruptedException {
+        long end = mClock.nanoTime() + nanos;
+        synchronized (mLock) {
+            while (!mStopped) {
+                long remaining = end - mClock.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                mClock.await(mLock, remaining);
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.onscripter.plus.bugtracking;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Reads a text trace one event at a time instead of loading the whole file.
+ * The first line is the view width and height, each line after is an event
+ * of time, type and its values separated by commas. The current event is
+ * kept in this object and replaced by next(), so reading does not create an
+ * object per event.
+ * @author Matthew Ng
+ *
+ */
+final class TraceReader implements Closeable {
+    static final char KEY_EVENT = 'k';
+    static final char MOUSE_EVENT = 'm';
+    static final char CRASH_EVENT = 'c';
+    static final char LOAD_EVENT = 'l';
+
+    private final BufferedReader mReader;
+    private int mWidth;
+    private int mHeight;
+    private int mLineNumber;
+
+    /* Current event */
+    private String mLine;
+    private int mPos;
+    private long mTime;
+    private char mType;
+    private final int[] mValues = new int[3];
+
+    public TraceReader(File file) throws IOException {
+        this(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    }
+
+    public TraceReader(Reader reader) {
+        mReader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+    /**
+     * Reads the first line with the width and height of the view the trace
+     * was recorded on
+     * @return false if the trace is empty
+     * @throws IOException if the line is not valid
+     */
+    public boolean readHeader() throws IOException {
+        if (!readLine()) {
+            return false;
+        }
+        mWidth = parseInt();
+        expect(',');
+        mHeight = parseInt();
+        return true;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Moves to the next event, blank lines are skipped
+     * @return false at the end of the trace
+     * @throws IOException if the line is not valid
+     */
+    public boolean next() throws IOException {
+        do {
+            if (!readLine()) {
+                return false;
+            }
+        } while (mLine.trim().length() == 0);
+
+        mTime = parseLong();
+        expect(',');
+        if (mPos >= mLine.length()) {
+            throw error("Missing event type");
+        }
+        mType = mLine.charAt(mPos++);
+        switch (mType) {
+        case KEY_EVENT:
+            parseValues(2);
+            break;
+        case MOUSE_EVENT:
+            parseValues(3);
+            break;
+        case CRASH_EVENT:
+        case LOAD_EVENT:
+            break;
+        default:
+            throw error("Unknown event type " + mType);
+        }
+        return true;
+    }
+
+    /**
+     * Time of the event in ms from the start of the trace
+     * @return
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    public char getType() {
+        return mType;
+    }
+
+    /**
+     * Values of the event: key code and down for key events; x, y and
+     * action for mouse events
+     * @param index
+     * @return
+     */
+    public int getValue(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * Folder of the save file loaded for load events
+     * @return
+     */
+    public String getLoadPath() {
+        return mType == LOAD_EVENT ? mLine.substring(mPos) : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    private boolean readLine() throws IOException {
+        mLine = mReader.readLine();
+        mPos = 0;
+        mLineNumber++;
+        return mLine != null;
+    }
+
+    private void parseValues(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            expect(',');
+            mValues[i] = parseInt();
+        }
+    }
+
+    private void expect(char c) throws IOException {
+        if (mPos >= mLine.length() || mLine.charAt(mPos) != c) {
+            throw error("Expected '" + c + "'");
+        }
+        mPos++;
+    }
+
+    private int parseInt() throws IOException {
+        long value = parseLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw error("Number is too large");
+        }
+        return (int) value;
+    }
+
+    private long parseLong() throws IOException {
+        final String line = mLine;
+        final int length = line.length();
+        boolean negative = mPos < length && line.charAt(mPos) == '-';
+        if (negative) {
+            mPos++;
+        }
+        int start = mPos;
+        long value = 0;
+        while (mPos < length) {
+            char c = line.charAt(mPos);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            mPos++;
+        }
+        if (mPos == start) {
+            throw error("Expected a number");
+        }
+        return negative ? -value : value;
+    }
+
+    private IOException error(String message) {
+        return new IOException("Trace line " + mLineNumber + ": " + message);
+    }
+}
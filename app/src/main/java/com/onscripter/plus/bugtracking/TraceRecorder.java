@@ -0,0 +1,529 @@
+package com.onscripter.plus.bugtracking;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Writes trace events to a compact binary file. Input events are put in a
+ * lock free queue by the view's input thread as primitives; a background
+ * consumer thread takes them out, works out their trace time (skipping the
+ * time videos play and the trace is closed), encodes them into a buffer and
+ * appends it to the file. Recording input never locks, allocates or waits
+ * for the disk. If the consumer falls behind and the queue is full, events
+ * are dropped instead of growing the memory used.
+ *
+ * Everything else (open, close, videos, loads, crashes) is rare and comes
+ * from any thread, so it goes through a small locked queue. The consumer
+ * merges both queues by time.
+ *
+ * File format: magic, version, view width and height, then the records.
+ * Each record is the type, the time in ms (int) and the values of the type:
+ * key (int key code, byte down), mouse (short x, short y, byte action),
+ * crash (none) and load (short length and UTF-8 bytes of the save path).
+ * @author Matthew Ng
+ *
+ */
+final class TraceRecorder {
+    private static final String TAG = "TraceRecorder";
+
+    static final int MAGIC = 0x4F4E5452;       // "ONTR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 13;
+    private static final int DIMENSIONS_OFFSET = 5;
+
+    static final byte KEY_EVENT = 'k';
+    static final byte MOUSE_EVENT = 'm';
+    static final byte CRASH_EVENT = 'c';
+    static final byte LOAD_EVENT = 'l';
+
+    /* Events that do not come from the input thread */
+    private static final int CONTROL_OPEN = 1;
+    private static final int CONTROL_OPEN_NEW = 2;
+    private static final int CONTROL_CLOSE = 3;
+    private static final int CONTROL_VIDEO_START = 4;
+    private static final int CONTROL_VIDEO_END = 5;
+    private static final int CONTROL_LOAD = 6;
+    private static final int CONTROL_CRASH = 7;
+    private static final int CONTROL_DIMENSIONS = 8;
+    private static final int CONTROL_FLUSH = 9;
+
+    /* Largest record without a path (type + time + key code + down) */
+    private static final int MAX_FIXED_RECORD_SIZE = 10;
+    private static final int MAX_PATH_LENGTH = 1024;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final long POLL_INTERVAL_MS = 50;
+    private static final long FLUSH_INTERVAL_MS = 500;
+    private static final long WAIT_TIMEOUT_MS = 2000;
+
+    private static class Control {
+        final int type;
+        final long time;
+        final int width;
+        final int height;
+        final String path;
+        final CountDownLatch done;
+
+        Control(int type, int width, int height, String path, boolean wait) {
+            this.type = type;
+            time = System.nanoTime();
+            this.width = width;
+            this.height = height;
+            this.path = path;
+            done = wait ? new CountDownLatch(1) : null;
+        }
+    }
+
+    private final File mFile;
+    private final TraceEventQueue mQueue;
+    private final ArrayDeque<Control> mControls = new ArrayDeque<Control>();
+    private Thread mConsumer;
+    private volatile long mLastLoggedTime;
+
+    /* Only used by the consumer thread */
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private boolean mOpened;
+    private boolean mStarted;
+    private boolean mVideoPlaying;
+
+    // Monotonic times in nanoseconds, fine enough to order events from different threads
+    private long mStartTime;
+    private long mSkipTime;
+    private boolean mTruncate;
+    private int mWidth;
+    private int mHeight;
+    private boolean mDimensionsChanged;
+    private long mLastWriteTime;
+    private RandomAccessFile mOut;
+
+    /**
+     * @param file to write to
+     * @param queueCapacity number of input events that can wait for the
+     *          consumer, rounded up to a power of 2
+     */
+    public TraceRecorder(File file, int queueCapacity) {
+        mFile = file;
+        mQueue = new TraceEventQueue(queueCapacity);
+    }
+
+    /* Input thread */
+
+    public void traceKey(int keyCode, int down) {
+        mQueue.offer(KEY_EVENT, System.nanoTime(), keyCode, down, 0);
+    }
+
+    public void traceMouse(int x, int y, int action) {
+        mQueue.offer(MOUSE_EVENT, System.nanoTime(), x, y, action);
+    }
+
+    /* Any thread */
+
+    /**
+     * Starts recording events
+     * @param append continues the file, otherwise it is started over
+     */
+    public void open(boolean append) {
+        control(new Control(append ? CONTROL_OPEN : CONTROL_OPEN_NEW, 0, 0, null, false));
+    }
+
+    /**
+     * Stops recording and waits for the recorded events to be written
+     */
+    public void close() {
+        control(new Control(CONTROL_CLOSE, 0, 0, null, true));
+    }
+
+    /**
+     * Waits for the recorded events to be written
+     */
+    public void flush() {
+        control(new Control(CONTROL_FLUSH, 0, 0, null, true));
+    }
+
+    public void videoStart() {
+        control(new Control(CONTROL_VIDEO_START, 0, 0, null, false));
+    }
+
+    public void videoEnd() {
+        control(new Control(CONTROL_VIDEO_END, 0, 0, null, false));
+    }
+
+    /**
+     * Starts the trace over from a loaded save
+     * @param savePath
+     */
+    public void load(String savePath) {
+        control(new Control(CONTROL_LOAD, 0, 0, savePath, false));
+    }
+
+    public void crash() {
+        control(new Control(CONTROL_CRASH, 0, 0, null, false));
+    }
+
+    public void setDimensions(int width, int height) {
+        control(new Control(CONTROL_DIMENSIONS, width, height, null, false));
+    }
+
+    /**
+     * Trace time of the last recorded event
+     * @return
+     */
+    public long getLastLoggedTime() {
+        return mLastLoggedTime;
+    }
+
+    /**
+     * Number of input events that did not fit in the queue
+     * @return
+     */
+    public long getDroppedCount() {
+        return mQueue.getDroppedCount();
+    }
+
+    private void control(Control control) {
+        Thread consumer;
+        synchronized (mControls) {
+            mControls.addLast(control);
+            if (mConsumer == null) {
+                mConsumer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        consume();
+                    }
+                }, TAG);
+                mConsumer.setDaemon(true);
+                mConsumer.start();
+            }
+            consumer = mConsumer;
+        }
+        LockSupport.unpark(consumer);
+        if (control.done != null) {
+            try {
+                if (!control.done.await(WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "Timed out waiting for the trace to be written");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /* Consumer thread */
+
+    private void consume() {
+        while (true) {
+            processEvents();
+            if (mBuffer.position() > 0 && (mBuffer.position() > BUFFER_SIZE / 2
+                    || SystemClock.uptimeMillis() - mLastWriteTime >= FLUSH_INTERVAL_MS)) {
+                writeBuffer();
+            }
+
+            // Input is polled while open, otherwise only a control event wakes it up
+            if (mOpened) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL_MS));
+            } else if (mBuffer.position() == 0) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS));
+            }
+        }
+    }
+
+    /**
+     * Handles all waiting events in order of time, control events first when
+     * the times are the same
+     */
+    private void processEvents() {
+        final TraceEventQueue queue = mQueue;
+        while (true) {
+            Control control;
+            synchronized (mControls) {
+                control = mControls.peekFirst();
+            }
+            boolean hasInput = !queue.isEmpty();
+            if (control != null && (!hasInput || control.time <= queue.peekTime())) {
+                synchronized (mControls) {
+                    mControls.pollFirst();
+                }
+                handleControl(control);
+                continue;
+            }
+            if (!hasInput) {
+                return;
+            }
+            if (canRecord()) {
+                int time = toLogTime(queue.peekTime());
+                if (queue.peekType() == KEY_EVENT) {
+                    ensureSpace(MAX_FIXED_RECORD_SIZE);
+                    mBuffer.put(KEY_EVENT).putInt(time).putInt(queue.peekX()).put((byte) queue.peekY());
+                } else {
+                    ensureSpace(MAX_FIXED_RECORD_SIZE);
+                    mBuffer.put(MOUSE_EVENT).putInt(time).putShort((short) queue.peekX())
+                            .putShort((short) queue.peekY()).put((byte) queue.peekAction());
+                }
+            }
+            queue.remove();
+        }
+    }
+
+    private void handleControl(Control control) {
+        switch (control.type) {
+        case CONTROL_OPEN:
+            if (!mOpened) {
+                mOpened = true;
+                if (!mStarted) {
+                    reset(control.time);
+                } else {
+                    // Reopened so we need to skip the time that was closed
+                    mSkipTime += control.time;
+                }
+            }
+            break;
+        case CONTROL_OPEN_NEW:
+            if (!mOpened) {
+                mOpened = true;
+                reset(control.time);
+            }
+            break;
+        case CONTROL_CLOSE:
+            if (mOpened) {
+                mSkipTime -= control.time;
+                mOpened = false;
+            }
+            writeBuffer();
+            closeFile();
+            break;
+        case CONTROL_VIDEO_START:
+            if (!mVideoPlaying) {
+                mVideoPlaying = true;
+                mSkipTime -= control.time;
+            }
+            break;
+        case CONTROL_VIDEO_END:
+            if (mVideoPlaying) {
+                mVideoPlaying = false;
+                mSkipTime += control.time;
+            }
+            break;
+        case CONTROL_LOAD:
+            reset(control.time);
+            if (canRecord()) {
+                writeLoad(toLogTime(control.time), control.path);
+            }
+            break;
+        case CONTROL_CRASH:
+            if (canRecord()) {
+                ensureSpace(MAX_FIXED_RECORD_SIZE);
+                mBuffer.put(CRASH_EVENT).putInt(toLogTime(control.time));
+            }
+            break;
+        case CONTROL_DIMENSIONS:
+            if (control.width != mWidth || control.height != mHeight) {
+                mWidth = control.width;
+                mHeight = control.height;
+                mDimensionsChanged = true;
+            }
+            break;
+        case CONTROL_FLUSH:
+            writeBuffer();
+            break;
+        }
+        if (control.done != null) {
+            control.done.countDown();
+        }
+    }
+
+    private boolean canRecord() {
+        return mOpened && !mVideoPlaying;
+    }
+
+    private int toLogTime(long nanoTime) {
+        long time = TimeUnit.NANOSECONDS.toMillis(nanoTime - mSkipTime - mStartTime);
+        mLastLoggedTime = time;
+        return (int) time;
+    }
+
+    /**
+     * Throws away everything recorded and starts the file over
+     * @param time
+     */
+    private void reset(long time) {
+        mBuffer.clear();
+        mTruncate = true;
+        mDimensionsChanged = true;
+        mVideoPlaying = false;
+        mLastLoggedTime = 0;
+        mSkipTime = 0;
+        mStartTime = time;
+        mStarted = true;
+    }
+
+    private void writeLoad(int time, String savePath) {
+        byte[] path;
+        try {
+            path = (savePath != null ? savePath : "").getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return;
+        }
+        int length = Math.min(path.length, MAX_PATH_LENGTH);
+        ensureSpace(7 + length);
+        mBuffer.put(LOAD_EVENT).putInt(time).putShort((short) length).put(path, 0, length);
+    }
+
+    private void ensureSpace(int bytes) {
+        if (mBuffer.remaining() < bytes) {
+            writeBuffer();
+        }
+    }
+
+    /**
+     * Appends the buffer to the file and updates the header if needed
+     */
+    private void writeBuffer() {
+        mLastWriteTime = SystemClock.uptimeMillis();
+        if (mBuffer.position() == 0 && !mTruncate && !mDimensionsChanged) {
+            return;
+        }
+        try {
+            if (mOut == null || mTruncate) {
+                openFile(mTruncate);
+                mTruncate = false;
+                mDimensionsChanged = true;
+            }
+            FileChannel channel = mOut.getChannel();
+            if (mDimensionsChanged) {
+                ByteBuffer dims = ByteBuffer.allocate(8);
+                dims.putInt(mWidth).putInt(mHeight).flip();
+                channel.write(dims, DIMENSIONS_OFFSET);
+                mDimensionsChanged = false;
+            }
+            mBuffer.flip();
+            long position = channel.size();
+            while (mBuffer.hasRemaining()) {
+                position += channel.write(mBuffer, position);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write trace: " + e.getMessage());
+        }
+        mBuffer.clear();
+    }
+
+    private void openFile(boolean truncate) throws IOException {
+        closeFile();
+        mOut = new RandomAccessFile(mFile, "rw");
+        if (truncate || mOut.length() < HEADER_SIZE || !hasHeader(mOut)) {
+            mOut.setLength(0);
+            mOut.writeInt(MAGIC);
+            mOut.writeByte(VERSION);
+            mOut.writeInt(0);
+            mOut.writeInt(0);
+        }
+    }
+
+    private static boolean hasHeader(RandomAccessFile file) throws IOException {
+        file.seek(0);
+        return file.readInt() == MAGIC && file.readUnsignedByte() == VERSION;
+    }
+
+    private void closeFile() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {}
+            mOut = null;
+        }
+    }
+
+    /**
+     * Converts a binary trace to the text format: the first line is the view
+     * width and height and each line after is an event of time, type and its
+     * values separated by commas.
+     * @param binary
+     * @param text
+     * @return false if the binary trace cannot be read or the text written
+     */
+    public static boolean convertToText(File binary, File text) {
+        DataInputStream in = null;
+        PrintWriter writer = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(binary)));
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                return false;
+            }
+            writer = new PrintWriter(text, "UTF-8");
+            writer.print(in.readInt());
+            writer.append(',').println(in.readInt());
+            byte[] path = new byte[MAX_PATH_LENGTH];
+            StringBuilder line = new StringBuilder(64);
+            while (true) {
+                int type;
+                try {
+                    type = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                // Read the whole record first in case it was cut off
+                line.setLength(0);
+                line.append(in.readInt()).append(',').append((char) type);
+                switch (type) {
+                case KEY_EVENT:
+                    line.append(',').append(in.readInt());
+                    line.append(',').append(in.readByte());
+                    break;
+                case MOUSE_EVENT:
+                    line.append(',').append(in.readShort());
+                    line.append(',').append(in.readShort());
+                    line.append(',').append(in.readByte());
+                    break;
+                case CRASH_EVENT:
+                    break;
+                case LOAD_EVENT:
+                    int length = in.readUnsignedShort();
+                    in.readFully(path, 0, length);
+                    line.append(new String(path, 0, length, "UTF-8"));
+                    break;
+                default:
+                    Log.e(TAG, "Unknown trace event " + type);
+                    return false;
+                }
+                writer.append(line).append('\n');
+            }
+            return !writer.checkError();
+        } catch (EOFException e) {
+            // The last record was cut off when the app was killed
+            return writer != null && !writer.checkError();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {}
+            }
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+}
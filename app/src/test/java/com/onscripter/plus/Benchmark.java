@@ -0,0 +1,57 @@
+package com.onscripter.plus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+import org.junit.Assume;
+
+/**
+ * Benchmarks are skipped unless the benchmarks system property names the
+ * folder their results are written to (gradle test -Pbenchmarks writes them
+ * to build/benchmarks). They do not print to the test output.
+ */
+public final class Benchmark {
+    public static final String PROPERTY = "benchmarks";
+    private static final String REPORT_NAME = "benchmarks.txt";
+
+    private Benchmark() {}
+
+    public static boolean isEnabled() {
+        return System.getProperty(PROPERTY) != null;
+    }
+
+    /**
+     * Call first in a benchmark, skips it if benchmarks are not enabled
+     */
+    public static void assumeEnabled() {
+        Assume.assumeTrue("Run with -D" + PROPERTY + "=<folder> to benchmark", isEnabled());
+    }
+
+    /**
+     * Adds a line of results to the report, prefixed by the test
+     * @param test
+     * @param format
+     * @param args
+     * @throws IOException
+     */
+    public static void report(Class<?> test, String format, Object... args) throws IOException {
+        File folder = new File(System.getProperty(PROPERTY));
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Cannot make " + folder);
+        }
+        Writer out = new OutputStreamWriter(new FileOutputStream(new File(folder, REPORT_NAME), true), "UTF-8");
+        try {
+            out.write(test.getSimpleName() + ": " + String.format(Locale.US, format, args) + "\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    public static double mbPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+}
@@ -0,0 +1,550 @@
+package com.onscripter.plus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class DataDownloaderTest {
+    private static final String ZIP_NAME = "data.zip";
+    private static final String VERSION_NAME = "version";
+    private static final int BENCHMARK_FILES = 4;
+    private static final int BENCHMARK_FILE_SIZE = 1024 * 1024;
+    private static final int DROP_BYTES = 128 * 1024;
+
+    // The http client logs every retry of a server that is down
+    private static final Logger sHttpLogger = Logger.getLogger("org.apache.http");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mZipDir;
+    private File mExtractDir;
+    private HttpServer mServer;
+    private ExecutorService mServerExecutor;
+
+    // Requests the stub server received, as "<status> <range header>"
+    private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+
+    // Segment requests answered with mFailStatus while this lasts
+    private final AtomicInteger mFailures = new AtomicInteger();
+    private volatile int mFailStatus;
+
+    // Segment responses that stop after DROP_BYTES while this lasts, and their ranges
+    private final AtomicInteger mDrops = new AtomicInteger();
+    private final List<String> mDroppedRanges = Collections.synchronizedList(new ArrayList<String>());
+
+    // Bytes of segments sent before the server stops answering, like a crash
+    private final AtomicLong mBytesUntilDown = new AtomicLong(Long.MAX_VALUE);
+
+    @Before
+    public void setUp() throws IOException {
+        sHttpLogger.setLevel(Level.WARNING);
+        mZipDir = mFolder.newFolder("zip");
+        mExtractDir = mFolder.newFolder("extract");
+    }
+
+    @After
+    public void tearDown() {
+        if (mServer != null) {
+            mServer.stop(0);
+            mServerExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void downloadsInSegments() throws Exception {
+        String[] names = { "arc.nsa", "0.txt" };
+        int[] sizes = { 5 * 1024 * 1024, 1000 };
+        byte[] zip = serveZip(names, sizes, Integer.MAX_VALUE);
+
+        List<String> errors = download(zip.length);
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertExtracted(names, sizes);
+        assertFalse(new File(mZipDir, ZIP_NAME + ".segments").exists());
+
+        // The probe and then one request per segment
+        assertEquals(mRequests.toString(), 5, mRequests.size());
+        for (String request : mRequests) {
+            assertTrue(mRequests.toString(), request.startsWith("206 bytes="));
+        }
+    }
+
+    @Test
+    public void downloadsInOneGoWithoutRanges() throws Exception {
+        String[] names = { "arc.nsa" };
+        int[] sizes = { 3 * 1024 * 1024 };
+        byte[] zip = serveZip(names, sizes, 0);
+
+        List<String> errors = download(zip.length);
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertExtracted(names, sizes);
+
+        // Only the probe asked for a range
+        assertEquals(mRequests.toString(), 2, mRequests.size());
+        assertEquals("200 null", mRequests.get(1));
+    }
+
+    @Test
+    public void fallsBackWhenSegmentIsNotPartial() throws Exception {
+        // The probe is answered with a range but the segments are not
+        String[] names = { "arc.nsa" };
+        int[] sizes = { 3 * 1024 * 1024 };
+        byte[] zip = serveZip(names, sizes, 1);
+
+        List<String> errors = download(zip.length);
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertExtracted(names, sizes);
+        assertFalse(new File(mZipDir, ZIP_NAME + ".segments").exists());
+        assertEquals("200 null", mRequests.get(mRequests.size() - 1));
+    }
+
+    @Test
+    public void retriesSegmentOnServerError() throws Exception {
+        String[] names = { "arc.nsa" };
+        int[] sizes = { 5 * 1024 * 1024 };
+        byte[] zip = serveZip(names, sizes, Integer.MAX_VALUE);
+        mFailStatus = 503;
+        mFailures.set(3);
+
+        List<String> errors = download(zip.length);
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertExtracted(names, sizes);
+        assertFalse(mRequests.contains("200 null"));
+
+        // The same range is asked again, nothing is downloaded twice
+        int failed = 0;
+        for (String request : mRequests) {
+            if (request.startsWith("503 ")) {
+                failed++;
+                assertTrue(mRequests.toString(), mRequests.contains("206 " + request.substring(4)));
+            }
+        }
+        assertEquals(3, failed);
+    }
+
+    @Test
+    public void fallsBackWhenRangeNotSatisfiable() throws Exception {
+        String[] names = { "arc.nsa" };
+        int[] sizes = { 3 * 1024 * 1024 };
+        byte[] zip = serveZip(names, sizes, Integer.MAX_VALUE);
+        mFailStatus = 416;
+        mFailures.set(1);
+
+        List<String> errors = download(zip.length);
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertExtracted(names, sizes);
+        assertEquals("200 null", mRequests.get(mRequests.size() - 1));
+    }
+
+    @Test
+    public void continuesDroppedSegment() throws Exception {
+        String[] names = { "arc.nsa" };
+        int[] sizes = { 5 * 1024 * 1024 };
+        byte[] zip = serveZip(names, sizes, Integer.MAX_VALUE);
+        mDrops.set(4);
+
+        List<String> errors = download(zip.length);
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertExtracted(names, sizes);
+        assertEquals(4, mDroppedRanges.size());
+        for (String range : mDroppedRanges) {
+            long[] values = parseRange(range);
+            assertTrue(mRequests.toString(), mRequests.contains(
+                    "206 bytes=" + (values[0] + DROP_BYTES) + "-" + values[1]));
+        }
+    }
+
+    @Test
+    public void resumesFromSavedSegments() throws Exception {
+        String[] names = { "arc.nsa" };
+        int[] sizes = { 5 * 1024 * 1024 };
+        byte[] zip = serveZip(names, sizes, Integer.MAX_VALUE);
+        File state = new File(mZipDir, ZIP_NAME + ".segments");
+
+        // The server goes down part way through every segment
+        mDrops.set(4);
+        mBytesUntilDown.set(3 * DROP_BYTES + DROP_BYTES / 2);
+        List<String> errors = download(zip.length);
+        assertEquals(Collections.singletonList("Failed to download: too many retries"), errors);
+        assertTrue(state.exists());
+        assertEquals(zip.length, new File(mZipDir, ZIP_NAME).length());
+
+        List<long[]> segments = readSegmentState(state, zip.length);
+        long done = 0;
+        for (long[] segment : segments) {
+            done += segment[2];
+        }
+        assertEquals(3 * DROP_BYTES + DROP_BYTES / 2, done);
+
+        // Started again after the app was killed, each segment continues where it stopped
+        mBytesUntilDown.set(Long.MAX_VALUE);
+        mRequests.clear();
+        errors = download(zip.length);
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertExtracted(names, sizes);
+        assertFalse(state.exists());
+        assertEquals(mRequests.toString(), 1 + segments.size(), mRequests.size());
+        for (long[] segment : segments) {
+            assertTrue(mRequests.toString(), mRequests.contains(
+                    "206 bytes=" + (segment[0] + segment[2]) + "-" + segment[1]));
+        }
+    }
+
+    @Test
+    public void extractsArchive() throws Exception {
+        String[] names = { "0.txt", "arc.nsa", "bgm/track01.ogg", "cg/bg/room.png" };
+        int[] sizes = { 0, 3 * 1024 * 1024 + 5, 100 * 1024, 17 };
+        File zip = createZip(names, sizes, true, -1);
+
+        List<String> errors = extract(zip.length());
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertExtracted(names, sizes);
+        assertTrue(new File(mExtractDir, VERSION_NAME).exists());
+    }
+
+    @Test
+    public void extractsArchiveWithoutCentralDirectory() throws Exception {
+        // The download stopped before the end, entries are read in order instead
+        String[] names = { "0.txt", "arc.nsa", "voice/01.ogg" };
+        int[] sizes = { 1024, 2 * 1024 * 1024 + 1, 50 * 1024 };
+        File zip = createZip(names, sizes, true, names.length);
+
+        List<String> errors = extract(zip.length());
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertExtracted(names, sizes);
+    }
+
+    @Test
+    public void failsWhenCrcDoesNotMatch() throws Exception {
+        String[] names = { "arc.nsa" };
+        int[] sizes = { 64 * 1024 };
+        File zip = createZip(names, sizes, false, -1);
+
+        // Change a byte of the stored data, the headers stay valid
+        byte[] data = TestFiles.readFile(zip);
+        int offset = indexOf(data, readEntry(names[0], sizes[0]));
+        RandomAccessFile file = new RandomAccessFile(zip, "rw");
+        try {
+            file.seek(offset + 100);
+            file.write(data[offset + 100] ^ 0xFF);
+        } finally {
+            file.close();
+        }
+
+        List<String> errors = extract(zip.length());
+        assertEquals(Collections.singletonList("CRC check failed"), errors);
+        assertFalse(new File(mExtractDir, names[0]).exists());
+        assertFalse(new File(mExtractDir, VERSION_NAME).exists());
+    }
+
+    /**
+     * Compares extracting with the inline crc to the old loop that slept
+     * after every read and read each file again for its crc
+     */
+    @Test
+    public void benchmarkExtract() throws Exception {
+        Benchmark.assumeEnabled();
+        String[] names = new String[BENCHMARK_FILES];
+        int[] sizes = new int[BENCHMARK_FILES];
+        for (int i = 0; i < BENCHMARK_FILES; i++) {
+            names[i] = "arc" + i + ".nsa";
+            sizes[i] = BENCHMARK_FILE_SIZE;
+        }
+        File zip = createZip(names, sizes, true, -1);
+
+        long start = System.nanoTime();
+        List<String> errors = extract(zip.length());
+        long nanos = System.nanoTime() - start;
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        start = System.nanoTime();
+        oldExtract(zip, mFolder.newFolder("old"));
+        long oldNanos = System.nanoTime() - start;
+
+        long bytes = (long) BENCHMARK_FILES * BENCHMARK_FILE_SIZE;
+        Benchmark.report(getClass(), "Extract %.1f MB/s, old extract %.1f MB/s",
+                Benchmark.mbPerSecond(bytes, nanos), Benchmark.mbPerSecond(bytes, oldNanos));
+    }
+
+    // The extraction loop before the crc was checked while writing
+    private static void oldExtract(File zipFile, File outDir) throws Exception {
+        byte[] buf = new byte[8192 * 2];
+        ZipInputStream zip = new ZipInputStream(new FileInputStream(zipFile));
+        try {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                File out = new File(outDir, entry.getName());
+                OutputStream os = new FileOutputStream(out);
+                try {
+                    int len;
+                    while ((len = zip.read(buf)) >= 0) {
+                        os.write(buf, 0, len);
+                        Thread.sleep(1);
+                    }
+                } finally {
+                    os.close();
+                }
+
+                CRC32 crc = new CRC32();
+                InputStream in = new FileInputStream(out);
+                try {
+                    int len;
+                    while ((len = in.read(buf)) >= 0) {
+                        crc.update(buf, 0, len);
+                    }
+                } finally {
+                    in.close();
+                }
+                assertEquals(entry.getCrc(), crc.getValue());
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Runs the downloader on the archive already in the zip folder and returns
+     * the errors it reported
+     */
+    private List<String> extract(long zipSize) throws InterruptedException {
+        return run("http://localhost/unused", zipSize);
+    }
+
+    /**
+     * Runs the downloader against the stub server and returns the errors it
+     * reported
+     */
+    private List<String> download(long zipSize) throws InterruptedException {
+        return run("http://localhost:" + mServer.getAddress().getPort() + "/" + ZIP_NAME, zipSize);
+    }
+
+    private List<String> run(String url, long zipSize) throws InterruptedException {
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        DataDownloader downloader = new DataDownloader(mZipDir.getPath(), ZIP_NAME,
+                mExtractDir.getPath(), VERSION_NAME, url, zipSize, null) {
+            @Override
+            public void sendMessage(int current, int total, String str) {
+                if (current == -2) {
+                    errors.add(str);
+                }
+            }
+
+            @Override
+            long getRetryDelay(int retry) {
+                return 1;
+            }
+        };
+        downloader.join();
+        return errors;
+    }
+
+    /**
+     * Starts a server for an archive of the entries
+     * @param rangeRequests number of range requests answered with a range,
+     *          the rest are answered with the whole file
+     * @return the archive
+     */
+    private byte[] serveZip(String[] names, int[] sizes, final int rangeRequests) throws IOException {
+        File file = createZip(names, sizes, true, -1);
+        final byte[] data = TestFiles.readFile(file);
+        assertTrue(file.delete());
+
+        final AtomicInteger ranges = new AtomicInteger();
+        mServerExecutor = Executors.newCachedThreadPool();
+        mServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        mServer.setExecutor(mServerExecutor);
+        mServer.createContext("/" + ZIP_NAME, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                int start = 0;
+                int end = data.length - 1;
+                boolean partial = range != null && ranges.incrementAndGet() <= rangeRequests;
+                if (partial) {
+                    String[] values = range.substring("bytes=".length()).split("-");
+                    start = Integer.parseInt(values[0]);
+                    end = Math.min(end, Integer.parseInt(values[1]));
+                    exchange.getResponseHeaders().set("Content-Range",
+                            "bytes " + start + "-" + end + "/" + data.length);
+                }
+                int length = end - start + 1;
+                boolean segment = partial && end > 0;
+                if (segment && mBytesUntilDown.get() <= 0) {
+                    mRequests.add("down " + range);
+                    exchange.close();
+                    return;
+                }
+                if (segment && mFailures.getAndDecrement() > 0) {
+                    mRequests.add(mFailStatus + " " + range);
+                    exchange.sendResponseHeaders(mFailStatus, -1);
+                    exchange.close();
+                    return;
+                }
+                int send = length;
+                if (segment && mDrops.getAndDecrement() > 0) {
+                    send = DROP_BYTES;
+                    mDroppedRanges.add(range);
+                }
+                if (segment) {
+                    send = (int) Math.min(send, Math.max(0, mBytesUntilDown.getAndAdd(-send)));
+                }
+
+                int status = partial ? 206 : 200;
+                mRequests.add(status + " " + range);
+                exchange.sendResponseHeaders(status, length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(data, start, send);
+                    out.flush();
+                } catch (IOException e) {
+                    // The client may stop reading a response it cannot use
+                } finally {
+                    // Closes the connection if not all was sent
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+        return data;
+    }
+
+    /**
+     * Writes an archive of random entries with the given names and sizes
+     * @param deflate compresses the entries, otherwise they are stored
+     * @param cutAfter number of entries to keep, the central directory is
+     *          left out, -1 for the full archive
+     */
+    private File createZip(String[] names, int[] sizes, boolean deflate, int cutAfter) throws IOException {
+        File file = new File(mZipDir, ZIP_NAME);
+        final long[] written = new long[1];
+        OutputStream counter = new FilterOutputStream(new FileOutputStream(file)) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                written[0] += len;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                written[0]++;
+            }
+        };
+        long cut = -1;
+        ZipOutputStream zip = new ZipOutputStream(counter);
+        try {
+            for (int i = 0; i < names.length; i++) {
+                byte[] data = readEntry(names[i], sizes[i]);
+                ZipEntry entry = new ZipEntry(names[i]);
+                if (!deflate) {
+                    CRC32 crc = new CRC32();
+                    crc.update(data);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.length);
+                    entry.setCrc(crc.getValue());
+                }
+                zip.putNextEntry(entry);
+                zip.write(data);
+                zip.closeEntry();
+                if (i + 1 == cutAfter) {
+                    zip.flush();
+                    cut = written[0];
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        if (cut >= 0) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(cut);
+            } finally {
+                raf.close();
+            }
+        }
+        return file;
+    }
+
+    // Half random so that deflating does some work
+    private static byte[] readEntry(String name, int size) {
+        byte[] data = new byte[size];
+        new Random(name.hashCode()).nextBytes(data);
+        for (int i = 0; i < size; i += 2) {
+            data[i] = (byte) (i >> 8);
+        }
+        return data;
+    }
+
+    private void assertExtracted(String[] names, int[] sizes) throws IOException {
+        for (int i = 0; i < names.length; i++) {
+            assertArrayEquals(names[i], readEntry(names[i], sizes[i]),
+                    TestFiles.readFile(new File(mExtractDir, names[i])));
+        }
+    }
+
+    // Start, end and bytes done of each segment the downloader saved
+    private static List<long[]> readSegmentState(File state, long total) throws IOException {
+        String[] lines = new String(TestFiles.readFile(state), "UTF-8").split("\n");
+        assertEquals(String.valueOf(total), lines[0]);
+        List<long[]> segments = new ArrayList<long[]>();
+        for (int i = 1; i < lines.length; i++) {
+            String[] values = lines[i].split(" ");
+            segments.add(new long[] { Long.parseLong(values[0]), Long.parseLong(values[1]),
+                    Long.parseLong(values[2]) });
+        }
+        return segments;
+    }
+
+    private static long[] parseRange(String range) {
+        String[] values = range.substring("bytes=".length()).split("-");
+        return new long[] { Long.parseLong(values[0]), Long.parseLong(values[1]) };
+    }
+
+    private static int indexOf(byte[] data, byte[] part) {
+        outer:
+        for (int i = 0; i + part.length <= data.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (data[i + j] != part[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,191 @@
+package com.onscripter.plus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.onscripter.plus.FileSystemAdapter.FileListItem;
+import com.onscripter.plus.FileSystemAdapter.LIST_ITEM_TYPE;
+
+public class DirectoryCacheTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        DirectoryCache.clear();
+    }
+
+    @Test
+    public void keepsEachWayAFolderIsListed() throws Exception {
+        File dir = oldFolder("games");
+        DirectoryCache.put(dir, dir.lastModified(), true, false, items(dir, 5, 0));
+        DirectoryCache.put(dir, dir.lastModified(), false, false, items(dir, 5, 7));
+
+        // The launcher and the folder browser do not replace each other
+        assertEquals(5, DirectoryCache.get(dir, true, false).size());
+        assertEquals(12, DirectoryCache.get(dir, false, false).size());
+        assertNull(DirectoryCache.get(dir, false, true));
+
+        DirectoryCache.invalidate(dir);
+        assertNull(DirectoryCache.get(dir, true, false));
+        assertNull(DirectoryCache.get(dir, false, false));
+        assertEquals(0, DirectoryCache.getCachedBytes());
+    }
+
+    @Test
+    public void dropsChangedFolder() throws Exception {
+        File dir = oldFolder("games");
+        DirectoryCache.put(dir, dir.lastModified(), true, false, items(dir, 3, 0));
+        assertNotNull(DirectoryCache.get(dir, true, false));
+        assertTrue(dir.setLastModified(dir.lastModified() - 60000));
+        assertNull(DirectoryCache.get(dir, true, false));
+        assertEquals(0, DirectoryCache.getCachedBytes());
+    }
+
+    @Test
+    public void skipsFolderChangedJustNow() throws Exception {
+        File dir = mFolder.newFolder("new");
+        assertNull(DirectoryCache.put(dir, System.currentTimeMillis(), true, false, items(dir, 3, 0)));
+        assertNull(DirectoryCache.get(dir, true, false));
+    }
+
+    @Test
+    public void countsSortKeysInBytes() throws Exception {
+        File dir = oldFolder("games");
+        FileListItem item = new FileListItem(LIST_ITEM_TYPE.FOLDER, new File(dir, "ひぐらしのなく頃に"));
+        long bytes = DirectoryCache.getItemBytes(item);
+        // The name is held by the item and the key, two bytes a char
+        long strings = 2 * (item.getName().length() * 2 + item.getFile().getPath().length());
+        assertTrue(bytes > strings + item.getNameKey().toByteArray().length);
+
+        DirectoryCache.put(dir, dir.lastModified(), true, false, Collections.singletonList(item));
+        assertTrue(DirectoryCache.getCachedBytes() >= bytes);
+    }
+
+    @Test
+    public void staysUnderByteLimit() throws Exception {
+        // Each folder takes about a fifth of the limit
+        int count = (int) (DirectoryCache.MAX_BYTES / 5 / DirectoryCache.getItemBytes(
+                items(mFolder.getRoot(), 1, 0).get(0)));
+        List<File> dirs = new ArrayList<File>();
+        for (int i = 0; i < 8; i++) {
+            File dir = oldFolder("folder" + i);
+            dirs.add(dir);
+            assertNotNull(DirectoryCache.put(dir, dir.lastModified(), true, false, items(dir, count, 0)));
+            assertTrue(DirectoryCache.getCachedBytes() <= DirectoryCache.MAX_BYTES);
+        }
+
+        // The least recently used went first
+        assertNull(DirectoryCache.get(dirs.get(0), true, false));
+        assertNotNull(DirectoryCache.get(dirs.get(7), true, false));
+
+        // A folder over the limit on its own is not kept
+        File huge = oldFolder("huge");
+        assertNull(DirectoryCache.put(huge, huge.lastModified(), true, false, items(huge, count * 6, 0)));
+    }
+
+    @Test
+    public void keepsParsedTypesInSnapshotOrder() throws Exception {
+        File dir = oldFolder("games");
+        DirectoryCache.Snapshot snapshot = DirectoryCache.put(dir, dir.lastModified(), false, false,
+                items(dir, 10, 0));
+
+        // Every other folder is a game, passed in the snapshot's order as the adapter does
+        FileSystemAdapter.CustomFileTypeParser parser = new FileSystemAdapter.CustomFileTypeParser() {
+            @Override
+            public LIST_ITEM_TYPE onFileTypeParse(File file) {
+                return file.getName().endsWith("1") || file.getName().endsWith("3")
+                        || file.getName().endsWith("5") ? LIST_ITEM_TYPE.FILE : null;
+            }
+        };
+        List<FileListItem> items = new ArrayList<FileListItem>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            items.add(snapshot.newItem(i, parser));
+        }
+        DirectoryLoader.parse(dir, items, snapshot, parser, new NoCallback());
+
+        // Types are kept on the parse thread, the callbacks need the UI thread
+        long end = System.currentTimeMillis() + 5000;
+        while (snapshot.newItem(1, parser).isFolder() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < snapshot.size(); i++) {
+            FileListItem item = snapshot.newItem(i, parser);
+            assertEquals(item.getName(), parser.onFileTypeParse(item.getFile()) != null, item.isFile());
+        }
+    }
+
+    @Test
+    public void cachesListedFolderInNameSortOrder() throws Exception {
+        File dir = mFolder.newFolder("games");
+        for (String name : new String[] { "b", "D", "ひぐらし" }) {
+            assertTrue(new File(dir, name).mkdir());
+        }
+        for (String name : new String[] { "a.txt", "C.txt", "0.txt" }) {
+            assertTrue(new File(dir, name).createNewFile());
+        }
+        assertTrue(dir.setLastModified(System.currentTimeMillis() - 60000));
+        DirectoryLoader.load(dir, false, false, null, new NoCallback());
+
+        // Cached on the listing thread after the last batch
+        long end = System.currentTimeMillis() + 5000;
+        DirectoryCache.Snapshot snapshot;
+        while ((snapshot = DirectoryCache.get(dir, false, false)) == null && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertNotNull(snapshot);
+
+        // The adapter shows a cached folder sorted by name without sorting it again
+        List<FileListItem> items = new ArrayList<FileListItem>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            items.add(snapshot.newItem(i, null));
+        }
+        List<FileListItem> sorted = new ArrayList<FileListItem>(items);
+        Collections.sort(sorted, new FileSystemAdapter.FileSort());
+        assertEquals(6, items.size());
+        assertEquals(sorted, items);
+        assertTrue(items.get(2).isFolder());
+        assertTrue(items.get(3).isFile());
+    }
+
+    private static class NoCallback implements DirectoryLoader.Callback {
+        @Override
+        public void onLoadStarted(DirectoryLoader.Load load) {}
+        @Override
+        public void onItemsLoaded(DirectoryLoader.Load load, List<FileListItem> items) {}
+        @Override
+        public void onTypesParsed(DirectoryLoader.Load load, List<FileListItem> items, List<LIST_ITEM_TYPE> types) {}
+        @Override
+        public void onLoadFinished(DirectoryLoader.Load load) {}
+        @Override
+        public void onLoadFailed(DirectoryLoader.Load load) {}
+    }
+
+    private File oldFolder(String name) throws Exception {
+        File dir = mFolder.newFolder(name);
+        assertTrue(dir.setLastModified(System.currentTimeMillis() - 60000));
+        return dir;
+    }
+
+    // Items for folders and files that do not have to exist
+    private static List<FileListItem> items(File dir, int folders, int files) {
+        List<FileListItem> items = new ArrayList<FileListItem>(folders + files);
+        for (int i = 0; i < folders + files; i++) {
+            items.add(new FileListItem(i < folders ? LIST_ITEM_TYPE.FOLDER : LIST_ITEM_TYPE.FILE,
+                    new File(dir, String.format("Game folder %05d", i))));
+        }
+        return items;
+    }
+}
@@ -0,0 +1,199 @@
+package com.onscripter.plus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class EncodingDetectorTest {
+    /* Captions and lines of games in each language */
+    private static final String[] JAPANESE = {
+        "ひぐらしのなく頃に",
+        "うみねこのなく頃に",
+        "月姫",
+        "Fate/stay night",
+        "ひぐらしのなく頃に解　鬼隠し編",
+        "魔法使いの夜",
+        "さくら、もゆ。",
+        "シンフォニック＝レイン",
+        "昭和58年、初夏。雛見沢の夏は暑い。",
+        "「ねぇ、圭一くん。嘘だよね？」",
+        "彼女は静かに微笑んで、窓の外を見つめていた。",
+        "カナカナカナ……ひぐらしが鳴いている。",
+        "第一章　始まりの日",
+        "セーブデータを読み込みますか？",
+        "東京から引っ越してきた少年の物語",
+        "ファイルが見つかりません",
+        "残響のテロル　ｖｅｒ１．０",
+    };
+    private static final String[] KOREAN = {
+        "쓰르라미 울 적에",
+        "괭이갈매기 울 적에",
+        "월희",
+        "마법사의 밤",
+        "한국어 번역 패치 1.0",
+        "그녀는 조용히 웃으며 창밖을 바라보았다.",
+        "저장된 데이터를 불러오시겠습니까?",
+        "제1장 시작의 날",
+        "도쿄에서 이사 온 소년의 이야기",
+        "\"거짓말이지? 케이이치.\"",
+        "여름의 히나미자와는 덥다.",
+        "파일을 찾을 수 없습니다",
+    };
+    private static final String[] CHINESE = {
+        "寒蝉鸣泣之时",
+        "海猫鸣泣之时",
+        "月姬",
+        "魔法使之夜",
+        "简体中文汉化版",
+        "她静静地微笑着，望着窗外。",
+        "是否读取存档？",
+        "第一章 开始的日子",
+        "从东京搬来的少年的故事",
+        "昭和五十八年，初夏。雏见泽的夏天很热。",
+        "找不到文件",
+        "“骗人的吧？圭一。”",
+    };
+    private static final String[] ENGLISH = {
+        "Higurashi When They Cry",
+        "Tsukihime (English patch v1.0)",
+        "caption test with \"quotes\" and 100% ascii",
+    };
+
+    private static final int BENCHMARK_SIZE = 4 * 1024 * 1024;
+
+    @Test
+    public void decodesCorpus() throws Exception {
+        int total = 0;
+        int correct = 0;
+        StringBuilder missed = new StringBuilder();
+        for (Object[] set : corpus()) {
+            String charset = (String) set[0];
+            for (String text : (String[]) set[1]) {
+                for (String encoding : new String[] { charset, EncodingDetector.UTF_8 }) {
+                    byte[] data = text.getBytes(encoding);
+                    String decoded = EncodingDetector.detect(data, 0, data.length).decode(data, 0, data.length);
+                    total++;
+                    if (text.equals(decoded)) {
+                        correct++;
+                    } else {
+                        missed.append('\n').append(encoding).append(": ").append(text);
+                    }
+                }
+            }
+        }
+        assertEquals("Missed:" + missed, total, correct);
+    }
+
+    @Test
+    public void detectsScripts() throws Exception {
+        for (Object[] set : corpus()) {
+            String charset = (String) set[0];
+            for (String encoding : new String[] { charset, EncodingDetector.UTF_8 }) {
+                byte[] script = script((String[]) set[1], encoding, 64 * 1024);
+                assertEquals(encoding, EncodingDetector.detect(script, 0, script.length).getCharset());
+            }
+        }
+    }
+
+    @Test
+    public void keepsEncodingCutInsideCharacter() throws Exception {
+        for (Object[] set : corpus()) {
+            String charset = (String) set[0];
+            for (String encoding : new String[] { charset, EncodingDetector.UTF_8 }) {
+                byte[] script = script((String[]) set[1], encoding, 64 * 1024);
+
+                // Cut at every byte of a few characters like a read buffer would
+                int nulls = 0;
+                for (int cut = 16 * 1024; cut < 16 * 1024 + 16; cut++) {
+                    EncodingDetector detector = new EncodingDetector();
+                    detector.update(script, 0, cut);
+                    assertEquals(encoding + " cut at " + cut, encoding, detector.getResult(true).getCharset());
+                    if (detector.getResult().getCharset() == null) {
+                        nulls++;
+                    }
+                }
+                if (!encoding.equals(EncodingDetector.UTF_8) || set[1] != ENGLISH) {
+                    // Some cuts fall inside a character, which the whole text cannot end with
+                    assertTrue(encoding, nulls > 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void detectsInChunks() throws Exception {
+        byte[] script = script(JAPANESE, EncodingDetector.SHIFT_JIS, 256 * 1024);
+        int[] chunkSizes = { 1, 7, 4096, 16 * 1024 - 1 };
+        for (int chunkSize : chunkSizes) {
+            EncodingDetector detector = new EncodingDetector();
+            for (int offset = 0; offset < script.length; offset += chunkSize) {
+                detector.update(script, offset, Math.min(chunkSize, script.length - offset));
+            }
+            assertEquals("Chunks of " + chunkSize, EncodingDetector.SHIFT_JIS, detector.getResult().getCharset());
+        }
+    }
+
+    @Test
+    public void dropsImpossibleText() throws Exception {
+        // 0x80 and 0xFF cannot start a character in any of them
+        byte[] data = { 'a', (byte) 0x80, (byte) 0xFF, 'b' };
+        EncodingDetector.Result result = EncodingDetector.detect(data, 0, data.length);
+        assertNull(result.getCharset());
+        assertNull(result.decode(data, 0, data.length));
+
+        data = "ascii only".getBytes("US-ASCII");
+        result = EncodingDetector.detect(data, 0, data.length);
+        assertEquals(EncodingDetector.UTF_8, result.getCharset());
+        assertEquals(1, result.getConfidence(), 0);
+    }
+
+    /**
+     * Times detecting a large Shift-JIS script like the caption scan does
+     */
+    @Test
+    public void benchmarkDetect() throws Exception {
+        Benchmark.assumeEnabled();
+        byte[] script = script(JAPANESE, EncodingDetector.SHIFT_JIS, BENCHMARK_SIZE);
+        EncodingDetector detector = new EncodingDetector();
+        long nanos = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            long start = System.nanoTime();
+            detector.reset();
+            for (int offset = 0; offset < script.length; offset += 16 * 1024) {
+                detector.update(script, offset, Math.min(16 * 1024, script.length - offset));
+            }
+            assertEquals(EncodingDetector.SHIFT_JIS, detector.getResult().getCharset());
+            nanos = Math.min(nanos, System.nanoTime() - start);
+        }
+        Benchmark.report(getClass(), "EncodingDetector %.0f MB/s on a %d KB Shift-JIS script",
+                Benchmark.mbPerSecond(script.length, nanos), script.length / 1024);
+    }
+
+    private static Object[][] corpus() {
+        return new Object[][] {
+            { EncodingDetector.SHIFT_JIS, JAPANESE },
+            { EncodingDetector.EUC_KR, KOREAN },
+            { EncodingDetector.GBK, CHINESE },
+            { EncodingDetector.UTF_8, ENGLISH },
+        };
+    }
+
+    /**
+     * Lines of text as a script would have them, with few ascii characters
+     * between them, repeated till it is at least the size. It always ends
+     * with a whole line.
+     */
+    static byte[] script(String[] lines, String encoding, int size) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 256);
+        for (int i = 0; out.size() < size; i++) {
+            out.write(lines[i % lines.length].getBytes(encoding));
+            out.write(i % 3 == 0 ? '\\' : '@');
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+}
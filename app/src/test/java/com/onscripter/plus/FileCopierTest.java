@@ -0,0 +1,136 @@
+package com.onscripter.plus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.onscripter.plus.FileCopier.CopyListener;
+
+public class FileCopierTest {
+    private static final int BENCHMARK_SIZE = 64 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void copiesFilesOfAnySize() throws IOException {
+        // Around the buffer and transfer slice sizes
+        int[] sizes = { 0, 1, 256 * 1024 - 1, 256 * 1024 + 1, 4 * 1024 * 1024 + 3 };
+        FileCopier copier = new FileCopier();
+        for (int size : sizes) {
+            File source = createFile("source" + size, size);
+            File destination = new File(mFolder.getRoot(), "destination" + size);
+            assertTrue(copier.copy(source, destination, null));
+            assertArrayEquals("Size " + size, TestFiles.readFile(source), TestFiles.readFile(destination));
+        }
+    }
+
+    @Test
+    public void replacesDestination() throws IOException {
+        File source = createFile("source", 100);
+        File destination = createFile("destination", 5000);
+        assertTrue(new FileCopier().copy(source, destination, true, null));
+        assertArrayEquals(TestFiles.readFile(source), TestFiles.readFile(destination));
+    }
+
+    @Test
+    public void stopsWhenCancelled() throws IOException {
+        File source = createFile("source", 1024);
+        File destination = new File(mFolder.getRoot(), "destination");
+        assertFalse(new FileCopier().copy(source, destination, new CopyListener() {
+            @Override
+            public void onCopyProgress(long copiedBytes, long totalBytes) {
+            }
+
+            @Override
+            public boolean isCopyCancelled() {
+                return true;
+            }
+        }));
+    }
+
+    @Test
+    public void reportsProgressOncePerInterval() throws IOException {
+        final int size = 32 * 1024 * 1024;
+        File source = createFile("source", size);
+        File destination = new File(mFolder.getRoot(), "destination");
+        final long[] reports = new long[2];
+        assertTrue(new FileCopier(Long.MAX_VALUE).copy(source, destination, new CopyListener() {
+            @Override
+            public void onCopyProgress(long copiedBytes, long totalBytes) {
+                reports[0]++;
+                reports[1] = copiedBytes;
+                assertEquals(size, totalBytes);
+            }
+
+            @Override
+            public boolean isCopyCancelled() {
+                return false;
+            }
+        }));
+        assertEquals("Only the last progress is reported", 1, reports[0]);
+        assertEquals(size, reports[1]);
+    }
+
+    /**
+     * Compares the copier to the 1 KB stream copy it replaced
+     */
+    @Test
+    public void benchmarkCopy() throws IOException {
+        Benchmark.assumeEnabled();
+        File source = createFile("source", BENCHMARK_SIZE);
+        File destination = new File(mFolder.getRoot(), "destination");
+        FileCopier copier = new FileCopier();
+
+        // Warm up both
+        copier.copy(source, destination, null);
+        streamCopy(source, destination);
+
+        long streamNanos = Long.MAX_VALUE;
+        long copierNanos = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            streamCopy(source, destination);
+            streamNanos = Math.min(streamNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            copier.copy(source, destination, null);
+            copierNanos = Math.min(copierNanos, System.nanoTime() - start);
+        }
+        assertEquals(source.length(), destination.length());
+        Benchmark.report(getClass(), "FileCopier %.0f MB/s, 1 KB stream copy %.0f MB/s",
+                Benchmark.mbPerSecond(BENCHMARK_SIZE, copierNanos),
+                Benchmark.mbPerSecond(BENCHMARK_SIZE, streamNanos));
+    }
+
+    private static void streamCopy(File source, File destination) throws IOException {
+        InputStream in = new FileInputStream(source);
+        OutputStream out = new FileOutputStream(destination);
+        try {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private File createFile(String name, int size) throws IOException {
+        return TestFiles.createFile(mFolder.getRoot(), name, size);
+    }
+}
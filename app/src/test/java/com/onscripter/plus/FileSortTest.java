@@ -0,0 +1,183 @@
+package com.onscripter.plus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Test;
+
+import com.onscripter.plus.FileSystemAdapter.FileListItem;
+import com.onscripter.plus.FileSystemAdapter.FileSort;
+import com.onscripter.plus.FileSystemAdapter.LIST_ITEM_TYPE;
+import com.onscripter.plus.FileSystemAdapter.SORT_MODE;
+
+public class FileSortTest {
+    private static final int BENCHMARK_COUNT = 10000;
+    private static final File FOLDER = new File("/sdcard/ons");
+    private static final String[] TITLES = {
+        "ひぐらしのなく頃に", "うみねこのなく頃に", "Fate/stay night", "月姫", "ゆめみるくすり",
+        "車輪の国、向日葵の少女", "CLANNAD", "沙耶の唄", "ef - a fairy tale", "素晴らしき日々",
+    };
+
+    @Test
+    public void sortsFoldersFirstByName() {
+        List<FileListItem> items = new ArrayList<FileListItem>();
+        items.add(item("b.txt", false));
+        items.add(item("Umineko", true));
+        items.add(item("a.txt", false));
+        items.add(item("higurashi", true));
+        items.add(item("A.txt", false));
+        Collections.sort(items, new FileSort());
+        // Names equal but for case still sort the same way every time
+        assertEquals(Arrays.asList("higurashi", "Umineko", "A.txt", "a.txt", "b.txt"), names(items));
+    }
+
+    @Test
+    public void sortsByCaptionAndLastPlayed() {
+        FileListItem first = item("game1", true);
+        FileListItem second = item("game2", true);
+        FileListItem third = item("game3", true);
+        first.setCaption("月姫");
+        second.setCaption("ひぐらしのなく頃に");
+        second.setLastPlayed(10);
+        third.setLastPlayed(20);
+        first.setLastPlayed(30);
+        List<FileListItem> items = new ArrayList<FileListItem>(Arrays.asList(first, second, third));
+
+        FileSort sort = new FileSort();
+        sort.setMode(SORT_MODE.CAPTION);
+        Collections.sort(items, sort);
+        // Without a caption the name is used
+        assertEquals(Arrays.asList("game3", "game2", "game1"), names(items));
+
+        sort.setMode(SORT_MODE.LAST_PLAYED);
+        Collections.sort(items, sort);
+        assertEquals(Arrays.asList("game1", "game3", "game2"), names(items));
+    }
+
+    @Test
+    public void keysSortLikeCollator() {
+        String[] names = sampleNames(1000);
+        CollationKey[] keys = FileSort.getSortedCollationKeys(names);
+        Collator collator = Collator.getInstance();
+        collator.setStrength(Collator.SECONDARY);
+        for (int i = 1; i < keys.length; i++) {
+            assertTrue(collator.compare(keys[i - 1].getSourceString(), keys[i].getSourceString()) <= 0);
+        }
+    }
+
+    /**
+     * Lists, sorts and inserts the items of a folder of 10k games, reports
+     * how long each step takes next to comparing the names with a Collator
+     */
+    @Test
+    public void benchmarkSort() throws IOException {
+        Benchmark.assumeEnabled();
+        String[] names = sampleNames(BENCHMARK_COUNT);
+        long keysNanos = Long.MAX_VALUE;
+        long nameNanos = Long.MAX_VALUE;
+        long captionNanos = Long.MAX_VALUE;
+        long playedNanos = Long.MAX_VALUE;
+        long insertNanos = Long.MAX_VALUE;
+        long collatorNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            CollationKey[] keys = FileSort.getSortedCollationKeys(names);
+            List<FileListItem> items = new ArrayList<FileListItem>(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                FileListItem item = new FileListItem(i % 4 == 0 ? LIST_ITEM_TYPE.FILE : LIST_ITEM_TYPE.FOLDER,
+                        new File(FOLDER, keys[i].getSourceString()), keys[i]);
+                item.setCaption(TITLES[i % TITLES.length] + " " + (i % 97));
+                item.setLastPlayed(i * 7919L % 1000);
+                items.add(item);
+            }
+            keysNanos = Math.min(keysNanos, System.nanoTime() - start);
+
+            FileSort sort = new FileSort();
+            nameNanos = Math.min(nameNanos, time(items, sort));
+            sort.setMode(SORT_MODE.CAPTION);
+            captionNanos = Math.min(captionNanos, time(items, sort));
+            sort.setMode(SORT_MODE.LAST_PLAYED);
+            playedNanos = Math.min(playedNanos, time(items, sort));
+
+            // As the adapter puts loaded batches in place
+            sort.setMode(SORT_MODE.NAME);
+            start = System.nanoTime();
+            List<FileListItem> shown = new ArrayList<FileListItem>(items.size());
+            for (int i = 0; i < keys.length; i++) {
+                FileListItem item = items.get(i);
+                int size = shown.size();
+                if (size == 0 || sort.compare(shown.get(size - 1), item) <= 0) {
+                    shown.add(item);
+                } else {
+                    int index = Collections.binarySearch(shown, item, sort);
+                    shown.add(index < 0 ? -index - 1 : index, item);
+                }
+            }
+            insertNanos = Math.min(insertNanos, System.nanoTime() - start);
+            assertEquals(BENCHMARK_COUNT, shown.size());
+
+            final Collator collator = Collator.getInstance();
+            collator.setStrength(Collator.SECONDARY);
+            List<String> shuffled = new ArrayList<String>(Arrays.asList(names));
+            Collections.shuffle(shuffled);
+            start = System.nanoTime();
+            Collections.sort(shuffled, new Comparator<String>() {
+                @Override
+                public int compare(String lhs, String rhs) {
+                    return collator.compare(lhs, rhs);
+                }
+            });
+            collatorNanos = Math.min(collatorNanos, System.nanoTime() - start);
+        }
+        Benchmark.report(getClass(),
+                "%d items: keys and items %.1f ms, sort by name %.1f ms, caption %.1f ms, last played %.1f ms, "
+                + "insert in order %.1f ms, Collator.compare sort %.1f ms", BENCHMARK_COUNT, keysNanos / 1e6,
+                nameNanos / 1e6, captionNanos / 1e6, playedNanos / 1e6, insertNanos / 1e6, collatorNanos / 1e6);
+    }
+
+    // Sorts a shuffled copy
+    private static long time(List<FileListItem> items, FileSort sort) {
+        List<FileListItem> shuffled = new ArrayList<FileListItem>(items);
+        Collections.shuffle(shuffled);
+        long start = System.nanoTime();
+        Collections.sort(shuffled, sort);
+        long nanos = System.nanoTime() - start;
+        for (int i = 1; i < shuffled.size(); i++) {
+            assertTrue(sort.compare(shuffled.get(i - 1), shuffled.get(i)) <= 0);
+        }
+        return nanos;
+    }
+
+    // Game folders as a big collection names them, Japanese and English
+    private static String[] sampleNames(int count) {
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            String title = TITLES[i * 7 % TITLES.length];
+            names[i] = i % 3 == 0 ? title.toUpperCase(Locale.US) + " v" + i : title + " 第" + i + "話";
+        }
+        return names;
+    }
+
+    private static FileListItem item(String name, boolean folder) {
+        return new FileListItem(folder ? LIST_ITEM_TYPE.FOLDER : LIST_ITEM_TYPE.FILE, new File(FOLDER, name));
+    }
+
+    private static List<String> names(List<FileListItem> items) {
+        List<String> names = new ArrayList<String>();
+        for (FileListItem item : items) {
+            names.add(item.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,131 @@
+package com.onscripter.plus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FolderWatcherTest {
+    // A poll and the delivery after it take under 3 seconds
+    private static final long WAIT_SECONDS = 10;
+
+    /**
+     * One call to the listener
+     */
+    private static class Change {
+        final File folder;
+        final Set<String> added;
+        final Set<String> removed;
+        final Set<String> changed;
+
+        Change(File folder, Set<String> added, Set<String> removed, Set<String> changed) {
+            this.folder = folder;
+            this.added = added;
+            this.removed = removed;
+            this.changed = changed;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final BlockingQueue<Change> mChanges = new LinkedBlockingQueue<Change>();
+    private FolderWatcher mWatcher;
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mWatcher = new FolderWatcher(new FolderWatcher.OnFolderChangedListener() {
+            @Override
+            public void onFolderChanged(File folder, Set<String> added, Set<String> removed, Set<String> changed) {
+                mChanges.add(new Change(folder, added, removed, changed));
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, true);
+        mDir = mFolder.newFolder("games");
+        assertTrue(new File(mDir, "old.txt").createNewFile());
+        mWatcher.watch(mDir);
+
+        // The first poll only lists what is there
+        Thread.sleep(500);
+    }
+
+    @After
+    public void tearDown() {
+        mWatcher.shutdown();
+    }
+
+    @Test
+    public void reportsAddedAndRemoved() throws Exception {
+        assertTrue(new File(mDir, "0.txt").createNewFile());
+        assertTrue(new File(mDir, "higurashi").mkdir());
+        assertTrue(new File(mDir, "old.txt").delete());
+
+        Change change = next();
+        assertEquals(mDir, change.folder);
+        assertEquals(names("0.txt", "higurashi"), change.added);
+        assertEquals(names("old.txt"), change.removed);
+        assertEquals(names(), change.changed);
+    }
+
+    @Test
+    public void reportsRenameAsRemovedAndAdded() throws Exception {
+        assertTrue(new File(mDir, "old.txt").renameTo(new File(mDir, "new.txt")));
+
+        Change change = next();
+        assertEquals(names("new.txt"), change.added);
+        assertEquals(names("old.txt"), change.removed);
+    }
+
+    @Test
+    public void reportsFolderChangedWhileCopied() throws Exception {
+        File game = new File(mDir, "umineko");
+        assertTrue(game.mkdir());
+        assertEquals(names("umineko"), next().added);
+
+        // The script arrives after the folder was reported
+        assertTrue(new File(game, "0.txt").createNewFile());
+        assertTrue(game.setLastModified(game.lastModified() + 2 * GameFolder.MODIFIED_TIME_RESOLUTION_MS));
+        Change change = next();
+        assertEquals(names(), change.added);
+        assertEquals(names("umineko"), change.changed);
+    }
+
+    @Test
+    public void stopsAfterUnwatch() throws Exception {
+        mWatcher.unwatch(mDir);
+        assertEquals(Collections.emptySet(), mWatcher.getWatchedFolders());
+        assertTrue(new File(mDir, "0.txt").createNewFile());
+        assertNull(mChanges.poll(3, TimeUnit.SECONDS));
+    }
+
+    private Change next() throws InterruptedException {
+        Change change = mChanges.poll(WAIT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull("no change reported", change);
+        return change;
+    }
+
+    private static Set<String> names(String... names) {
+        return new HashSet<String>(Arrays.asList(names));
+    }
+}
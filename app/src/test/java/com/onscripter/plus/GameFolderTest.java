@@ -0,0 +1,76 @@
+package com.onscripter.plus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GameFolderTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private long mOldTime = System.currentTimeMillis() / 1000 * 1000 - 10 * 60 * 1000;
+
+    @Test
+    public void findsScriptsAndArchives() throws Exception {
+        File dir = mFolder.newFolder("game");
+        for (String name : new String[] { "00.txt", "NSCRIPT.DAT", "arc.nsa", "arc1.nsa", "save3.dat", "readme.txt" }) {
+            assertTrue(new File(dir, name).createNewFile());
+        }
+        GameFolder folder = GameFolder.probe(dir);
+        assertTrue(folder.isGame());
+        assertEquals("nscript.dat", folder.getScriptName());
+        assertEquals("NSCRIPT.DAT", folder.getReadableScriptFile().getName());
+        assertTrue(folder.hasArchive());
+        assertArrayEquals(new String[] { "arc.nsa", "arc1.nsa" }, folder.getArchives());
+        assertArrayEquals(new String[] { "save3.dat" }, folder.getSaveFiles());
+    }
+
+    @Test
+    public void reusesFolderUntilItChanges() throws Exception {
+        File dir = mFolder.newFolder("game");
+        setOld(dir);
+        GameFolder folder = GameFolder.probe(dir);
+        assertSame(folder, GameFolder.probe(dir));
+
+        assertTrue(new File(dir, "0.txt").createNewFile());
+        setOld(dir);
+        GameFolder changed = GameFolder.probe(dir);
+        assertNotSame(folder, changed);
+        assertTrue(changed.isGame());
+    }
+
+    @Test
+    public void findsScriptAddedToSubFolder() throws Exception {
+        File dir = mFolder.newFolder("games");
+        File child = new File(dir, "chapter2");
+        assertTrue(child.mkdir());
+        assertTrue(new File(dir, "0.txt").createNewFile());
+        setOld(child);
+        setOld(dir);
+        GameFolder folder = GameFolder.probe(dir);
+        assertEquals(Collections.emptyList(), folder.getSubGameScripts());
+
+        // Only the child folder's modified time changes
+        long lastModified = dir.lastModified();
+        assertTrue(new File(child, "0.txt").createNewFile());
+        assertTrue(dir.setLastModified(lastModified));
+        assertSame(folder, GameFolder.probe(dir));
+        assertEquals(Arrays.asList("chapter2/0.txt"), GameFolder.probe(dir).getSubGameScripts());
+    }
+
+    // Old enough to be cached, each call is a different time so a change is seen
+    private void setOld(File file) {
+        mOldTime += 2 * GameFolder.MODIFIED_TIME_RESOLUTION_MS;
+        assertTrue(file.setLastModified(mOldTime));
+    }
+}
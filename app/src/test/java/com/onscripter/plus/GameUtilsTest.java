@@ -0,0 +1,101 @@
+package com.onscripter.plus;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GameUtilsTest {
+    /* Encoding, caption and a line of the script. The Chinese caption alone is read as EUC-KR. */
+    private static final String[][] CAPTIONS = {
+        { EncodingDetector.SHIFT_JIS, "ひぐらしのなく頃に解　鬼隠し編", "「ねぇ、圭一くん。嘘だよね？」" },
+        { EncodingDetector.EUC_KR, "쓰르라미 울 적에", "그녀는 조용히 웃으며 창밖을 바라보았다." },
+        { EncodingDetector.GBK, "寒蝉汉化", "她静静地微笑着，望着窗外。" },
+        { EncodingDetector.UTF_8, "ひぐらしのなく頃に", "彼女は静かに微笑んで、窓の外を見つめていた。" },
+    };
+    private static final int BENCHMARK_RUNS = 200;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readsCaptionWhenBufferEndsInsideCharacter() throws Exception {
+        // The caption is read with the first 16 KB of the script, move where it
+        // ends over a few characters of the dense text after it
+        for (String[] caption : CAPTIONS) {
+            for (int padding = 0; padding < 8; padding++) {
+                File game = mFolder.newFolder(caption[0] + padding);
+                writeScript(new File(game, "0.txt"), caption, padding, false);
+                assertEquals(caption[0] + " padded " + padding, caption[1], GameUtils.getGameName(game.getPath()));
+            }
+        }
+    }
+
+    @Test
+    public void readsCaptionOfNscriptDat() throws Exception {
+        for (String[] caption : CAPTIONS) {
+            File game = mFolder.newFolder(caption[0]);
+            writeScript(new File(game, "nscript.dat"), caption, 3, true);
+            assertEquals(caption[0], caption[1], GameUtils.getGameName(game.getPath()));
+        }
+    }
+
+    @Test
+    public void readsCaptionOfWholeScript() throws Exception {
+        // Shorter than the buffer, so the script is read to its end
+        File game = mFolder.newFolder("short");
+        File script = new File(game, "00.txt");
+        TestFiles.writeFile(script, "caption \"月姫\"\n".getBytes(EncodingDetector.SHIFT_JIS));
+        assertEquals("月姫", GameUtils.getGameName(game.getPath()));
+    }
+
+    /**
+     * Times reading captions of Shift-JIS scripts, the first read detects
+     * the encoding and the rest use the cached one
+     */
+    @Test
+    public void benchmarkGetGameName() throws Exception {
+        Benchmark.assumeEnabled();
+        File game = mFolder.newFolder("game");
+        writeScript(new File(game, "0.txt"), CAPTIONS[0], 0, false);
+        long start = System.nanoTime();
+        assertEquals(CAPTIONS[0][1], GameUtils.getGameName(game.getPath()));
+        long firstNanos = System.nanoTime() - start;
+
+        long nanos = Long.MAX_VALUE;
+        for (int i = 0; i < BENCHMARK_RUNS; i++) {
+            start = System.nanoTime();
+            GameUtils.getGameName(game.getPath());
+            nanos = Math.min(nanos, System.nanoTime() - start);
+        }
+        Benchmark.report(getClass(), "getGameName first %.2f ms, cached %.3f ms", firstNanos / 1e6, nanos / 1e6);
+    }
+
+    // The caption then more than one buffer of text with few ascii characters
+    private static void writeScript(File file, String[] caption, int padding, boolean encrypt)
+            throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(40 * 1024);
+        for (int i = 0; i < padding; i++) {
+            data.write(' ');
+        }
+        data.write(("caption \"" + caption[1] + "\"\n").getBytes(caption[0]));
+        byte[] line = caption[2].getBytes(caption[0]);
+        while (data.size() < 40 * 1024) {
+            data.write(line);
+            data.write('\\');
+            data.write('\n');
+        }
+        byte[] bytes = data.toByteArray();
+        if (encrypt) {
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] ^= 0x84;
+            }
+        }
+        TestFiles.writeFile(file, bytes);
+    }
+}
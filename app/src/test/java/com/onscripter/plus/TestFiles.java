@@ -0,0 +1,65 @@
+package com.onscripter.plus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Files the tests make and read back
+ */
+public final class TestFiles {
+    private TestFiles() {}
+
+    /**
+     * Writes random bytes, the same ones for the same size
+     * @param folder
+     * @param name
+     * @param size
+     * @return the file
+     * @throws IOException
+     */
+    public static File createFile(File folder, String name, int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File file = new File(folder, name);
+        writeFile(file, data);
+        return file;
+    }
+
+    public static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static byte[] readFile(File file) throws IOException {
+        return readAll(new FileInputStream(file));
+    }
+
+    /**
+     * Reads the stream to its end and closes it
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
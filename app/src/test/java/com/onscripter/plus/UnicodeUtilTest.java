@@ -0,0 +1,216 @@
+package com.onscripter.plus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class UnicodeUtilTest {
+    private static final String[] TEXTS = {
+        "",
+        "plain ascii {\"key\":1}",
+        "café über ß",
+        "ひぐらしのなく頃に",
+        "emoji 🌸 and 𠮷 pairs",
+        "mixed aéあ🌸z",
+    };
+    private static final String[] UNICODE_ENCODINGS = {
+        "UTF-8", "UTF-16BE", "UTF-16LE", "UTF-32BE", "UTF-32LE"
+    };
+    private static final int BENCHMARK_CHARS = 256 * 1024;
+    private static final int BENCHMARK_RUNS = 20;
+
+    @Test
+    public void toUTF8MatchesString() throws Exception {
+        for (String text : TEXTS) {
+            byte[] expected = text.getBytes("UTF-8");
+            assertArrayEquals(text, expected, UnicodeUtil.toUTF8(text));
+            assertArrayEquals(text, expected, UnicodeUtil.toUTF8(new StringBuilder(text)));
+            assertEquals(text, expected.length, UnicodeUtil.getUTF8Length(text));
+        }
+    }
+
+    @Test
+    public void toUTF8ReplacesUnpairedSurrogates() throws Exception {
+        String[] texts = { "a\ud83cb", "\udf38a", "end\ud83c", "\udf38\ud83c" };
+        for (String text : texts) {
+            byte[] expected = text.getBytes("UTF-8");
+            assertArrayEquals(text, expected, UnicodeUtil.toUTF8(text));
+            assertEquals(text, expected.length, UnicodeUtil.getUTF8Length(text));
+        }
+    }
+
+    @Test
+    public void convertWritesBOMForUnicode() throws Exception {
+        for (String text : TEXTS) {
+            for (String enc : UNICODE_ENCODINGS) {
+                byte[] input = withBOM(text, enc);
+                for (String encout : UNICODE_ENCODINGS) {
+                    assertArrayEquals(text + " " + enc + " to " + encout, withBOM(text, encout),
+                            UnicodeUtil.convert(input, encout));
+                }
+                assertArrayEquals(text + " " + enc + " to ascii", text.getBytes("US-ASCII"),
+                        UnicodeUtil.convert(input, "US-ASCII"));
+            }
+        }
+
+        // Without a BOM the input is read as ascii
+        byte[] ascii = TEXTS[1].getBytes("US-ASCII");
+        for (String encout : UNICODE_ENCODINGS) {
+            assertArrayEquals(encout, withBOM(TEXTS[1], encout), UnicodeUtil.convert(ascii, encout));
+        }
+    }
+
+    @Test
+    public void convertsBetweenUnicodeEncodings() throws Exception {
+        for (String text : TEXTS) {
+            for (String enc : UNICODE_ENCODINGS) {
+                byte[] input = withBOM(text, enc);
+                for (String encout : UNICODE_ENCODINGS) {
+                    assertArrayEquals(text + " " + enc + " to " + encout, withBOM(text, encout),
+                            UnicodeUtil.convert(input, encout));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void decodeUsesBOMOrDefault() throws Exception {
+        for (String text : TEXTS) {
+            for (String enc : UNICODE_ENCODINGS) {
+                byte[] input = withBOM(text, enc);
+                assertEquals(enc, text, UnicodeUtil.decode(input, 0, input.length, "US-ASCII"));
+
+                // Only the given range is read
+                byte[] padded = new byte[input.length + 6];
+                System.arraycopy(input, 0, padded, 3, input.length);
+                assertEquals(enc, text, UnicodeUtil.decode(padded, 3, input.length, "US-ASCII"));
+            }
+            byte[] sjis = text.getBytes("Shift_JIS");
+            assertEquals(new String(sjis, "Shift_JIS"), UnicodeUtil.decode(sjis, 0, sjis.length, "Shift_JIS"));
+        }
+    }
+
+    @Test
+    public void findsBOM() throws Exception {
+        for (String enc : UNICODE_ENCODINGS) {
+            byte[] input = withBOM("text", enc);
+            assertEquals(enc, UnicodeUtil.getBOMEncoding(input, 0, input.length));
+            assertEquals(enc, enc.startsWith("UTF-32") ? 4 : enc.equals("UTF-8") ? 3 : 2,
+                    UnicodeUtil.getBOMLength(input, 0, input.length));
+        }
+        byte[] none = "text".getBytes("US-ASCII");
+        assertNull(UnicodeUtil.getBOMEncoding(none, 0, none.length));
+        assertEquals(0, UnicodeUtil.getBOMLength(none, 0, none.length));
+        assertNull(UnicodeUtil.getBOMEncoding(new byte[0], 0, 0));
+    }
+
+    @Test
+    public void reusesBuffersAcrossSizes() throws Exception {
+        // A large conversion grows the buffers, smaller ones after must not see its data
+        String large = randomText(new Random(1), 100000);
+        byte[] input = withBOM(large, "UTF-16LE");
+        assertEquals(large, UnicodeUtil.decode(input, 0, input.length, "US-ASCII"));
+        assertArrayEquals(withBOM(large, "UTF-8"), UnicodeUtil.convert(input, "UTF-8"));
+        for (String text : TEXTS) {
+            input = withBOM(text, "UTF-16LE");
+            assertEquals(text, UnicodeUtil.decode(input, 0, input.length, "US-ASCII"));
+            assertArrayEquals(withBOM(text, "UTF-8"), UnicodeUtil.convert(input, "UTF-8"));
+        }
+    }
+
+    @Test
+    public void convertsOnManyThreads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 8; t++) {
+                final int seed = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 200; i++) {
+                            String text = randomText(random, random.nextInt(2000));
+                            byte[] input = withBOM(text, UNICODE_ENCODINGS[i % UNICODE_ENCODINGS.length]);
+                            assertEquals(text, UnicodeUtil.decode(input, 0, input.length, "US-ASCII"));
+                            assertArrayEquals(withBOM(text, "UTF-8"), UnicodeUtil.convert(input, "UTF-8"));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Compares writing preferences as UTF-8 and converting a file to doing
+     * the same through a String
+     */
+    @Test
+    public void benchmarkConvert() throws Exception {
+        Benchmark.assumeEnabled();
+        String text = randomText(new Random(2), BENCHMARK_CHARS);
+        StringBuilder sb = new StringBuilder(text);
+        byte[] utf16 = text.getBytes("UTF-16");
+
+        long stringSaveNanos = Long.MAX_VALUE;
+        long saveNanos = Long.MAX_VALUE;
+        long stringConvertNanos = Long.MAX_VALUE;
+        long convertNanos = Long.MAX_VALUE;
+        for (int i = 0; i < BENCHMARK_RUNS; i++) {
+            long start = System.nanoTime();
+            sb.toString().getBytes("UTF-8");
+            stringSaveNanos = Math.min(stringSaveNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            UnicodeUtil.toUTF8(sb);
+            saveNanos = Math.min(saveNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            new String(utf16, "UTF-16").getBytes("UTF-8");
+            stringConvertNanos = Math.min(stringConvertNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            UnicodeUtil.convert(utf16, "UTF-8");
+            convertNanos = Math.min(convertNanos, System.nanoTime() - start);
+        }
+        Benchmark.report(getClass(), "%d chars: toUTF8 %.2f ms, through a String %.2f ms, "
+                + "convert %.2f ms, through a String %.2f ms", BENCHMARK_CHARS, saveNanos / 1e6,
+                stringSaveNanos / 1e6, convertNanos / 1e6, stringConvertNanos / 1e6);
+    }
+
+    private static byte[] withBOM(String text, String enc) throws Exception {
+        return ("\uFEFF" + text).getBytes(enc);
+    }
+
+    // Mostly ascii like preferences, with some Japanese and emoji
+    private static String randomText(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length + 1);
+        while (sb.length() < length) {
+            int kind = random.nextInt(10);
+            if (kind < 6) {
+                sb.append((char) (0x20 + random.nextInt(0x5F)));
+            } else if (kind < 9) {
+                sb.append((char) (0x3041 + random.nextInt(0x56)));
+            } else {
+                sb.appendCodePoint(0x1F300 + random.nextInt(0x100));
+            }
+        }
+        return sb.toString();
+    }
+}
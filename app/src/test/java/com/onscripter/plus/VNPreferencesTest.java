@@ -0,0 +1,200 @@
+package com.onscripter.plus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class VNPreferencesTest {
+    private static final String HOT_KEY = "test_hot_key";
+    private static final int BENCHMARK_KEYS = 5000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = mFolder.getRoot();
+        VNPreferences.setUseBinaryFormat(true);
+    }
+
+    @After
+    public void tearDown() {
+        VNPreferences.setUseBinaryFormat(true);
+    }
+
+    @Test
+    public void roundTripsEveryType() throws Exception {
+        VNPreferences prefs = new VNPreferences(mDir.getPath());
+        prefs.putInteger("int", -123456);
+        prefs.putFloat("float", 1.25f);
+        prefs.putBoolean("bool", true);
+        prefs.putString("string", "ひぐらし 🌸");
+        prefs.putString("empty", "");
+        prefs.putString("same", "ひぐらし 🌸");
+        commit(prefs);
+        assertTrue(new File(mDir, VNPreferences.PREF_BINARY_FILE_NAME).exists());
+        assertFalse(new File(mDir, VNPreferences.PREF_FILE_NAME).exists());
+
+        VNPreferences read = new VNPreferences(mDir.getPath());
+        assertEquals(-123456, read.getInteger("int", 0));
+        assertEquals(1.25f, read.getFloat("float", 0), 0);
+        assertTrue(read.getBoolean("bool", false));
+        assertEquals("ひぐらし 🌸", read.getString("string", null));
+        assertEquals("", read.getString("empty", null));
+        assertEquals("ひぐらし 🌸", read.getString("same", null));
+        assertEquals("default", read.getString("missing", "default"));
+    }
+
+    @Test
+    public void keepsUnchangedKeysAcrossWrites() throws Exception {
+        VNPreferences prefs = new VNPreferences(mDir.getPath());
+        fill(prefs, 100);
+        commit(prefs);
+
+        // Many changes to one value leave old strings in the table
+        for (int i = 0; i < 500; i++) {
+            prefs.putString("string7", "changed" + i);
+            if (i % 100 == 0) {
+                commit(prefs);
+            }
+        }
+        prefs.putInteger("int3", 42);
+        commit(prefs);
+
+        VNPreferences read = new VNPreferences(mDir.getPath());
+        assertEquals("changed499", read.getString("string7", null));
+        assertEquals(42, read.getInteger("int3", 0));
+        for (int i = 0; i < 100; i++) {
+            if (i != 7) {
+                assertEquals("value" + i, read.getString("string" + i, null));
+            }
+            if (i != 3) {
+                assertEquals(i, read.getInteger("int" + i, 0));
+            }
+            assertEquals(i / 2f, read.getFloat("float" + i, 0), 0);
+            assertEquals(i % 2 == 0, read.getBoolean("bool" + i, i % 2 != 0));
+        }
+    }
+
+    @Test
+    public void readsHotKeysWithoutLoading() throws Exception {
+        VNPreferences.addHotKey(HOT_KEY);
+        VNPreferences prefs = new VNPreferences(mDir.getPath());
+        fill(prefs, 100);
+        prefs.putString(HOT_KEY, "Game name");
+        commit(prefs);
+
+        VNPreferences read = new VNPreferences(mDir.getPath());
+        assertEquals("Game name", read.getString(HOT_KEY, null));
+        assertFalse(read.isLoaded());
+        assertEquals("value5", read.getString("string5", null));
+        assertTrue(read.isLoaded());
+    }
+
+    @Test
+    public void readsFontScaleWithoutAddingHotKeys() throws Exception {
+        VNPreferences prefs = new VNPreferences(mDir.getPath());
+        fill(prefs, 100);
+        prefs.putFloat(ONScripter.DIALOG_FONT_SCALE_KEY, 1.5f);
+        commit(prefs);
+
+        VNPreferences read = new VNPreferences(mDir.getPath());
+        assertEquals(1.5f, read.getFloat(ONScripter.DIALOG_FONT_SCALE_KEY, 1), 0);
+        assertFalse(read.isLoaded());
+    }
+
+    @Test
+    public void movesJsonToBinary() throws Exception {
+        VNPreferences.setUseBinaryFormat(false);
+        VNPreferences prefs = new VNPreferences(mDir.getPath());
+        fill(prefs, 50);
+        commit(prefs);
+        assertTrue(new File(mDir, VNPreferences.PREF_FILE_NAME).exists());
+        assertFalse(new File(mDir, VNPreferences.PREF_BINARY_FILE_NAME).exists());
+
+        VNPreferences.setUseBinaryFormat(true);
+        VNPreferences read = new VNPreferences(mDir.getPath());
+        assertEquals("value9", read.getString("string9", null));
+        VNPreferences.waitForWrites();
+        assertTrue(new File(mDir, VNPreferences.PREF_BINARY_FILE_NAME).exists());
+        assertFalse(new File(mDir, VNPreferences.PREF_FILE_NAME).exists());
+
+        read = new VNPreferences(mDir.getPath());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("value" + i, read.getString("string" + i, null));
+            assertEquals(i, read.getInteger("int" + i, -1));
+        }
+    }
+
+    /**
+     * Compares reading the binary file to the json file and times a write
+     * after one value changed
+     */
+    @Test
+    public void benchmarkBinaryFormat() throws Exception {
+        Benchmark.assumeEnabled();
+        File jsonDir = mFolder.newFolder("json");
+        File binaryDir = mFolder.newFolder("binary");
+        VNPreferences.setUseBinaryFormat(false);
+        VNPreferences prefs = new VNPreferences(jsonDir.getPath());
+        fill(prefs, BENCHMARK_KEYS);
+        commit(prefs);
+        VNPreferences.setUseBinaryFormat(true);
+        prefs = new VNPreferences(binaryDir.getPath());
+        fill(prefs, BENCHMARK_KEYS);
+        commit(prefs);
+
+        // Reading json moves it to binary, which would change the next run
+        long jsonNanos = Long.MAX_VALUE;
+        long binaryNanos = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            VNPreferences.setUseBinaryFormat(false);
+            long start = System.nanoTime();
+            assertEquals("value1", new VNPreferences(jsonDir.getPath()).getString("string1", null));
+            jsonNanos = Math.min(jsonNanos, System.nanoTime() - start);
+            VNPreferences.setUseBinaryFormat(true);
+
+            start = System.nanoTime();
+            assertEquals("value1", new VNPreferences(binaryDir.getPath()).getString("string1", null));
+            binaryNanos = Math.min(binaryNanos, System.nanoTime() - start);
+        }
+
+        // Includes the delay before a commit is written
+        long writeNanos = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            prefs.putString("string1", "changed" + i);
+            long start = System.nanoTime();
+            commit(prefs);
+            writeNanos = Math.min(writeNanos, System.nanoTime() - start);
+        }
+
+        Benchmark.report(getClass(), "%d keys: read json %.1f ms (%d bytes), read binary %.1f ms (%d bytes), "
+                + "commit one change %.1f ms with the commit delay", BENCHMARK_KEYS * 4, jsonNanos / 1e6, new File(jsonDir, VNPreferences.PREF_FILE_NAME).length(),
+                binaryNanos / 1e6, new File(binaryDir, VNPreferences.PREF_BINARY_FILE_NAME).length(),
+                writeNanos / 1e6);
+    }
+
+    private static void fill(VNPreferences prefs, int count) {
+        for (int i = 0; i < count; i++) {
+            prefs.putString("string" + i, "value" + i);
+            prefs.putInteger("int" + i, i);
+            prefs.putFloat("float" + i, i / 2f);
+            prefs.putBoolean("bool" + i, i % 2 == 0);
+        }
+    }
+
+    private static void commit(VNPreferences prefs) throws Exception {
+        prefs.commit();
+        VNPreferences.waitForWrites();
+    }
+}
@@ -0,0 +1,212 @@
+package com.onscripter.plus.bugtracking;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.onscripter.plus.TestFiles;
+import com.onscripter.plus.bugtracking.ModifyServerRequest.METHOD;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ModifyServerRequestTest {
+    private static final String RESPONSE = "{\"success\":true,\"id\":\"1\"}";
+
+    /**
+     * A request the stub server received
+     */
+    private static class Received {
+        final String method;
+        final String contentEncoding;
+        final String transferEncoding;
+        final int port;
+        final byte[] body;
+
+        Received(HttpExchange exchange, byte[] body) {
+            method = exchange.getRequestMethod();
+            contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            transferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+            port = exchange.getRemoteAddress().getPort();
+            this.body = body;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private ExecutorService mServerExecutor;
+    private String mUrl;
+    private volatile boolean mAcceptGzip;
+    private volatile boolean mRefuseGzip;
+    private final List<Received> mRequests = Collections.synchronizedList(new ArrayList<Received>());
+
+    @Before
+    public void setUp() throws IOException {
+        mServerExecutor = Executors.newCachedThreadPool();
+        mServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        mServer.setExecutor(mServerExecutor);
+        mServer.createContext("/game/bug/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    byte[] body = TestFiles.readAll(exchange.getRequestBody());
+                    Received received = new Received(exchange, body);
+                    mRequests.add(received);
+                    if ("gzip".equals(received.contentEncoding) && mRefuseGzip) {
+                        exchange.sendResponseHeaders(415, -1);
+                        return;
+                    }
+                    byte[] response = RESPONSE.getBytes("UTF-8");
+                    if (mAcceptGzip) {
+                        exchange.getResponseHeaders().add("Accept-Encoding", "deflate, gzip;q=0.8");
+                    }
+                    exchange.sendResponseHeaders(200, response.length);
+                    exchange.getResponseBody().write(response);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+        mUrl = "http://localhost:" + mServer.getAddress().getPort() + "/game/bug/";
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        mServerExecutor.shutdownNow();
+    }
+
+    @Test
+    public void sendsFieldsAndFilesChunked() throws Exception {
+        File trace = createFile("trace.log", 3 * 1024 * 1024 + 5);
+        byte[] save = { 1, 2, 3, '&', '=' };
+        send(false, trace, save);
+
+        assertEquals(1, mRequests.size());
+        Received received = mRequests.get(0);
+        assertEquals("POST", received.method);
+        assertEquals("chunked", received.transferEncoding);
+        assertEquals(null, received.contentEncoding);
+        assertArrayEquals(expectedBody(trace, save), received.body);
+    }
+
+    @Test
+    public void doesNotGzipUntilServerAccepts() throws Exception {
+        File trace = createFile("trace.log", 200 * 1024);
+        send(true, trace, null);
+        send(true, trace, null);
+
+        // A server that ignores Content-Encoding would not read a gzipped body
+        assertEquals(2, mRequests.size());
+        assertEquals(null, mRequests.get(0).contentEncoding);
+        assertEquals(null, mRequests.get(1).contentEncoding);
+        assertArrayEquals(expectedBody(trace, null), mRequests.get(1).body);
+    }
+
+    @Test
+    public void sendsGzipOnceAccepted() throws Exception {
+        mAcceptGzip = true;
+        File trace = createFile("trace.log", 200 * 1024);
+        send(true, trace, null);
+        send(true, trace, null);
+
+        assertEquals(2, mRequests.size());
+        assertEquals(null, mRequests.get(0).contentEncoding);
+        Received received = mRequests.get(1);
+        assertEquals("gzip", received.contentEncoding);
+        assertArrayEquals(expectedBody(trace, null), gunzip(received.body));
+    }
+
+    @Test
+    public void retriesWithoutGzipWhenRefused() throws Exception {
+        mAcceptGzip = true;
+        mRefuseGzip = true;
+        File trace = createFile("trace.log", 200 * 1024);
+        assertEquals(200, send(true, trace, null));
+        assertEquals(200, send(true, trace, null));
+
+        assertEquals(3, mRequests.size());
+        assertEquals("gzip", mRequests.get(1).contentEncoding);
+        assertEquals(null, mRequests.get(2).contentEncoding);
+        assertArrayEquals(expectedBody(trace, null), mRequests.get(2).body);
+
+        // The server is remembered so the next request is not gzipped first
+        assertEquals(200, send(true, trace, null));
+        assertEquals(4, mRequests.size());
+        assertEquals(null, mRequests.get(3).contentEncoding);
+    }
+
+    @Test
+    public void reusesConnection() throws Exception {
+        mAcceptGzip = true;
+        File trace = createFile("trace.log", 1000);
+        for (int i = 0; i < 3; i++) {
+            send(i % 2 == 0, trace, null);
+        }
+        assertEquals(3, mRequests.size());
+        assertEquals(mRequests.get(0).port, mRequests.get(1).port);
+        assertEquals(mRequests.get(0).port, mRequests.get(2).port);
+    }
+
+    // Sends a bug report like BugTrackingService and reads the response
+    private int send(boolean compressed, File trace, byte[] save) throws Exception {
+        ModifyServerRequest request = new ModifyServerRequest(METHOD.POST);
+        try {
+            request.openConnection(mUrl);
+            request.putField("message", "Label \"define\" is not found.");
+            request.putField("name", "ひぐらし");
+            assertTrue(request.putFile("traceLog", trace));
+            if (save != null) {
+                request.putFile("saveFile", save);
+            }
+            request.setCompressed(compressed);
+            request.send();
+            int code = request.getResponseCode();
+            assertEquals(true, request.getResponseJSON().getBoolean("success"));
+            return code;
+        } finally {
+            request.disconnect();
+        }
+    }
+
+    private static byte[] expectedBody(File trace, byte[] save) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write("message=Label \"define\" is not found.&name=ひぐらし&".getBytes("UTF-8"));
+        body.write(("traceLog|" + trace.length() + "=").getBytes("UTF-8"));
+        body.write(TestFiles.readFile(trace));
+        if (save != null) {
+            body.write(("&saveFile|" + save.length + "=").getBytes("UTF-8"));
+            body.write(save);
+        }
+        return body.toByteArray();
+    }
+
+    private File createFile(String name, int size) throws IOException {
+        return TestFiles.createFile(mFolder.getRoot(), name, size);
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        return TestFiles.readAll(new GZIPInputStream(new ByteArrayInputStream(data)));
+    }
+}
@@ -0,0 +1,247 @@
+package com.onscripter.plus.bugtracking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.onscripter.plus.Benchmark;
+
+public class TracePlayerTest {
+    /* Events of the sample trace are this far apart */
+    private static final int EVENT_SPACING_MS = 4;
+    private static final int EVENT_COUNT = 250;
+
+    /**
+     * Time only passes when playback waits or the test moves it
+     */
+    private static class FakeClock implements TracePlayer.Clock {
+        long mNanos;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+
+        @Override
+        public void await(Object lock, long nanos) {
+            mNanos += nanos;
+        }
+
+        void advance(long millis) {
+            mNanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    /**
+     * Keeps the events sent to the game and how late each one was
+     */
+    private static class Recorder implements TracePlayer.Listener {
+        final TracePlayer mPlayer;
+        final List<String> mEvents = new ArrayList<String>();
+        // Allocated before playing so recording does not add to the lateness
+        final long[] mLateNanos = new long[EVENT_COUNT + 1];
+        int mCount;
+        FakeClock mClock;
+        long mStallAt = -1;
+        long mStallMs;
+
+        Recorder(TracePlayer player) {
+            mPlayer = player;
+        }
+
+        @Override
+        public void onKeyEvent(long time, int keyCode, int down) {
+            record(time);
+            mEvents.add(time + ",k," + keyCode + "," + down);
+        }
+
+        @Override
+        public void onMouseEvent(long time, int x, int y, int action) {
+            record(time);
+            mEvents.add(time + ",m," + x + "," + y + "," + action);
+        }
+
+        @Override
+        public void onCrashEvent(long time) {
+            record(time);
+            mEvents.add(time + ",c");
+        }
+
+        private void record(long time) {
+            mLateNanos[mCount++] = mPlayer.getLateNanos();
+            if (time == mStallAt) {
+                mClock.advance(mStallMs);
+            }
+        }
+
+        long getLateMillis(int event) {
+            return TimeUnit.NANOSECONDS.toMillis(mLateNanos[event]);
+        }
+
+        long getLatePercentileNanos(double percent) {
+            long[] sorted = Arrays.copyOf(mLateNanos, mCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+    }
+
+    @Test
+    public void playsEveryEventInOrder() throws Exception {
+        List<String> events = sampleEvents(EVENT_COUNT);
+        TracePlayer player = new TracePlayer(TracePlayer.AS_FAST_AS_POSSIBLE);
+        Recorder recorder = new Recorder(player);
+        TraceReader reader = reader(events);
+        assertEquals(EVENT_COUNT, player.play(reader, recorder, false));
+        assertEquals(events, recorder.mEvents);
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void stopsAtCrashEvent() throws Exception {
+        List<String> events = sampleEvents(10);
+        events.add(5, "21,c");
+        TracePlayer player = new TracePlayer(TracePlayer.AS_FAST_AS_POSSIBLE);
+        Recorder recorder = new Recorder(player);
+        TraceReader reader = reader(events);
+        assertEquals(6, player.play(reader, recorder, false));
+        assertEquals(events.subList(0, 6), recorder.mEvents);
+
+        // The events recorded after the crash are left in the trace
+        int remaining = 0;
+        while (reader.next()) {
+            remaining++;
+        }
+        assertEquals(5, remaining);
+    }
+
+    @Test
+    public void sendsEventsOnSchedule() throws Exception {
+        for (int speed : new int[] { 1, 4 }) {
+            FakeClock clock = new FakeClock();
+            TracePlayer player = new TracePlayer(speed, clock);
+            Recorder recorder = new Recorder(player);
+            assertEquals(EVENT_COUNT, player.play(reader(sampleEvents(EVENT_COUNT)), recorder, false));
+
+            assertEquals(0, player.getShiftCount());
+            assertEquals(TimeUnit.MILLISECONDS.toNanos((EVENT_COUNT - 1) * EVENT_SPACING_MS / speed), clock.mNanos);
+            for (int i = 0; i < EVENT_COUNT; i++) {
+                assertEquals("Event " + i, 0, recorder.mLateNanos[i]);
+            }
+        }
+    }
+
+    @Test
+    public void catchesUpAfterShortStall() throws Exception {
+        FakeClock clock = new FakeClock();
+        TracePlayer player = new TracePlayer(1, clock);
+        Recorder recorder = new Recorder(player);
+        recorder.mClock = clock;
+        recorder.mStallAt = 10 * EVENT_SPACING_MS;
+        recorder.mStallMs = 50;
+        assertEquals(EVENT_COUNT, player.play(reader(sampleEvents(EVENT_COUNT)), recorder, false));
+
+        // The events after the stall are sent without waiting till back on schedule
+        assertEquals(0, player.getShiftCount());
+        for (int i = 11; i <= 22; i++) {
+            assertEquals("Event " + i, 50 - (i - 10) * EVENT_SPACING_MS, recorder.getLateMillis(i));
+        }
+        assertEquals(0, recorder.mLateNanos[23]);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos((EVENT_COUNT - 1) * EVENT_SPACING_MS), clock.mNanos);
+    }
+
+    @Test
+    public void movesScheduleAfterStall() throws Exception {
+        FakeClock clock = new FakeClock();
+        TracePlayer player = new TracePlayer(1, clock);
+        Recorder recorder = new Recorder(player);
+        recorder.mClock = clock;
+        recorder.mStallAt = 10 * EVENT_SPACING_MS;
+        recorder.mStallMs = 300;
+        assertEquals(EVENT_COUNT, player.play(reader(sampleEvents(EVENT_COUNT)), recorder, false));
+
+        // Only the event after the stall is late, the rest keep their spacing
+        long shifted = 300 - EVENT_SPACING_MS;
+        assertEquals(1, player.getShiftCount());
+        assertEquals(shifted, player.getShiftedMillis());
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            assertEquals("Event " + i, i == 11 ? shifted : 0, recorder.getLateMillis(i));
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(shifted + (EVENT_COUNT - 1) * EVENT_SPACING_MS), clock.mNanos);
+    }
+
+    @Test
+    public void stopsWhileWaiting() throws Exception {
+        final TracePlayer player = new TracePlayer(1);
+        List<String> events = new ArrayList<String>();
+        events.add("0,k,1,1");
+        events.add("60000,k,1,0");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {}
+                player.stop();
+            }
+        }).start();
+        long start = System.nanoTime();
+        assertEquals(1, player.play(reader(events), new Recorder(player), false));
+        assertTrue(player.isStopped());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+    }
+
+    /**
+     * Replays the sample trace in real time and 4 times faster, reports how
+     * late the events were sent
+     */
+    @Test
+    public void benchmarkReplay() throws Exception {
+        Benchmark.assumeEnabled();
+        for (float speed : new float[] { 1, 4 }) {
+            TracePlayer player = new TracePlayer(speed);
+            Recorder recorder = new Recorder(player);
+            long start = System.nanoTime();
+            int played = player.play(reader(sampleEvents(EVENT_COUNT)), recorder, false);
+            long total = System.nanoTime() - start;
+            Benchmark.report(getClass(),
+                    "speed %.0f: played %d, shifted %d, total %.1f ms, late p50 %.3f ms, p90 %.3f ms, "
+                    + "p99 %.3f ms, max %.3f ms", speed, played, player.getShiftCount(), total / 1e6,
+                    recorder.getLatePercentileNanos(50) / 1e6, recorder.getLatePercentileNanos(90) / 1e6,
+                    recorder.getLatePercentileNanos(99) / 1e6, recorder.getLatePercentileNanos(100) / 1e6);
+        }
+    }
+
+    // Taps and key presses as a text trace records them
+    private static List<String> sampleEvents(int count) {
+        List<String> events = new ArrayList<String>(count + 1);
+        for (int i = 0; i < count; i++) {
+            int time = i * EVENT_SPACING_MS;
+            if (i % 3 == 0) {
+                events.add(time + ",k,66," + (i / 3 % 2 == 0 ? 1 : 0));
+            } else {
+                events.add(time + ",m," + (i * 7 % 640) + "," + (i * 13 % 480) + "," + (i % 3 - 1));
+            }
+        }
+        return events;
+    }
+
+    private static TraceReader reader(List<String> events) throws IOException {
+        StringBuilder trace = new StringBuilder("640,480\n");
+        for (String event : events) {
+            trace.append(event).append('\n');
+        }
+        TraceReader reader = new TraceReader(new StringReader(trace.toString()));
+        assertTrue(reader.readHeader());
+        return reader;
+    }
+}